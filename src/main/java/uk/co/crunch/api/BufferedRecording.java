@@ -0,0 +1,33 @@
+package uk.co.crunch.api;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Whether counters and histograms record straight into the shared metric, or into per-thread buffers merged into it
+// later: before every scrape, and optionally on a timer. Trades that much staleness for a much cheaper hot path.
+public final class BufferedRecording {
+
+    public static final BufferedRecording OFF = new BufferedRecording(false, 0);
+
+    final boolean buffered;
+    final long flushIntervalNanos;  // 0: at scrape time, plus a once-a-minute reaper
+
+    private BufferedRecording(final boolean buffered, final long flushIntervalNanos) {
+        this.buffered = buffered;
+        this.flushIntervalNanos = flushIntervalNanos;
+    }
+
+    // Merged when scraped, or when a value is read back, and once a minute in the background, so that buffers from
+    // threads that have died are released even if nothing scrapes
+    public static BufferedRecording flushedAtScrape() {
+        return new BufferedRecording(true, 0);
+    }
+
+    // Also merged every interval by a background thread, so values are never more than that stale, and buffers from
+    // threads that have died are released
+    public static BufferedRecording flushedEvery(final long interval, final TimeUnit unit) {
+        checkArgument(interval > 0, "Flush interval must be positive");
+        return new BufferedRecording(true, unit.toNanos(interval));
+    }
+}
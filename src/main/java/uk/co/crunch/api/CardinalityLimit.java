@@ -0,0 +1,29 @@
+package uk.co.crunch.api;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// How many label tuples a labelled metric may hold, and what to do with new ones past that point
+public final class CardinalityLimit {
+
+    public static final CardinalityLimit UNLIMITED = new CardinalityLimit(Integer.MAX_VALUE, false);
+
+    final int maxSeries;
+    final boolean evict;
+
+    private CardinalityLimit(final int maxSeries, final boolean evict) {
+        this.maxSeries = maxSeries;
+        this.evict = evict;
+    }
+
+    // Make room by dropping the least recently looked-up series (roughly the oldest 10% at a time)
+    public static CardinalityLimit evictLeastRecentlyUsed(final int maxSeries) {
+        checkArgument(maxSeries > 0, "Limit must be positive");
+        return new CardinalityLimit(maxSeries, true);
+    }
+
+    // Keep existing series, and count everything new in a single series with every label set to "other"
+    public static CardinalityLimit foldIntoOther(final int maxSeries) {
+        checkArgument(maxSeries > 0, "Limit must be positive");
+        return new CardinalityLimit(maxSeries, false);
+    }
+}
@@ -0,0 +1,70 @@
+package uk.co.crunch.api;
+
+import java.util.concurrent.TimeUnit;
+
+// What one custom collector has cost across the scrapes so far, from PrometheusMetrics.getCollectorCosts()
+public final class CollectorCost {
+
+    private final String name;
+    private final long collects;
+    private final long failures;
+    private final long totalNanos;
+    private final long lastNanos;
+    private final int lastSamples;
+    private final long totalAllocatedBytes;
+    private final long lastAllocatedBytes;
+
+    public CollectorCost(final String name, final long collects, final long failures, final long totalNanos, final long lastNanos,
+                         final int lastSamples, final long totalAllocatedBytes, final long lastAllocatedBytes) {
+        this.name = name;
+        this.collects = collects;
+        this.failures = failures;
+        this.totalNanos = totalNanos;
+        this.lastNanos = lastNanos;
+        this.lastSamples = lastSamples;
+        this.totalAllocatedBytes = totalAllocatedBytes;
+        this.lastAllocatedBytes = lastAllocatedBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCollects() {
+        return collects;
+    }
+
+    // Collects that threw
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    // From the last collect that succeeded
+    public int getLastSamples() {
+        return lastSamples;
+    }
+
+    // Always zero where the JVM can't count allocations per thread
+    public long getTotalAllocatedBytes() {
+        return totalAllocatedBytes;
+    }
+
+    public long getLastAllocatedBytes() {
+        return lastAllocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + collects + " collects (" + failures + " failed), last " + TimeUnit.NANOSECONDS.toMicros(lastNanos) + "us, " +
+               lastSamples + " samples, " + lastAllocatedBytes + " bytes allocated; total " + TimeUnit.NANOSECONDS.toMicros(totalNanos) + "us, " +
+               totalAllocatedBytes + " bytes allocated";
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.crunch.api;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// The bucket layout behind PrometheusMetrics.histogram()
+public final class HistogramBuckets {
+
+    // simpleclient's defaults: 5 ms to 10 s
+    private static final double[] DEFAULT_BOUNDS = {.005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10};
+
+    enum Kind {
+        FIXED, SPARSE
+    }
+
+    final Kind kind;
+    final double[] bounds;    // FIXED only
+    final int subBucketBits;  // SPARSE only
+
+    private HistogramBuckets(final Kind kind, final double[] bounds, final int subBucketBits) {
+        this.kind = kind;
+        this.bounds = bounds;
+        this.subBucketBits = subBucketBits;
+    }
+
+    public static HistogramBuckets defaults() {
+        return new HistogramBuckets(Kind.FIXED, DEFAULT_BOUNDS.clone(), 0);
+    }
+
+    // count buckets, the first with upper bound start, each width wider than the last
+    public static HistogramBuckets linear(final double start, final double width, final int count) {
+        checkArgument(width > 0, "Width must be positive");
+        checkArgument(count > 0, "Count must be positive");
+        final double[] bounds = new double[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = start + i * width;
+        }
+        return explicit(bounds);
+    }
+
+    // count buckets, the first with upper bound start, each factor times the last, e.g. (0.0001, 4, 10) for 100 us
+    // cache calls up to 26 s, or (1, 2, 14) for batch jobs of 1 s to 2+ hours
+    public static HistogramBuckets exponential(final double start, final double factor, final int count) {
+        checkArgument(start > 0, "Start must be positive");
+        checkArgument(factor > 1, "Factor must be greater than 1");
+        checkArgument(count > 0, "Count must be positive");
+        final double[] bounds = new double[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = start * Math.pow(factor, i);
+        }
+        return explicit(bounds);
+    }
+
+    // Upper bounds in increasing order. +Inf is always added.
+    public static HistogramBuckets explicit(final double... bounds) {
+        checkArgument(bounds.length > 0, "Need at least one bucket");
+        for (int i = 0; i < bounds.length; i++) {
+            checkArgument(!Double.isNaN(bounds[i]) && !Double.isInfinite(bounds[i]), "Bucket bounds must be finite");
+            checkArgument(i == 0 || bounds[i] > bounds[i - 1], "Bucket bounds must be in increasing order");
+        }
+        return new HistogramBuckets(Kind.FIXED, bounds.clone(), 0);
+    }
+
+    /**
+     * Log-linear buckets in the style of Prometheus native histograms: every power of two split into
+     * 2^subBucketBits equal buckets, for a relative error of at most 2^-subBucketBits, over any range of positive
+     * values. Only populated buckets are stored or exposed, so there's nothing to tune and no empty series.
+     */
+    public static HistogramBuckets sparse(final int subBucketBits) {
+        checkArgument(subBucketBits >= 0 && subBucketBits <= 8, "Sub-bucket bits must be between 0 and 8");
+        return new HistogramBuckets(Kind.SPARSE, new double[0], subBucketBits);
+    }
+
+    // Sparse, within 12.5%
+    public static HistogramBuckets sparse() {
+        return sparse(3);
+    }
+}
@@ -0,0 +1,21 @@
+package uk.co.crunch.api;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Declares a metric handle on an interface method returning PrometheusMetrics.Counter, Gauge, Summary or Histogram.
+// At compile time MetricHandleProcessor generates <Interface>Handles, which creates and registers every handle up
+// front, e.g.
+//     interface LoginMetrics {
+//         @Metric(name = "Sessions.open") PrometheusMetrics.Gauge sessionsOpen();
+//     }
+//     new LoginMetricsHandles(metrics).sessionsOpen.inc();
+
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Metric {
+    String name();
+    String description() default "";  // Empty to use the description mappings, as for PrometheusMetrics.counter(name)
+}
@@ -0,0 +1,25 @@
+package uk.co.crunch.api;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Where counters and histograms are saved, and how often, so that after a restart they carry on from where they were
+// rather than dropping to zero. Also saved when the JVM shuts down normally.
+public final class MetricSnapshots {
+
+    final Path file;
+    final long saveIntervalNanos;
+
+    private MetricSnapshots(final Path file, final long saveIntervalNanos) {
+        this.file = file;
+        this.saveIntervalNanos = saveIntervalNanos;
+    }
+
+    public static MetricSnapshots savedEvery(final Path file, final long interval, final TimeUnit unit) {
+        checkArgument(interval > 0, "Save interval must be positive");
+        return new MetricSnapshots(checkNotNull(file), unit.toNanos(interval));
+    }
+}
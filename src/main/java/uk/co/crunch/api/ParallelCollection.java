@@ -0,0 +1,24 @@
+package uk.co.crunch.api;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// How custom collectors are collected: on a pool of threads, all at once, each given so long before the scrape goes
+// ahead with its last good result instead
+public final class ParallelCollection {
+
+    final int threads;
+    final long budgetNanos;
+
+    private ParallelCollection(final int threads, final long budgetNanos) {
+        this.threads = threads;
+        this.budgetNanos = budgetNanos;
+    }
+
+    public static ParallelCollection onThreads(final int threads, final long budget, final TimeUnit unit) {
+        checkArgument(threads > 0, "Threads must be positive");
+        checkArgument(budget > 0, "Budget must be positive");
+        return new ParallelCollection(threads, unit.toNanos(budget));
+    }
+}
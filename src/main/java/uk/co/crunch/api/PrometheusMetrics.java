@@ -3,17 +3,68 @@ package uk.co.crunch.api;
 import com.google.common.annotations.VisibleForTesting;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.HttpExporter;
+import uk.co.crunch.impl.exposition.PushExporter;
+import uk.co.crunch.impl.exposition.ScrapeCache;
+import uk.co.crunch.impl.metrics.Accumulator;
+import uk.co.crunch.impl.metrics.AdderMetric;
+import uk.co.crunch.impl.metrics.BucketedHistogram;
+import uk.co.crunch.impl.metrics.BufferedAccumulator;
+import uk.co.crunch.impl.metrics.BufferedCollector;
+import uk.co.crunch.impl.metrics.BufferedHistogram;
+import uk.co.crunch.impl.metrics.Checkpointable;
+import uk.co.crunch.impl.metrics.CollectorCosts;
+import uk.co.crunch.impl.metrics.CollectionScheduler;
+import uk.co.crunch.impl.metrics.CostTrackingCollector;
+import uk.co.crunch.impl.metrics.Distribution;
+import uk.co.crunch.impl.metrics.FixedHistogram;
+import uk.co.crunch.impl.metrics.HdrSummary;
+import uk.co.crunch.impl.metrics.LabelledCollector;
+import uk.co.crunch.impl.metrics.MappedHistogram;
+import uk.co.crunch.impl.metrics.MappedMetric;
+import uk.co.crunch.impl.metrics.MappedStore;
+import uk.co.crunch.impl.metrics.ScheduledCollector;
+import uk.co.crunch.impl.metrics.SnapshotFile;
+import uk.co.crunch.impl.metrics.SparseHistogram;
+import uk.co.crunch.impl.metrics.StaleCollections;
+import uk.co.crunch.impl.metrics.StripedMetric;
+import uk.co.crunch.impl.metrics.ValueMetric;
 import uk.co.crunch.utils.PrometheusUtils;
 
 import javax.annotation.CheckReturnValue;
 import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
 
@@ -23,12 +74,67 @@ import static java.util.Optional.of;
 public class PrometheusMetrics {
     private final ConcurrentMap<String,Metric> metrics = new ConcurrentHashMap<>();
 
+    // Keyed on the caller-supplied name, so repeat lookups skip normalisation and prefixing altogether
+    private final ConcurrentMap<String,Metric> metricsByRawName = new ConcurrentHashMap<>();
+
     @VisibleForTesting
     final CollectorRegistry registry;
 
+    // Everything this instance has put into the registry, in registration order, for the streaming writer
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+    private final ExpositionWriter expositionWriter = new ExpositionWriter();
+    private volatile ScrapeCache scrapeCache;
+    private AdderMetric scrapeCacheHits;
+    private AdderMetric scrapeCacheMisses;
+    private AdderMetric pushFailures;
+    private AdderMetric pushesDropped;
+    private volatile boolean collectorCostTracking;
+    private CollectorCosts collectorCosts;
+    private final List<CostTrackingCollector> costTrackedCollectors = new CopyOnWriteArrayList<>();
+    private volatile CollectionScheduler collectionScheduler;  // Null: custom collectors run on the scrape thread
+    private volatile StaleCollections staleCollections;
+    private final List<ScheduledCollector> scheduledCollectors = new CopyOnWriteArrayList<>();
+    private final Map<Class<?>,Integer> customCollectorsByClass = new HashMap<>();  // Guarded by this
+
     private final String metricNamePrefix;
-    private io.prometheus.client.Counter errorCounter;
+    private volatile Labelled<ErrorCounter> errorCounter;
+    private io.prometheus.client.Counter seriesDroppedCounter;
+    private io.prometheus.client.Counter snapshotFailuresCounter;
+    private volatile SnapshotFile snapshotFile;
     private Properties descriptionMappings = new Properties();
+    private volatile boolean highContentionMode;
+    private volatile QuantileEngine quantileEngine = QuantileEngine.ckms();
+    private volatile TimerClock timerClock = TimerClock.precise();
+    private volatile MetricBuilder<Summary> summaryBuilder = MetricBuilder.SUMMARIES;
+    private volatile CardinalityLimit cardinalityLimit = CardinalityLimit.UNLIMITED;
+    private volatile BufferedRecording bufferedRecording = BufferedRecording.OFF;
+    private volatile SharedMemoryStore sharedMemoryStore;  // Null: values on the heap
+    private volatile MetricBuilder<Counter> counterBuilder = MetricBuilder.COUNTERS;
+    private volatile MetricBuilder<Gauge> gaugeBuilder = MetricBuilder.GAUGES;
+    private volatile MetricBuilder<Histogram> defaultHistogramBuilder = MetricBuilder.HISTOGRAMS;
+
+    private final Registrar registryRegistrar = new Registrar() {
+        @Override
+        public <C extends Collector> C register(final C collector) {
+            return registerPrometheusMetric(collector);
+        }
+
+        @Override
+        public void track(final Checkpointable metric, final List<String> labelNames, final List<String> labelValues) {
+            final SnapshotFile snapshots = snapshotFile;
+            if (snapshots != null) {
+                snapshots.track(metric, labelNames, labelValues);
+            }
+        }
+
+        @Override
+        public void untrack(final String name, final List<String> labelNames, final List<String> labelValues) {
+            final SnapshotFile snapshots = snapshotFile;
+            if (snapshots != null) {
+                snapshots.untrack(name, labelNames, labelValues);
+            }
+        }
+    };
 
     public PrometheusMetrics() {
         this.registry = new CollectorRegistry(true);
@@ -41,7 +147,170 @@ public class PrometheusMetrics {
     }
 
     public void registerCustomCollector(final Collector collector) {
-        this.registry.register(collector);
+        Collector registered = collector;
+        CostTrackingCollector tracked = null;
+        ScheduledCollector scheduled = null;
+        if (collectorCostTracking || collectionScheduler != null) {
+            final String name = customCollectorName(collector);
+            if (collectorCostTracking) {
+                tracked = new CostTrackingCollector(name, registered);
+                registered = tracked;
+            }
+
+            final CollectionScheduler scheduler = collectionScheduler;
+            if (scheduler != null) {
+                scheduled = scheduler.schedule(name, registered);
+                registered = scheduled;
+            }
+        }
+
+        // Only tracked and scheduled once the registry has accepted it
+        this.registry.register(registered);
+        this.collectors.add(registered);
+        if (tracked != null) {
+            costTrackedCollectors.add(tracked);
+        }
+        if (scheduled != null) {
+            scheduledCollectors.add(scheduled);
+        }
+    }
+
+    // Custom collectors registered from now on are collected in parallel on a pool of threads, each within a time
+    // budget, while the scrape writes everything else. A collector over budget is left to finish in the background, and
+    // the scrape gets its last good result instead, counted in <prefix>collector_stale. Only writeExposition() (and so
+    // the HTTP and push exporters) starts them all at once; scrapes through the registry still collect one at a time.
+    // Can only be set once, as collectors already registered keep the pool they were given.
+    public synchronized void setParallelCollection(final ParallelCollection collection) {
+        checkNotNull(collection);
+        checkState(collectionScheduler == null, "Parallel collection already set");
+        this.staleCollections = registerPrometheusMetric( new StaleCollections(metricNamePrefix, scheduledCollectors) );
+        this.collectionScheduler = new CollectionScheduler(collection.threads, collection.budgetNanos);
+    }
+
+    // Custom collectors registered from now on record what every collect() costs: time, samples and (on HotSpot) bytes
+    // allocated, exposed per collector in <prefix>collector_* and through getCollectorCosts(). Metrics created through
+    // this class aren't tracked.
+    public synchronized void setCollectorCostTracking(final boolean tracking) {
+        if (tracking && this.collectorCosts == null) {
+            this.collectorCosts = registerPrometheusMetric( new CollectorCosts(metricNamePrefix, costTrackedCollectors) );
+        }
+        this.collectorCostTracking = tracking;
+    }
+
+    // Most expensive first, by total time, for logging or a debug endpoint
+    public List<CollectorCost> getCollectorCosts() {
+        final List<CollectorCost> costs = new ArrayList<>();
+        for (CostTrackingCollector each : costTrackedCollectors) {
+            costs.add( each.snapshot() );
+        }
+        costs.sort( Comparator.comparingLong(CollectorCost::getTotalNanos).reversed() );
+        return costs;
+    }
+
+    // The collector's class, plus a count for second and later ones of the same class
+    private synchronized String customCollectorName(final Collector collector) {
+        final Class<?> type = collector.getClass();
+        final String className = type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName();
+        final int sameClass = customCollectorsByClass.merge(type, 1, Integer::sum);
+        return sameClass == 1 ? className : className + "_" + sameClass;
+    }
+
+    // Streams every collector registered through this instance (not anything else in a shared registry) in text
+    // format 0.0.4, through one buffer that's reused from scrape to scrape. Concurrent calls take turns.
+    public void writeExposition(final WritableByteChannel channel) throws IOException {
+        final ScrapeCache cache = this.scrapeCache;
+        if (cache != null) {
+            final ByteBuffer snapshot = cache.get();
+            while (snapshot.hasRemaining()) {
+                channel.write(snapshot);
+            }
+            return;
+        }
+
+        synchronized (expositionWriter) {
+            expositionWriter.clear();
+            writeExposition(expositionWriter);
+            expositionWriter.writeTo(channel);
+        }
+    }
+
+    // As above, but into the caller's writer, e.g. one per exporter thread
+    public void writeExposition(final ExpositionWriter writer) {
+        final ScrapeCache cache = this.scrapeCache;
+        if (cache != null) {
+            cache.writeTo(writer);
+        } else {
+            collectExposition(writer);
+        }
+    }
+
+    // Scrapes within this long of the last collection get the same encoded snapshot, and concurrent scrapes share one
+    // collection, so cost no longer grows with the number of scrapers. Zero (the default) turns caching off.
+    // Hits and misses are counted in <prefix>scrape_cache_hits and <prefix>scrape_cache_misses.
+    public synchronized void setScrapeCacheWindow(final long window, final TimeUnit unit) {
+        checkArgument(window >= 0, "Cache window must not be negative");
+
+        if (window == 0) {
+            this.scrapeCache = null;
+            return;
+        }
+
+        if (this.scrapeCacheHits == null) {
+            this.scrapeCacheHits = registerPrometheusMetric( AdderMetric.counter(metricNamePrefix + "scrape_cache_hits", "Scrapes served from the cached snapshot") );
+            this.scrapeCacheMisses = registerPrometheusMetric( AdderMetric.counter(metricNamePrefix + "scrape_cache_misses", "Scrapes that had to collect a new snapshot") );
+        }
+
+        final AdderMetric hits = this.scrapeCacheHits;
+        final AdderMetric misses = this.scrapeCacheMisses;
+        this.scrapeCache = new ScrapeCache(this::collectExposition, unit.toNanos(window), () -> hits.add(1), () -> misses.add(1));
+    }
+
+    private void collectExposition(final ExpositionWriter writer) {
+        // Scheduled collectors all start first, and run while everything ahead of them is written
+        final long start = System.nanoTime();
+        for (ScheduledCollector each : scheduledCollectors) {
+            each.start();
+        }
+
+        final StaleCollections stale = staleCollections;
+        for (Collector each : collectors) {
+            if (each instanceof ScheduledCollector) {
+                for (Collector.MetricFamilySamples family : ((ScheduledCollector) each).await(start)) {
+                    writer.writeFamily(family);
+                }
+            } else if (each != stale) {
+                writer.writeCollector(each);
+            }
+        }
+
+        // Last, so it counts any stale results in this scrape
+        if (stale != null) {
+            writer.writeCollector(stale);
+        }
+    }
+
+    // Serves writeExposition() on http://<host>:<port>/metrics, no servlet container needed. Port 0 picks a free one.
+    // Close the returned exporter to stop it.
+    public HttpExporter startHttpServer(final int port) throws IOException {
+        return new HttpExporter(new InetSocketAddress(port), this::writeExposition);
+    }
+
+    // Pushes writeExposition() to a Pushgateway every interval, and at JVM shutdown, from a background thread. Close the
+    // returned exporter at the end of the job to stop it and push one last time. Other instances can be pushed on the
+    // same connection under their own grouping, e.g. exporter.add("job", ImmutableMap.of("shard", "2"), shard2::writeExposition).
+    // Failed pushes are counted in <prefix>push_failures, and groupings over the memory cap in <prefix>push_dropped.
+    public synchronized PushExporter startPushing(final PushGateway gateway) {
+        checkNotNull(gateway);
+        if (this.pushFailures == null) {
+            this.pushFailures = registerPrometheusMetric( AdderMetric.counter(metricNamePrefix + "push_failures", "Pushes to the push gateway that failed, and will be retried") );
+            this.pushesDropped = registerPrometheusMetric( AdderMetric.counter(metricNamePrefix + "push_dropped", "Groupings not pushed because they didn't fit in the push memory cap") );
+        }
+
+        final AdderMetric failures = this.pushFailures;
+        final AdderMetric dropped = this.pushesDropped;
+        return new PushExporter(gateway.host, gateway.port, gateway.intervalNanos, gateway.initialBackoffNanos, gateway.maxBackoffNanos,
+                                gateway.maxBytes, () -> failures.add(1), () -> dropped.add(1))
+                .add(gateway.job, gateway.grouping, this::writeExposition);
     }
 
     @VisibleForTesting
@@ -49,6 +318,73 @@ public class PrometheusMetrics {
         this.descriptionMappings = checkNotNull(props);
     }
 
+    // Counters and gauges created from now on use striped, padded cells that are only summed at scrape time.
+    // Costs up to 4KB per metric, so only worth it for metrics hammered from many cores at once.
+    public void setHighContentionMode(final boolean highContentionMode) {
+        this.highContentionMode = highContentionMode;
+        updateBuilders();
+    }
+
+    // Summaries (and timers) created from now on use this engine, e.g. QuantileEngine.hdr() for cheap observations
+    public void setQuantileEngine(final QuantileEngine engine) {
+        this.quantileEngine = checkNotNull(engine);
+        updateBuilders();
+    }
+
+    // Summaries and histograms created from now on time with this clock, e.g. TimerClock.coarse(1, MILLISECONDS) to
+    // make timers in tight loops cheaper, or TimerClock.of(...) with a stepped counter in tests
+    public void setTimerClock(final TimerClock clock) {
+        this.timerClock = checkNotNull(clock);
+        updateBuilders();
+    }
+
+    // Labelled metrics (including errors) created from now on are capped at this many label tuples.
+    // Anything evicted or folded into the "other" series is counted in <prefix>label_series_dropped, once per tuple.
+    public void setCardinalityLimit(final CardinalityLimit limit) {
+        this.cardinalityLimit = checkNotNull(limit);
+    }
+
+    // Counters and histograms created from now on record into per-thread buffers, e.g. BufferedRecording.flushedEvery(1, SECONDS)
+    // for per-message counts in hot loops. Scrapes always see everything recorded before they started.
+    public void setBufferedRecording(final BufferedRecording recording) {
+        this.bufferedRecording = checkNotNull(recording);
+        updateBuilders();
+    }
+
+    // Counters, gauges and histograms created from now on keep their values in this worker's shared memory file, for an
+    // exporter process to add up with SharedMemoryStore.aggregate(). Overrides high contention mode and buffered recording.
+    // Summaries stay on the heap, as quantiles can't be added up across processes.
+    public void setSharedMemoryStore(final SharedMemoryStore store) {
+        this.sharedMemoryStore = checkNotNull(store);
+        updateBuilders();
+    }
+
+    // Counters (including errors) and histograms created from now on are restored from the snapshot file, if there is one,
+    // and saved to it from then on. Call straight after construction, before any metrics are created. Failed saves are
+    // counted in <prefix>snapshot_save_failures.
+    public void setMetricSnapshots(final MetricSnapshots snapshots) throws IOException {
+        checkNotNull(snapshots);
+        synchronized (this) {
+            checkState(snapshotFile == null, "Metric snapshots already set");
+            this.snapshotFile = SnapshotFile.load(snapshots.file);
+        }
+        snapshotFile.saveEvery(snapshots.saveIntervalNanos, e -> getSnapshotFailuresCounter().inc());
+    }
+
+    // Saves straight away, e.g. before a planned shutdown, and returns the number of series saved
+    public int saveMetricSnapshot() throws IOException {
+        final SnapshotFile snapshots = snapshotFile;
+        checkState(snapshots != null, "No metric snapshots set");
+        return snapshots.save();
+    }
+
+    // Stops the scheduled saves, and the one at shutdown, e.g. before deleting the file. saveMetricSnapshot() still works.
+    public void stopMetricSnapshots() {
+        final SnapshotFile snapshots = snapshotFile;
+        checkState(snapshots != null, "No metric snapshots set");
+        snapshots.stopSaving();
+    }
+
     // Map Dropwizard Timer to a Prometheus Summary (I think)
     @CheckReturnValue
     public Summary timer(String name) {
@@ -62,42 +398,88 @@ public class PrometheusMetrics {
 
     @CheckReturnValue
     public Histogram histogram(String name) {
-        return getOrAdd(name, empty(), MetricBuilder.HISTOGRAMS);
+        return getOrAdd(name, empty(), defaultHistogramBuilder);
     }
 
     @CheckReturnValue
     public Histogram histogram(String name, String desc) {
-        return getOrAdd(name, of(desc), MetricBuilder.HISTOGRAMS);
+        return getOrAdd(name, of(desc), defaultHistogramBuilder);
+    }
+
+    // Buckets only apply when the histogram is first created, e.g. histogram("db.latency", HistogramBuckets.sparse())
+    @CheckReturnValue
+    public Histogram histogram(String name, HistogramBuckets buckets) {
+        checkNotNull(buckets);
+        final Histogram cached = cached(name, Histogram.class);
+        return cached != null ? cached : getOrAdd(name, empty(), histogramBuilder(buckets));
+    }
+
+    @CheckReturnValue
+    public Histogram histogram(String name, String desc, HistogramBuckets buckets) {
+        checkNotNull(buckets);
+        final Histogram cached = cached(name, Histogram.class);
+        return cached != null ? cached : getOrAdd(name, of(desc), histogramBuilder(buckets));
     }
 
     @CheckReturnValue
     public Summary summary(String name) {
-        return getOrAdd(name, empty(), MetricBuilder.SUMMARIES);
+        return getOrAdd(name, empty(), summaryBuilder);
     }
 
     @CheckReturnValue
     public Summary summary(String name, String desc) {
-        return getOrAdd(name, of(desc), MetricBuilder.SUMMARIES);
+        return getOrAdd(name, of(desc), summaryBuilder);
     }
 
     @CheckReturnValue
     public Counter counter(String name) {
-        return getOrAdd(name, empty(), MetricBuilder.COUNTERS);
+        return getOrAdd(name, empty(), counterBuilder);
     }
 
     @CheckReturnValue
     public Counter counter(String name, String desc) {
-        return getOrAdd(name, of(desc), MetricBuilder.COUNTERS);
+        return getOrAdd(name, of(desc), counterBuilder);
     }
 
     @CheckReturnValue
     public Gauge gauge(String name) {
-        return getOrAdd(name, empty(), MetricBuilder.GAUGES);
+        return getOrAdd(name, empty(), gaugeBuilder);
     }
 
     @CheckReturnValue
     public Gauge gauge(String name, String desc) {
-        return getOrAdd(name, of(desc), MetricBuilder.GAUGES);
+        return getOrAdd(name, of(desc), gaugeBuilder);
+    }
+
+    // Labelled variants: hold on to the returned family, or to its children, e.g.
+    //     labelledCounter("http.requests", "method", "status").labels("GET", "200").inc()
+    // Descriptions come from the description mappings, or default to the metric name
+
+    @CheckReturnValue
+    public Labelled<Counter> labelledCounter(String name, String... labelNames) {
+        return getOrAddLabelled(name, labelNames, Counter.class, Collector.Type.COUNTER, counterBuilder);
+    }
+
+    @CheckReturnValue
+    public Labelled<Gauge> labelledGauge(String name, String... labelNames) {
+        return getOrAddLabelled(name, labelNames, Gauge.class, Collector.Type.GAUGE, gaugeBuilder);
+    }
+
+    @CheckReturnValue
+    public Labelled<Histogram> labelledHistogram(String name, String... labelNames) {
+        return getOrAddLabelled(name, labelNames, Histogram.class, Collector.Type.HISTOGRAM, defaultHistogramBuilder);
+    }
+
+    @CheckReturnValue
+    public Labelled<Histogram> labelledHistogram(String name, HistogramBuckets buckets, String... labelNames) {
+        checkNotNull(buckets);
+        final Labelled<Histogram> cached = cachedLabelled(name, Histogram.class, labelNames);
+        return cached != null ? cached : getOrAddLabelled(name, labelNames, Histogram.class, Collector.Type.HISTOGRAM, histogramBuilder(buckets));
+    }
+
+    @CheckReturnValue
+    public Labelled<Summary> labelledSummary(String name, String... labelNames) {
+        return getOrAddLabelled(name, labelNames, Summary.class, Collector.Type.SUMMARY, summaryBuilder);
     }
 
     public ErrorCounter error(String name) {
@@ -108,48 +490,258 @@ public class PrometheusMetrics {
         return incrementError(name, of(desc));
     }
 
+    // getOrAdd's fast path, for callers that would otherwise build a builder just to find a metric we already have
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> T cached(String name, Class<T> type) {
+        final Metric cached = metricsByRawName.get(name);
+        return type.isInstance(cached) ? (T) cached : null;
+    }
+
     @SuppressWarnings("unchecked")
     private <T extends Metric> T getOrAdd(String name, Optional<String> desc, MetricBuilder<T> builder) {
-        final String adjustedName = metricNamePrefix + PrometheusUtils.normaliseName(name);
+        // Fast path: no allocation at all for a name we've seen before
+        final Metric cached = metricsByRawName.get(name);
+        if (cached != null && builder.isInstance(cached)) {
+            return (T) cached;
+        }
 
+        return getOrAddNormalised(name, metricNamePrefix + PrometheusUtils.normaliseName(name), desc, builder, registryRegistrar);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> T getOrAddNormalised(String name, String adjustedName, Optional<String> desc, MetricBuilder<T> builder, Registrar registrar) {
         // Get/check existing local metric
         final Metric metric = metrics.get(adjustedName);
         if (metric != null) {
             if (builder.isInstance(metric)) {
+                metricsByRawName.putIfAbsent(name, metric);
                 return (T) metric;
             }
             throw new IllegalArgumentException(adjustedName + " is already used for a different type of metric");
         }
 
         final String description = desc.orElse( firstNonNull( descriptionMappings.getProperty(name), adjustedName) );
-        final T newMetric = builder.newMetric( adjustedName, description, this.registry);
+        final T newMetric = builder.newMetric( adjustedName, description, registrar);
 
-        metrics.putIfAbsent(adjustedName, newMetric);
+        // Lost a race: use the winner, which is the one that got registered. Only ever cache what's in metrics.
+        final Metric existing = metrics.putIfAbsent(adjustedName, newMetric);
+        if (existing != null && !builder.isInstance(existing)) {
+            throw new IllegalArgumentException(adjustedName + " is already used for a different type of metric");
+        }
+        final T result = existing != null ? (T) existing : newMetric;
 
-        return newMetric;
+        metricsByRawName.putIfAbsent(name, result);
+        return result;
     }
 
-    private ErrorCounter incrementError(final String name, Optional<String> desc) {
-        io.prometheus.client.Counter.Child counter = getErrorCounter(desc).labels(name);
-        counter.inc();
-        return new ErrorCounter(counter);
+    // For the classes that MetricHandleProcessor generates from @Metric interfaces. Names were normalised at compile
+    // time, so only the prefix is added here, and anything not already known is registered in one batch at the end.
+    // Returns one handle per name, in order. Descriptions may be empty, to use the description mappings instead.
+    public Object[] registerHandles(final Class<?>[] types, final String[] names, final String[] normalisedNames, final String[] descriptions) {
+        checkArgument(types.length == names.length && names.length == normalisedNames.length && names.length == descriptions.length, "Mismatched handle declarations");
+
+        // Check everything up front, so that a bad handle can't leave the earlier ones known but unregistered
+        final MetricBuilder<?>[] builders = new MetricBuilder<?>[names.length];
+        final Map<String,Class<?>> typesByName = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            final String adjustedName = metricNamePrefix + normalisedNames[i];
+            builders[i] = handleBuilder(types[i]);
+
+            final Metric metric = metrics.get(adjustedName);
+            final Class<?> earlier = typesByName.putIfAbsent(adjustedName, types[i]);
+            if ((metric != null && !builders[i].isInstance(metric)) || (earlier != null && earlier != types[i])) {
+                throw new IllegalArgumentException(adjustedName + " is already used for a different type of metric");
+            }
+        }
+
+        final List<Collector> batch = new ArrayList<>(names.length);
+        final Registrar batchRegistrar = new Registrar() {
+            @Override
+            public <C extends Collector> C register(final C collector) {
+                batch.add(collector);
+                return collector;
+            }
+
+            @Override
+            public void track(final Checkpointable metric, final List<String> labelNames, final List<String> labelValues) {
+                registryRegistrar.track(metric, labelNames, labelValues);
+            }
+
+            @Override
+            public void untrack(final String name, final List<String> labelNames, final List<String> labelValues) {
+                registryRegistrar.untrack(name, labelNames, labelValues);
+            }
+        };
+
+        final Object[] handles = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            final Optional<String> desc = descriptions[i].isEmpty() ? empty() : of(descriptions[i]);
+            handles[i] = getOrAddNormalised(names[i], metricNamePrefix + normalisedNames[i], desc, builders[i], batchRegistrar);
+        }
+
+        final List<Collector> registered = new ArrayList<>(batch.size());
+        for (Collector each : batch) {
+            try {
+                registry.register(each);
+                registered.add(each);
+            }
+            catch (IllegalArgumentException e) {  // NOSONAR
+                // Collector already registered - we ignore this
+            }
+        }
+        collectors.addAll(registered);  // One copy of the list, rather than one per metric
+
+        return handles;
+    }
+
+    private MetricBuilder<?> handleBuilder(final Class<?> type) {
+        if (type == Counter.class) {
+            return counterBuilder;
+        }
+        if (type == Gauge.class) {
+            return gaugeBuilder;
+        }
+        if (type == Summary.class) {
+            return summaryBuilder;
+        }
+        if (type == Histogram.class) {
+            return defaultHistogramBuilder;
+        }
+        throw new IllegalArgumentException("No handles for " + type.getName());
     }
 
+    // Rebuilt when the modes change, so that lookups by name don't build anything
+    private void updateBuilders() {
+        final SharedMemoryStore shared = sharedMemoryStore;
+        if (shared != null) {
+            this.counterBuilder = MetricBuilder.sharedValues(shared.store, Collector.Type.COUNTER, Counter::new);
+            this.gaugeBuilder = MetricBuilder.sharedValues(shared.store, Collector.Type.GAUGE, Gauge::new);
+        } else {
+            if (bufferedRecording.buffered) {
+                this.counterBuilder = MetricBuilder.bufferedCounters(highContentionMode, bufferedRecording);
+            } else {
+                this.counterBuilder = highContentionMode ? MetricBuilder.STRIPED_COUNTERS : MetricBuilder.COUNTERS;
+            }
+            this.gaugeBuilder = highContentionMode ? MetricBuilder.STRIPED_GAUGES : MetricBuilder.GAUGES;
+        }
+        this.defaultHistogramBuilder = histogramBuilder( HistogramBuckets.defaults() );
+        this.summaryBuilder = MetricBuilder.summaries(quantileEngine, timerClock);
+    }
+
+    private MetricBuilder<Histogram> histogramBuilder(final HistogramBuckets buckets) {
+        final SharedMemoryStore shared = sharedMemoryStore;
+        if (shared != null) {
+            return MetricBuilder.sharedHistograms(shared.store, buckets, timerClock);
+        }
+        return MetricBuilder.histograms(buckets, bufferedRecording, timerClock);
+    }
+
+    private <T extends Metric> Labelled<T> getOrAddLabelled(String name, String[] labelNames, Class<T> childType, Collector.Type type, MetricBuilder<T> childBuilder) {
+        final Labelled<T> cached = cachedLabelled(name, childType, labelNames);
+        if (cached != null) {
+            return cached;
+        }
+        return checkLabelNames(name, getOrAdd(name, empty(), MetricBuilder.labelled(childType, type, labelNames, childBuilder, cardinalityLimit, this::onSeriesDropped)), labelNames);
+    }
+
+    // Without building the family's builder, which captures a lambda
     @SuppressWarnings("unchecked")
-    private synchronized io.prometheus.client.Counter getErrorCounter(Optional<String> desc) {
+    private <T extends Metric> Labelled<T> cachedLabelled(String name, Class<T> childType, String[] labelNames) {
+        final Metric cached = metricsByRawName.get(name);
+        if (cached instanceof Labelled && ((Labelled<?>) cached).childType == childType) {
+            return checkLabelNames(name, (Labelled<T>) cached, labelNames);
+        }
+        return null;
+    }
+
+    private static <T> Labelled<T> checkLabelNames(String name, Labelled<T> labelled, String[] labelNames) {
+        if (!labelled.collector.getLabelNames().equals( Arrays.asList(labelNames) )) {
+            throw new IllegalArgumentException(name + " is already used with labels " + labelled.collector.getLabelNames());
+        }
+        return labelled;
+    }
+
+    private ErrorCounter incrementError(final String name, Optional<String> desc) {
+        final ErrorCounter counter = getErrorCounter(desc).labels(name);
+        counter.increment();
+        return counter;
+    }
+
+    // Lock-free once created: only the very first error takes the lock
+    private Labelled<ErrorCounter> getErrorCounter(Optional<String> desc) {
+        final Labelled<ErrorCounter> existing = this.errorCounter;
+        return existing != null ? existing : createErrorCounter(desc);
+    }
+
+    private synchronized Labelled<ErrorCounter> createErrorCounter(Optional<String> desc) {
         if (this.errorCounter == null) {
             final String adjustedName = metricNamePrefix + "errors";
             final String description = desc.orElse( firstNonNull( descriptionMappings.getProperty(adjustedName), adjustedName) );
-            this.errorCounter = registerPrometheusMetric( io.prometheus.client.Counter.build().name(adjustedName).help(description).labelNames("error_type").create(), registry);
+            this.errorCounter = MetricBuilder.labelled(ErrorCounter.class, Collector.Type.COUNTER, new String[]{"error_type"},
+                    highContentionMode ? MetricBuilder.STRIPED_ERROR_COUNTERS : MetricBuilder.ERROR_COUNTERS, cardinalityLimit, this::onSeriesDropped)
+                    .newMetric(adjustedName, description, registryRegistrar);
         }
         return this.errorCounter;
     }
 
+    private void onSeriesDropped(final String metricName) {
+        getSeriesDroppedCounter().labels(metricName).inc();
+    }
+
+    private synchronized io.prometheus.client.Counter getSeriesDroppedCounter() {
+        if (this.seriesDroppedCounter == null) {
+            this.seriesDroppedCounter = registerPrometheusMetric( io.prometheus.client.Counter.build()
+                    .name(metricNamePrefix + "label_series_dropped")
+                    .help("Labelled series evicted, or folded into 'other', by cardinality limits")
+                    .labelNames("metric")
+                    .create() );
+        }
+        return this.seriesDroppedCounter;
+    }
+
+    private synchronized io.prometheus.client.Counter getSnapshotFailuresCounter() {
+        if (this.snapshotFailuresCounter == null) {
+            this.snapshotFailuresCounter = registerPrometheusMetric( io.prometheus.client.Counter.build()
+                    .name(metricNamePrefix + "snapshot_save_failures")
+                    .help("Scheduled saves of the metric snapshot file that failed")
+                    .create() );
+        }
+        return this.snapshotFailuresCounter;
+    }
+
+    // Where a newly-built collector goes: straight into the registry, or under a labelled family
+    private interface Registrar {
+        <C extends Collector> C register(C collector);
+
+        // The labels the collector is registered under, for backends that store labelled values themselves
+        default List<String> labelNames() {
+            return Collections.emptyList();
+        }
+
+        default List<String> labelValues() {
+            return Collections.emptyList();
+        }
+
+        // Counters and histograms: also saved to, and restored from, any snapshot file
+        default <C extends Collector & Checkpointable> C registerCheckpointed(final C collector) {
+            register(collector);
+            track(collector, labelNames(), labelValues());
+            return collector;
+        }
+
+        default void track(final Checkpointable metric, final List<String> labelNames, final List<String> labelValues) {
+        }
+
+        // A series that's gone for good, e.g. evicted by a CardinalityLimit, so no longer saved
+        default void untrack(final String name, final List<String> labelNames, final List<String> labelValues) {
+        }
+    }
+
     private interface MetricBuilder<T extends Metric> {
         MetricBuilder<Counter> COUNTERS = new MetricBuilder<Counter>() {
             @Override
-            public Counter newMetric(final String name, final String desc, final CollectorRegistry registry) {
-                return new Counter( registerPrometheusMetric(io.prometheus.client.Counter.build().name(name).help(desc).create(), registry) );
+            public Counter newMetric(final String name, final String desc, final Registrar registrar) {
+                return new Counter( registrar.registerCheckpointed( AdderMetric.counter(name, desc) ) );
             }
 
             @Override
@@ -158,58 +750,213 @@ public class PrometheusMetrics {
             }
         };
 
-        MetricBuilder<Gauge> GAUGES = new MetricBuilder<Gauge>() {
+        MetricBuilder<Counter> STRIPED_COUNTERS = new MetricBuilder<Counter>() {
             @Override
-            public Gauge newMetric(final String name, final String desc, final CollectorRegistry registry) {
-                return new Gauge( registerPrometheusMetric( io.prometheus.client.Gauge.build().name(name).help(desc).create(), registry) );
+            public Counter newMetric(final String name, final String desc, final Registrar registrar) {
+                return new Counter( registrar.registerCheckpointed( StripedMetric.counter(name, desc) ) );
             }
 
             @Override
             public boolean isInstance(Metric metric) {
-                return metric instanceof Gauge;
+                return metric instanceof Counter;
             }
         };
 
-        MetricBuilder<Histogram> HISTOGRAMS = new MetricBuilder<Histogram>() {
+        MetricBuilder<ErrorCounter> ERROR_COUNTERS = new MetricBuilder<ErrorCounter>() {
             @Override
-            public Histogram newMetric(final String name, final String desc, final CollectorRegistry registry) {
-                return new Histogram( registerPrometheusMetric( io.prometheus.client.Histogram.build().name(name).help(desc).create(), registry) );
+            public ErrorCounter newMetric(final String name, final String desc, final Registrar registrar) {
+                return new ErrorCounter( registrar.registerCheckpointed( AdderMetric.counter(name, desc) ) );
             }
 
             @Override
             public boolean isInstance(Metric metric) {
-                return metric instanceof Histogram;
+                return metric instanceof ErrorCounter;
             }
         };
 
-        MetricBuilder<Summary> SUMMARIES = new MetricBuilder<Summary>() {
+        MetricBuilder<ErrorCounter> STRIPED_ERROR_COUNTERS = new MetricBuilder<ErrorCounter>() {
             @Override
-            public Summary newMetric(final String name, final String desc, final CollectorRegistry registry) {
-                return new Summary( registerPrometheusMetric( io.prometheus.client.Summary.build()
-                        .name(name)
-                        .help(desc)
-                        .quantile(0.5, 0.01)    // Median
-                        .quantile(0.75, 0.01)   // 75th percentile (1% tolerated error)
-                        .quantile(0.9, 0.01)    // 90th percentile
-                        .quantile(0.95, 0.01)   // 95th percentile
-                        .quantile(0.99, 0.01)   // 99th percentile
-                        .quantile(0.999, 0.01)  // 99.9th percentile
-                        .create(), registry) );
+            public ErrorCounter newMetric(final String name, final String desc, final Registrar registrar) {
+                return new ErrorCounter( registrar.registerCheckpointed( StripedMetric.counter(name, desc) ) );
             }
 
             @Override
             public boolean isInstance(Metric metric) {
-                return metric instanceof Summary;
+                return metric instanceof ErrorCounter;
             }
         };
 
-        T newMetric(String name, String desc, final CollectorRegistry registry);
+        MetricBuilder<Gauge> GAUGES = new MetricBuilder<Gauge>() {
+            @Override
+            public Gauge newMetric(final String name, final String desc, final Registrar registrar) {
+                return new Gauge( registrar.register( AdderMetric.gauge(name, desc) ) );
+            }
+
+            @Override
+            public boolean isInstance(Metric metric) {
+                return metric instanceof Gauge;
+            }
+        };
+
+        MetricBuilder<Gauge> STRIPED_GAUGES = new MetricBuilder<Gauge>() {
+            @Override
+            public Gauge newMetric(final String name, final String desc, final Registrar registrar) {
+                return new Gauge( registrar.register( StripedMetric.gauge(name, desc) ) );
+            }
+
+            @Override
+            public boolean isInstance(Metric metric) {
+                return metric instanceof Gauge;
+            }
+        };
+
+        MetricBuilder<Histogram> HISTOGRAMS = histograms( HistogramBuckets.defaults(), BufferedRecording.OFF, TimerClock.precise() );
+
+        static MetricBuilder<Counter> bufferedCounters(final boolean striped, final BufferedRecording recording) {
+            return new MetricBuilder<Counter>() {
+                @Override
+                public Counter newMetric(final String name, final String desc, final Registrar registrar) {
+                    final ValueMetric shared = striped ? StripedMetric.counter(name, desc) : AdderMetric.counter(name, desc);
+                    final BufferedAccumulator buffered = new BufferedAccumulator(shared, recording.flushIntervalNanos);
+                    registrar.registerCheckpointed( new BufferedCollector(shared, buffered) );
+                    return new Counter(buffered);
+                }
+
+                @Override
+                public boolean isInstance(Metric metric) {
+                    return metric instanceof Counter;
+                }
+            };
+        }
+
+        static MetricBuilder<Histogram> histograms(final HistogramBuckets buckets, final BufferedRecording recording, final TimerClock clock) {
+            return new MetricBuilder<Histogram>() {
+                @Override
+                public Histogram newMetric(final String name, final String desc, final Registrar registrar) {
+                    final BucketedHistogram shared = buckets.kind == HistogramBuckets.Kind.SPARSE
+                            ? new SparseHistogram(name, desc, buckets.subBucketBits)
+                            : new FixedHistogram(name, desc, buckets.bounds);
+                    if (!recording.buffered) {
+                        return new Histogram( registrar.registerCheckpointed(shared), clock.nanoTime );
+                    }
+
+                    final BufferedHistogram buffered = new BufferedHistogram(shared, recording.flushIntervalNanos);
+                    registrar.registerCheckpointed( new BufferedCollector(shared, buffered) );
+                    return new Histogram(buffered, clock.nanoTime);
+                }
+
+                @Override
+                public boolean isInstance(Metric metric) {
+                    return metric instanceof Histogram;
+                }
+            };
+        }
+
+        static MetricBuilder<Histogram> sharedHistograms(final MappedStore store, final HistogramBuckets buckets, final TimerClock clock) {
+            checkArgument(buckets.kind == HistogramBuckets.Kind.FIXED, "Only histograms with fixed buckets can be kept in shared memory");
+            return new MetricBuilder<Histogram>() {
+                @Override
+                public Histogram newMetric(final String name, final String desc, final Registrar registrar) {
+                    return new Histogram( registrar.registerCheckpointed( new MappedHistogram(store, name, desc, buckets.bounds, registrar.labelNames(), registrar.labelValues()) ), clock.nanoTime );
+                }
+
+                @Override
+                public boolean isInstance(Metric metric) {
+                    return metric instanceof Histogram;
+                }
+            };
+        }
+
+        // Counters or gauges
+        static <T extends Metric> MetricBuilder<T> sharedValues(final MappedStore store, final Collector.Type type, final Function<Accumulator,T> wrapper) {
+            final Class<?> metricType = type == Collector.Type.COUNTER ? Counter.class : Gauge.class;
+            return new MetricBuilder<T>() {
+                @Override
+                public T newMetric(final String name, final String desc, final Registrar registrar) {
+                    final MappedMetric metric = type == Collector.Type.COUNTER
+                            ? MappedMetric.counter(store, name, desc, registrar.labelNames(), registrar.labelValues())
+                            : MappedMetric.gauge(store, name, desc, registrar.labelNames(), registrar.labelValues());
+                    return wrapper.apply( type == Collector.Type.COUNTER ? registrar.registerCheckpointed(metric) : registrar.register(metric) );
+                }
+
+                @Override
+                public boolean isInstance(Metric metric) {
+                    return metricType.isInstance(metric);
+                }
+            };
+        }
+
+        MetricBuilder<Summary> SUMMARIES = summaries( QuantileEngine.ckms(), TimerClock.precise() );
+
+        static MetricBuilder<Summary> summaries(final QuantileEngine engine, final TimerClock clock) {
+            return new MetricBuilder<Summary>() {
+                @Override
+                public Summary newMetric(final String name, final String desc, final Registrar registrar) {
+                    if (engine.kind == QuantileEngine.Kind.HDR) {
+                        return new Summary( registrar.register( new HdrSummary(name, desc, engine.significantDigits, engine.quantiles) ), clock.nanoTime );
+                    }
+
+                    final io.prometheus.client.Summary.Builder builder = io.prometheus.client.Summary.build().name(name).help(desc);
+                    for (double quantile : engine.quantiles) {
+                        builder.quantile(quantile, engine.tolerance);
+                    }
+                    return new Summary( registrar.register( builder.create() )::observe, clock.nanoTime );
+                }
+
+                @Override
+                public boolean isInstance(Metric metric) {
+                    return metric instanceof Summary;
+                }
+            };
+        }
+
+        // Family registered as a whole, each child built by childBuilder but registered under the family instead
+        static <C extends Metric> MetricBuilder<Labelled<C>> labelled(final Class<C> childType, final Collector.Type type, final String[] labelNames, final MetricBuilder<C> childBuilder,
+                                                                      final CardinalityLimit limit, final Consumer<String> onSeriesDropped) {
+            return new MetricBuilder<Labelled<C>>() {
+                @Override
+                public Labelled<C> newMetric(final String name, final String desc, final Registrar registrar) {
+                    final LabelledCollector collector = registrar.register( new LabelledCollector(name, desc, type, labelNames) );
+
+                    return new Labelled<>(childType, name, collector, labelValues -> childBuilder.newMetric(name, desc, new Registrar() {
+                        @Override
+                        public <X extends Collector> X register(final X child) {
+                            collector.addChild(labelValues, child);
+                            return child;
+                        }
+
+                        @Override
+                        public List<String> labelNames() {
+                            return collector.getLabelNames();
+                        }
+
+                        @Override
+                        public List<String> labelValues() {
+                            return Arrays.asList(labelValues);
+                        }
+
+                        @Override
+                        public void track(final Checkpointable metric, final List<String> names, final List<String> values) {
+                            registrar.track(metric, names, values);
+                        }
+                    }), limit, onSeriesDropped, labelValues -> registrar.untrack(name, collector.getLabelNames(), Arrays.asList(labelValues)));
+                }
+
+                @Override
+                public boolean isInstance(Metric metric) {
+                    return metric instanceof Labelled && ((Labelled<?>) metric).childType == childType;
+                }
+            };
+        }
+
+        T newMetric(String name, String desc, Registrar registrar);
         boolean isInstance(Metric metric);
     }
 
-    private static <T extends Collector> T registerPrometheusMetric(final T metric, CollectorRegistry registry) {
+    private <T extends Collector> T registerPrometheusMetric(final T metric) {
         try {
             registry.register(metric);
+            collectors.add(metric);
         }
         catch (IllegalArgumentException e) {  // NOSONAR
             // Collector already registered - we ignore this
@@ -225,105 +972,151 @@ public class PrometheusMetrics {
 
     public static class Counter implements Metric  {
 
-        final private io.prometheus.client.Counter promMetric;
+        final private Accumulator accumulator;
 
-        Counter(final io.prometheus.client.Counter promMetric) {
-            this.promMetric = promMetric;
+        Counter(final Accumulator accumulator) {
+            this.accumulator = accumulator;
         }
 
         public void inc() {
-            this.promMetric.inc();
+            this.accumulator.add(1);
         }
 
         public void inc(double incr) {
-            this.promMetric.inc(incr);
+            this.accumulator.add(incr);
         }
     }
 
     public static class Gauge implements Metric  {
 
-        final private io.prometheus.client.Gauge promMetric;
+        final private Accumulator accumulator;
 
-        Gauge(final io.prometheus.client.Gauge promMetric) {
-            this.promMetric = promMetric;
+        Gauge(final Accumulator accumulator) {
+            this.accumulator = accumulator;
         }
 
         public void inc() {
-            this.promMetric.inc();
+            this.accumulator.add(1);
         }
 
         public void inc(double incr) {
-            this.promMetric.inc(incr);
+            this.accumulator.add(incr);
         }
 
         public void dec() {
-            this.promMetric.dec();
+            this.accumulator.add(-1);
         }
 
         public void dec(double incr) {
-            this.promMetric.dec(incr);
+            this.accumulator.add(-incr);
         }
     }
 
     public static class ErrorCounter implements Metric  {
 
-        final private io.prometheus.client.Counter.Child promMetric;
+        final private Accumulator accumulator;
 
-        ErrorCounter(final io.prometheus.client.Counter.Child promMetric) {
-            this.promMetric = promMetric;
+        ErrorCounter(final Accumulator accumulator) {
+            this.accumulator = accumulator;
+        }
+
+        void increment() {
+            this.accumulator.add(1);
         }
 
         public double count() {
-            return this.promMetric.get();
+            return this.accumulator.get();
         }
     }
 
-    public static class Summary implements Metric  {
+    // Timing for summaries and histograms. All of it reads the metric's TimerClock and holds no locks, and each
+    // call costs one small TimerContext, which doubles as the completion callback for async work, so no lambda is
+    // captured per call.
+    public abstract static class Timed implements Metric {
 
-        final private io.prometheus.client.Summary promMetric;
+        final private Distribution distribution;
+        final private LongSupplier clock;
 
-        Summary(final io.prometheus.client.Summary promMetric) {
-            this.promMetric = promMetric;
+        Timed(final Distribution distribution, final LongSupplier clock) {
+            this.distribution = distribution;
+            this.clock = clock;
         }
 
-        public Summary update(double value) {
-            return observe(value);
-        }
-
-        public Summary observe(double value) {
-            this.promMetric.observe(value);
-            return this;
+        void record(double value) {
+            this.distribution.observe(value);
         }
 
+        // May be closed from any thread, e.g. in a reactive completion callback
         public Context time() {
-            return new TimerContext( promMetric.startTimer() );
+            return new TimerContext(distribution, clock);
         }
 
-        private static class TimerContext implements Context {
+        public void time(final Runnable task) {
+            try (Context ignored = time()) {
+                task.run();
+            }
+        }
 
-            final io.prometheus.client.Summary.Timer requestTimer;
+        public <T> T time(final Supplier<T> task) {
+            try (Context ignored = time()) {
+                return task.get();
+            }
+        }
 
-            TimerContext(final io.prometheus.client.Summary.Timer requestTimer) {
-                this.requestTimer = requestTimer;
+        public <T> T timeCallable(final Callable<T> task) throws Exception {
+            try (Context ignored = time()) {
+                return task.call();
             }
+        }
 
-            @Override
-            public void close() {
-                requestTimer.close();
+        // From now until the returned stage completes, normally or not, e.g. timeAsync(() -> client.sendAsync(request))
+        public <T, S extends CompletionStage<T>> S timeAsync(final Supplier<S> operation) {
+            final TimerContext timer = new TimerContext(distribution, clock);
+            final S stage;
+            try {
+                stage = operation.get();
             }
+            catch (RuntimeException | Error e) {
+                timer.close();
+                throw e;
+            }
+            stage.whenComplete(timer);
+            return stage;
+        }
+
+        // From now until the callback is called, e.g. stage.whenComplete( histogram.timeCompletion() ). Single use:
+        // only the first call is timed, so passing it to several stages times whichever completes first.
+        public BiConsumer<Object,Throwable> timeCompletion() {
+            final TimerContext timer = new TimerContext(distribution, clock);
+            final AtomicBoolean called = new AtomicBoolean();
+            return (result, failure) -> {
+                if (called.compareAndSet(false, true)) {
+                    timer.close();
+                }
+            };
         }
     }
 
-    public static class Histogram implements Metric  {
+    public static class Summary extends Timed {
+
+        Summary(final Distribution distribution, final LongSupplier clock) {
+            super(distribution, clock);
+        }
 
-        final private io.prometheus.client.Histogram promMetric;
+        public Summary update(double value) {
+            return observe(value);
+        }
 
-        Histogram(final io.prometheus.client.Histogram promMetric) {
-            this.promMetric = promMetric;
+        public Summary observe(double value) {
+            record(value);
+            return this;
         }
+    }
 
-        public Context time() {
-            return new TimerContext( promMetric.startTimer() );
+    public static class Histogram extends Timed {
+
+        Histogram(final Distribution distribution, final LongSupplier clock) {
+            super(distribution, clock);
         }
 
         public Histogram update(double value) {
@@ -331,21 +1124,266 @@ public class PrometheusMetrics {
         }
 
         public Histogram observe(double value) {
-            this.promMetric.observe(value);
+            record(value);
             return this;
         }
+    }
+
+    // One small final object per time(), rather than a separate Prometheus Timer. Cheap enough for HotSpot to
+    // scalar-replace in a try-with-resources.
+    private static final class TimerContext implements Context, BiConsumer<Object,Throwable> {
+
+        private static final double NANOS_PER_SECOND = 1E9;
+
+        private final Distribution distribution;
+        private final LongSupplier clock;
+        private final long start;
+
+        TimerContext(final Distribution distribution, final LongSupplier clock) {
+            this.distribution = distribution;
+            this.clock = clock;
+            this.start = clock.getAsLong();
+        }
+
+        @Override
+        public void close() {
+            distribution.observe((clock.getAsLong() - start) / NANOS_PER_SECOND);
+        }
+
+        @Override
+        public void accept(final Object result, final Throwable failure) {
+            close();
+        }
+    }
 
-        private static class TimerContext implements Context {
+    // A labelled metric family. Lookups with one to three label values walk a map per label, so a repeat tuple
+    // costs no array allocation and no hashing beyond each String's cached hash code. New tuples are added under
+    // the family's lock, which is also where any CardinalityLimit is enforced.
+    public static class Labelled<T> implements Metric {
+
+        private static final String OVERFLOW_LABEL_VALUE = "other";
+
+        private final Class<T> childType;
+        private final String name;
+        private final LabelledCollector collector;
+        private final Function<String[],T> childFactory;
+        private final Consumer<String> onSeriesDropped;
+        private final Consumer<String[]> onSeriesEvicted;
+        private final int labelCount;
+        private final ConcurrentMap<String,Object> children = new ConcurrentHashMap<>();  // Leaves are Series
+
+        // Guarded by this. Insertion-ordered, so that ties in age evict the oldest series first
+        private final Map<List<String>,Series<T>> allSeries = new LinkedHashMap<>();
+        private CardinalityLimit limit;
+
+        // When folding: tuples already folded into "other", kept in children (pointing at the overflow series) so that
+        // later lookups are lock-free and each tuple is only counted as dropped once. Up to limit.maxSeries of them;
+        // past that, saturatedOverflow is set and anything new goes straight to it, lock-free but uncounted.
+        private final List<String[]> foldedTuples = new ArrayList<>();
+        private volatile Series<T> saturatedOverflow;
+
+        // Bumped once per eviction round. Lookups copy it into their Series, which gives us an approximate LRU
+        // without any shared writes on the lookup path. Racy reads are fine.
+        private int epoch;
+
+        Labelled(final Class<T> childType, final String name, final LabelledCollector collector, final Function<String[],T> childFactory,
+                 final CardinalityLimit limit, final Consumer<String> onSeriesDropped, final Consumer<String[]> onSeriesEvicted) {
+            this.childType = childType;
+            this.name = name;
+            this.collector = collector;
+            this.childFactory = childFactory;
+            this.limit = limit;
+            this.onSeriesDropped = onSeriesDropped;
+            this.onSeriesEvicted = onSeriesEvicted;
+            this.labelCount = collector.getLabelNames().size();
+        }
 
-            final io.prometheus.client.Histogram.Timer requestTimer;
+        public synchronized void setCardinalityLimit(final CardinalityLimit limit) {
+            this.limit = checkNotNull(limit);
 
-            TimerContext(final io.prometheus.client.Histogram.Timer requestTimer) {
-                this.requestTimer = requestTimer;
+            // Folded tuples may fit now, so look at them afresh
+            for (String[] each : foldedTuples) {
+                removeNode(each);
             }
+            foldedTuples.clear();
+            saturatedOverflow = null;
+        }
 
-            @Override
-            public void close() {
-                requestTimer.observeDuration();
+        @SuppressWarnings("unchecked")
+        public T labels(String value) {
+            if (labelCount == 1) {
+                final Series<T> series = (Series<T>) children.get(value);
+                if (series != null) {
+                    return touch(series);
+                }
+            }
+            return newChild(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        public T labels(String value1, String value2) {
+            if (labelCount == 2) {
+                final ConcurrentMap<String,Object> level = (ConcurrentMap<String,Object>) children.get(value1);
+                final Series<T> series = level != null ? (Series<T>) level.get(value2) : null;
+                if (series != null) {
+                    return touch(series);
+                }
+            }
+            return newChild(value1, value2);
+        }
+
+        @SuppressWarnings("unchecked")
+        public T labels(String value1, String value2, String value3) {
+            if (labelCount == 3) {
+                final ConcurrentMap<String,Object> level1 = (ConcurrentMap<String,Object>) children.get(value1);
+                final ConcurrentMap<String,Object> level2 = level1 != null ? (ConcurrentMap<String,Object>) level1.get(value2) : null;
+                final Series<T> series = level2 != null ? (Series<T>) level2.get(value3) : null;
+                if (series != null) {
+                    return touch(series);
+                }
+            }
+            return newChild(value1, value2, value3);
+        }
+
+        public T labels(String... values) {
+            if (values.length == labelCount) {
+                final Series<T> series = find(values);
+                if (series != null) {
+                    return touch(series);
+                }
+            }
+            return newChild(values);
+        }
+
+        private T touch(final Series<T> series) {
+            final int current = epoch;
+            if (series.epoch != current) {
+                series.epoch = current;
+            }
+            return series.child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Series<T> find(final String... values) {
+            Object node = children;
+            for (int i = 0; node != null && i < values.length; i++) {
+                node = ((ConcurrentMap<String,Object>) node).get(values[i]);
+            }
+            return (Series<T>) node;
+        }
+
+        private T newChild(final String... values) {
+            final Series<T> saturated = saturatedOverflow;
+            if (saturated != null && values.length == labelCount) {
+                return saturated.child;
+            }
+            return addChild(values);
+        }
+
+        private synchronized T addChild(final String... values) {
+            if (values.length != labelCount) {
+                throw new IllegalArgumentException("Incorrect number of labels.");
+            }
+
+            final Series<T> existing = find(values);
+            if (existing != null) {
+                return touch(existing);
+            }
+
+            if (allSeries.size() >= limit.maxSeries) {
+                if (!limit.evict) {
+                    return fold(values).child;
+                }
+                evictLeastRecentlyUsed();
+            }
+
+            return addSeries(values).child;
+        }
+
+        private Series<T> fold(final String[] values) {
+            final Series<T> overflow = overflowSeries();
+            if (foldedTuples.size() < limit.maxSeries) {
+                final String[] copy = values.clone();
+                putNode(copy, overflow);
+                foldedTuples.add(copy);
+                onSeriesDropped.accept(name);
+            } else {
+                saturatedOverflow = overflow;
+            }
+            return overflow;
+        }
+
+        private Series<T> overflowSeries() {
+            final String[] values = new String[labelCount];
+            Arrays.fill(values, OVERFLOW_LABEL_VALUE);
+
+            final Series<T> existing = find(values);
+            return existing != null ? existing : addSeries(values);
+        }
+
+        // Callers holding on to an evicted child can still update it, but it's no longer scraped
+        private void evictLeastRecentlyUsed() {
+            final List<Series<T>> byAge = new ArrayList<>( allSeries.values() );
+            byAge.sort( Comparator.comparingInt(series -> series.epoch) );
+
+            final int target = limit.maxSeries - Math.max(1, limit.maxSeries / 10);
+            for (int i = 0; allSeries.size() > target && i < byAge.size(); i++) {
+                removeSeries( byAge.get(i) );
+                onSeriesEvicted.accept( byAge.get(i).labelValues );
+                onSeriesDropped.accept(name);
+            }
+            epoch++;
+        }
+
+        private Series<T> addSeries(final String[] values) {
+            final String[] copy = values.clone();
+            final Series<T> series = new Series<>( childFactory.apply(copy), copy, epoch);
+            putNode(copy, series);
+            allSeries.put( Arrays.asList(copy), series);
+            return series;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void putNode(final String[] values, final Series<T> series) {
+            ConcurrentMap<String,Object> level = children;
+            for (int i = 0; i < values.length - 1; i++) {
+                level = (ConcurrentMap<String,Object>) level.computeIfAbsent( checkNotNull(values[i]), k -> new ConcurrentHashMap<String,Object>());
+            }
+            level.put( checkNotNull(values[values.length - 1]), series);
+        }
+
+        private void removeSeries(final Series<T> series) {
+            removeNode(series.labelValues);
+            allSeries.remove( Arrays.asList(series.labelValues) );
+            collector.removeChild(series.labelValues);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void removeNode(final String[] values) {
+            // Walk down, remembering each level so that emptied ones can be pruned on the way back up
+            final List<ConcurrentMap<String,Object>> levels = new ArrayList<>(values.length);
+            ConcurrentMap<String,Object> level = children;
+            for (int i = 0; i < values.length - 1; i++) {
+                levels.add(level);
+                level = (ConcurrentMap<String,Object>) level.get(values[i]);
+            }
+
+            level.remove(values[values.length - 1]);
+            for (int i = values.length - 2; i >= 0 && level.isEmpty(); i--) {
+                levels.get(i).remove(values[i]);
+                level = levels.get(i);
+            }
+        }
+
+        private static final class Series<T> {
+            final T child;
+            final String[] labelValues;
+            int epoch;
+
+            Series(final T child, final String[] labelValues, final int epoch) {
+                this.child = child;
+                this.labelValues = labelValues;
+                this.epoch = epoch;
             }
         }
     }
@@ -0,0 +1,68 @@
+package uk.co.crunch.api;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Where, and how often, a short-lived job pushes its metrics, for when it won't be around long enough to be scraped.
+// Immutable: each with...() returns a copy.
+public final class PushGateway {
+
+    final String host;
+    final int port;
+    final String job;
+    final Map<String,String> grouping;
+    final long intervalNanos;
+    final long initialBackoffNanos;
+    final long maxBackoffNanos;
+    final int maxBytes;
+
+    private PushGateway(final String host, final int port, final String job, final Map<String,String> grouping, final long intervalNanos,
+                        final long initialBackoffNanos, final long maxBackoffNanos, final int maxBytes) {
+        this.host = host;
+        this.port = port;
+        this.job = job;
+        this.grouping = grouping;
+        this.intervalNanos = intervalNanos;
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+        this.maxBytes = maxBytes;
+    }
+
+    // Every 15 seconds, retrying failures after 1s, 2s, 4s... up to a minute, holding at most 16MB of encoded metrics
+    public static PushGateway to(final String host, final int port, final String job) {
+        checkArgument(port > 0 && port < 65536, "Invalid port " + port);
+        checkArgument(!checkNotNull(job).isEmpty(), "Job must not be empty");
+        return new PushGateway(checkNotNull(host), port, job, Collections.emptyMap(), TimeUnit.SECONDS.toNanos(15),
+                               TimeUnit.SECONDS.toNanos(1), TimeUnit.MINUTES.toNanos(1), 16 << 20);
+    }
+
+    // Extra grouping key labels after the job, e.g. withGrouping("instance", hostname)
+    public PushGateway withGrouping(final String labelName, final String labelValue) {
+        checkArgument(!checkNotNull(labelName).isEmpty() && !labelName.equals("job"), "Invalid grouping label '" + labelName + "'");
+        final Map<String,String> labels = new LinkedHashMap<>(grouping);
+        labels.put(labelName, checkNotNull(labelValue));
+        return new PushGateway(host, port, job, Collections.unmodifiableMap(labels), intervalNanos, initialBackoffNanos, maxBackoffNanos, maxBytes);
+    }
+
+    public PushGateway withInterval(final long interval, final TimeUnit unit) {
+        checkArgument(interval > 0, "Push interval must be positive");
+        return new PushGateway(host, port, job, grouping, unit.toNanos(interval), initialBackoffNanos, maxBackoffNanos, maxBytes);
+    }
+
+    // After a failed push, wait around initial (then twice that, and so on, up to max) before trying again
+    public PushGateway withRetryBackoff(final long initial, final long max, final TimeUnit unit) {
+        checkArgument(initial > 0 && max >= initial, "Backoff must be positive, and max at least initial");
+        return new PushGateway(host, port, job, grouping, intervalNanos, unit.toNanos(initial), unit.toNanos(max), maxBytes);
+    }
+
+    // Cap on encoded metrics held, between and during pushes, across all groupings. Groupings that don't fit aren't pushed.
+    public PushGateway withMaxBytes(final int maxBytes) {
+        checkArgument(maxBytes >= 16 * 1024, "Max bytes must be at least 16KB");
+        return new PushGateway(host, port, job, grouping, intervalNanos, initialBackoffNanos, maxBackoffNanos, maxBytes);
+    }
+}
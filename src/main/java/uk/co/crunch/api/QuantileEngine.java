@@ -0,0 +1,46 @@
+package uk.co.crunch.api;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Which implementation backs PrometheusMetrics.summary(), and which quantiles it reports
+public final class QuantileEngine {
+
+    // 50%, 75%, 90%, 95%, 99%, 99.9%
+    private static final double[] DEFAULT_QUANTILES = {0.5, 0.75, 0.9, 0.95, 0.99, 0.999};
+
+    enum Kind {
+        CKMS, HDR
+    }
+
+    final Kind kind;
+    final double[] quantiles;
+    final double tolerance;       // CKMS only
+    final int significantDigits;  // HDR only
+
+    private QuantileEngine(final Kind kind, final double[] quantiles, final double tolerance, final int significantDigits) {
+        this.kind = kind;
+        this.quantiles = quantiles.clone();
+        this.tolerance = tolerance;
+        this.significantDigits = significantDigits;
+    }
+
+    // simpleclient's CKMS summary with the default quantiles and 1% tolerated error
+    public static QuantileEngine ckms() {
+        return ckms(0.01, DEFAULT_QUANTILES);
+    }
+
+    public static QuantileEngine ckms(final double tolerance, final double... quantiles) {
+        checkArgument(tolerance >= 0.0 && tolerance <= 1.0, "Tolerance must be between 0.0 and 1.0");
+        return new QuantileEngine(Kind.CKMS, quantiles, tolerance, 0);
+    }
+
+    // Wait-free HdrHistogram recorder with the default quantiles, accurate to two significant digits
+    public static QuantileEngine hdr() {
+        return hdr(2, DEFAULT_QUANTILES);
+    }
+
+    public static QuantileEngine hdr(final int significantDigits, final double... quantiles) {
+        checkArgument(significantDigits >= 0 && significantDigits <= 5, "Significant digits must be between 0 and 5");
+        return new QuantileEngine(Kind.HDR, quantiles, 0.0, significantDigits);
+    }
+}
@@ -0,0 +1,45 @@
+package uk.co.crunch.api;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.impl.metrics.MappedStore;
+import uk.co.crunch.impl.metrics.MappedStoreAggregator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Off-heap values for several worker processes on one host behind a single scrape target. Each worker keeps its
+// counters, gauges and histograms in its own memory-mapped file in a shared directory, and one exporter process
+// registers aggregate(directory), which reads them all in place and adds them up.
+public final class SharedMemoryStore {
+
+    private static final int DEFAULT_CAPACITY = 4 << 20;
+
+    final MappedStore store;
+
+    private SharedMemoryStore(final MappedStore store) {
+        this.store = store;
+    }
+
+    // <directory>/<pid>.metrics, with room for roughly 40,000 values
+    public static SharedMemoryStore open(final Path directory) throws IOException {
+        final String runtimeName = ManagementFactory.getRuntimeMXBean().getName();  // pid@host on HotSpot
+        final int at = runtimeName.indexOf('@');
+        return open(directory, at > 0 ? runtimeName.substring(0, at) : runtimeName, DEFAULT_CAPACITY);
+    }
+
+    // Any existing file for this worker id is replaced, so a restarted worker starts from zero
+    public static SharedMemoryStore open(final Path directory, final String workerId, final int capacityBytes) throws IOException {
+        checkArgument(checkNotNull(workerId).matches("[A-Za-z0-9_.@-]+"), "Worker id must be letters, digits, '_', '.', '@' or '-'");
+        checkArgument(capacityBytes >= 4096, "Capacity must be at least 4096 bytes");
+        return new SharedMemoryStore( MappedStore.create(checkNotNull(directory), workerId, capacityBytes) );
+    }
+
+    // Register in the exporter's registry. Every worker's file in the directory, summed by sample and labels.
+    public static Collector aggregate(final Path directory) {
+        return new MappedStoreAggregator( checkNotNull(directory) );
+    }
+}
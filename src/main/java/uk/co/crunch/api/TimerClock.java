@@ -0,0 +1,41 @@
+package uk.co.crunch.api;
+
+import uk.co.crunch.impl.metrics.CoarseClock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Where summary and histogram timers read the time from, in nanoseconds on any fixed origin
+public final class TimerClock {
+
+    private static final TimerClock PRECISE = new TimerClock(System::nanoTime);
+    private static final long MIN_COARSE_RESOLUTION_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    final LongSupplier nanoTime;
+
+    private TimerClock(final LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    // System.nanoTime() at both ends of every timing
+    public static TimerClock precise() {
+        return PRECISE;
+    }
+
+    // A time refreshed every resolution by a background thread, so reading it is one volatile load. Each timing can be
+    // out by up to a resolution, and anything much shorter mostly records as zero: for high-rate timers where the
+    // count and sum matter more than any one value. Clocks with the same resolution share their thread.
+    public static TimerClock coarse(final long resolution, final TimeUnit unit) {
+        final long resolutionNanos = unit.toNanos(resolution);
+        checkArgument(resolutionNanos >= MIN_COARSE_RESOLUTION_NANOS, "Resolution must be at least 1ms");
+        return new TimerClock( CoarseClock.withResolution(resolutionNanos) );
+    }
+
+    // Any other source, e.g. a counter stepped by tests for exactly repeatable timings
+    public static TimerClock of(final LongSupplier nanoTime) {
+        return new TimerClock( checkNotNull(nanoTime) );
+    }
+}
@@ -0,0 +1,122 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.api.PrometheusVersion;
+import uk.co.crunch.benchmarks.legacy.JtwigRulesGenerator;
+import uk.co.crunch.benchmarks.legacy.SnakeYamlRulesGenerator;
+import uk.co.crunch.impl.AlertRulesGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+// Generating a large rules file with the streaming writers, against the Jtwig and SnakeYAML generators they
+// replaced. Run with "-prof gc" to see the allocation difference too.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class AlertRulesBenchmarks {
+
+    private static final int RULES = 10000;
+
+    AlertRule[] rules = new AlertRule[RULES];
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < RULES; i++) {
+            rules[i] = new Rule(i);
+        }
+    }
+
+    @Benchmark
+    public String yaml() {
+        return AlertRulesGenerator.buildRulesFile(PrometheusVersion.V2_X, "Bench", "bench.alerts", rules);
+    }
+
+    @Benchmark
+    public String snakeYaml() {
+        return SnakeYamlRulesGenerator.buildRulesFile("Bench", "bench.alerts", rules);
+    }
+
+    @Benchmark
+    public String rules1x() {
+        return AlertRulesGenerator.buildRulesFile(PrometheusVersion.V1_X, "Bench", "bench.alerts", rules);
+    }
+
+    @Benchmark
+    public String jtwig() {
+        return JtwigRulesGenerator.buildRulesFile("Bench", rules);
+    }
+
+    private static final class Rule implements AlertRule {
+        private final int i;
+
+        Rule(final int i) {
+            this.i = i;
+        }
+
+        @Override
+        public String name() {
+            return "requests-per-second.increase_" + i;
+        }
+
+        @Override
+        public String duration() {
+            return "5m";
+        }
+
+        @Override
+        public String[] metricNames() {
+            return new String[]{"requests per second " + i, "bench_errors_" + i};
+        }
+
+        @Override
+        public String rule() {
+            return "avg_over_time($1[1m]) / avg_over_time($1[24h]) * 100 > 150 and rate($2[5m]) > 0";
+        }
+
+        @Override
+        public Severity severity() {
+            return i % 2 == 0 ? Severity.PAGE : Severity.WARNING;
+        }
+
+        @Override
+        public Label[] labels() {
+            return new Label[0];
+        }
+
+        @Override
+        public String summary() {
+            return "Node {{ $labels.instance }} request rate has increased dramatically";
+        }
+
+        @Override
+        public String description() {
+            return "Node \"{{ $labels.instance }}\" has an abnormal increase in request rate: " + i;
+        }
+
+        @Override
+        public String confluenceLink() {
+            return "/PLAT/pages/" + i + "/Request+rate";
+        }
+
+        @Override
+        public Annotation[] annotations() {
+            return new Annotation[0];
+        }
+
+        @Override
+        public Class<? extends java.lang.annotation.Annotation> annotationType() {
+            return AlertRule.class;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Rule && ((Rule) other).i == i;
+        }
+
+        @Override
+        public int hashCode() {
+            return i;
+        }
+    }
+}
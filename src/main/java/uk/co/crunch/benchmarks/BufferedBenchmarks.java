@@ -0,0 +1,68 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.BufferedRecording;
+import uk.co.crunch.api.HistogramBuckets;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-message counters and histograms recorded directly, or into per-thread buffers flushed every second
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class BufferedBenchmarks {
+
+    @Param({"false", "true"})
+    boolean buffered;
+
+    PrometheusMetrics.Counter counter;
+    PrometheusMetrics.Histogram histogram;
+    PrometheusMetrics.Histogram sparseHistogram;
+
+    @Setup
+    public void setUp() {
+        final PrometheusMetrics metrics = new PrometheusMetrics();
+        metrics.setBufferedRecording( buffered ? BufferedRecording.flushedEvery(1, TimeUnit.SECONDS) : BufferedRecording.OFF );
+
+        counter = metrics.counter("messages");
+        histogram = metrics.histogram("message_bytes", HistogramBuckets.exponential(64, 4, 8));
+        sparseHistogram = metrics.histogram("message_latency", HistogramBuckets.sparse());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void counter01Thread() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counter04Threads() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void histogram01Thread() {
+        histogram.observe(1500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogram04Threads() {
+        histogram.observe(1500);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void sparseHistogram01Thread() {
+        sparseHistogram.observe(0.0042);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sparseHistogram04Threads() {
+        sparseHistogram.observe(0.0042);
+    }
+}
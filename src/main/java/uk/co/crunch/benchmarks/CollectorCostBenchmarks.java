@@ -0,0 +1,40 @@
+package uk.co.crunch.benchmarks;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.hotspot.GarbageCollectorExports;
+import io.prometheus.client.hotspot.MemoryPoolsExports;
+import io.prometheus.client.hotspot.ThreadExports;
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.PrometheusMetrics;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+
+import java.util.concurrent.TimeUnit;
+
+// What tracking the cost of each custom collector adds to a scrape of the usual hotspot collectors. Run with "-prof gc".
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class CollectorCostBenchmarks {
+
+    @Param({"false", "true"})
+    boolean tracked;
+
+    PrometheusMetrics metrics;
+    final ExpositionWriter writer = new ExpositionWriter();
+
+    @Setup
+    public void setUp() {
+        metrics = new PrometheusMetrics(new CollectorRegistry(), "bench");
+        metrics.setCollectorCostTracking(tracked);
+        metrics.registerCustomCollector( new MemoryPoolsExports() );
+        metrics.registerCustomCollector( new GarbageCollectorExports() );
+        metrics.registerCustomCollector( new ThreadExports() );
+    }
+
+    @Benchmark
+    public int scrape() {
+        writer.clear();
+        metrics.writeExposition(writer);
+        return writer.size();
+    }
+}
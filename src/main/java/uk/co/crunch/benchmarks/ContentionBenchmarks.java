@@ -0,0 +1,66 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+// Same counter/gauge hammered from 1-64 threads, with and without high-contention mode
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class ContentionBenchmarks {
+
+    @Param({"false", "true"})
+    boolean highContentionMode;
+
+    PrometheusMetrics.Counter counter;
+    PrometheusMetrics.Gauge gauge;
+
+    @Setup
+    public void setUp() {
+        final PrometheusMetrics metrics = new PrometheusMetrics();
+        metrics.setHighContentionMode(highContentionMode);
+
+        counter = metrics.counter("requests");
+        gauge = metrics.gauge("in_flight");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void counter01Thread() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counter04Threads() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void counter16Threads() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void counter64Threads() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void gauge16Threads() {
+        gauge.inc();
+        gauge.dec();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void gauge64Threads() {
+        gauge.inc();
+        gauge.dec();
+    }
+}
@@ -0,0 +1,53 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+// An error storm: every thread recording errors at once, against a single or a handful of error types
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class ErrorBenchmarks {
+
+    private static final String[] ERROR_TYPES = {"timeout", "salesforce", "stripe", "database", "validation"};
+
+    PrometheusMetrics metrics = new PrometheusMetrics();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void sameError01Thread(Blackhole blackhole) {
+        blackhole.consume( metrics.error("timeout") );
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sameError04Threads(Blackhole blackhole) {
+        blackhole.consume( metrics.error("timeout") );
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void sameError16Threads(Blackhole blackhole) {
+        blackhole.consume( metrics.error("timeout") );
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void sameError64Threads(Blackhole blackhole) {
+        blackhole.consume( metrics.error("timeout") );
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void mixedErrors16Threads(ThreadState state, Blackhole blackhole) {
+        blackhole.consume( metrics.error( ERROR_TYPES[state.next++ % ERROR_TYPES.length] ) );
+    }
+}
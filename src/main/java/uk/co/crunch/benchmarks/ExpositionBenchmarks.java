@@ -0,0 +1,81 @@
+package uk.co.crunch.benchmarks;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// One scrape of a large registry. Run with "-prof gc": the interesting number is the allocation per scrape
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class ExpositionBenchmarks {
+
+    @Param({"1000", "10000"})
+    int series;
+
+    CollectorRegistry registry;
+    PrometheusMetrics metrics;
+
+    @Setup
+    public void setUp() {
+        registry = new CollectorRegistry();
+        metrics = new PrometheusMetrics(registry, "bench");
+
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("requests", "path", "status");
+        for (int i = 0; i < series; i++) {
+            requests.labels("/api/v1/resource/" + i, String.valueOf(200 + i % 5)).inc(i);
+        }
+        for (int i = 0; i < 100; i++) {
+            metrics.counter("counter_" + i).inc(i);
+            metrics.gauge("gauge_" + i).inc(i + 0.5);
+        }
+    }
+
+    @Benchmark
+    public void streamingExposition() throws IOException {
+        metrics.writeExposition(DISCARD);
+    }
+
+    // Baseline: what the servlet does, collect() everything and write it through a Writer
+    @Benchmark
+    public void textFormatExposition() throws IOException {
+        final Writer writer = new OutputStreamWriter(DISCARD_STREAM, StandardCharsets.UTF_8);
+        TextFormat.write004(writer, registry.metricFamilySamples());
+        writer.flush();
+    }
+
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(final ByteBuffer src) {
+            final int written = src.remaining();
+            src.position( src.limit() );
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    };
+
+    private static final OutputStream DISCARD_STREAM = new OutputStream() {
+        @Override
+        public void write(final int b) {}
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {}
+    };
+}
@@ -0,0 +1,69 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+// Increments through a handle, as a generated <Interface>Handles class holds them, against looking up by name.
+// Main sources aren't run through MetricHandleProcessor, so this makes the same registerHandles() call itself.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class HandleBenchmarks {
+
+    PrometheusMetrics metrics = new PrometheusMetrics();
+    PrometheusMetrics.Counter handle;
+
+    @Setup
+    public void setUp() {
+        handle = (PrometheusMetrics.Counter) metrics.registerHandles(new Class<?>[]{PrometheusMetrics.Counter.class},
+                new String[]{"Requests.served"}, new String[]{"requests_served"}, new String[]{""})[0];
+    }
+
+    @Benchmark
+    public void handleIncrement() {
+        handle.inc();
+    }
+
+    @Benchmark
+    public void lookupIncrement() {
+        metrics.counter("Requests.served").inc();
+    }
+
+    // Startup cost: a fresh instance with 50 metrics, registered in one batch or one at a time
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public PrometheusMetrics batchRegistration() {
+        final PrometheusMetrics fresh = new PrometheusMetrics();
+        fresh.registerHandles(TYPES, NAMES, NORMALISED_NAMES, DESCRIPTIONS);
+        return fresh;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public PrometheusMetrics lazyRegistration() {
+        final PrometheusMetrics fresh = new PrometheusMetrics();
+        for (String each : NAMES) {
+            fresh.counter(each).inc();
+        }
+        return fresh;
+    }
+
+    private static final int BATCH = 50;
+    private static final Class<?>[] TYPES = new Class<?>[BATCH];
+    private static final String[] NAMES = new String[BATCH];
+    private static final String[] NORMALISED_NAMES = new String[BATCH];
+    private static final String[] DESCRIPTIONS = new String[BATCH];
+
+    static {
+        for (int i = 0; i < BATCH; i++) {
+            TYPES[i] = PrometheusMetrics.Counter.class;
+            NAMES[i] = "Batch.counter-" + i;
+            NORMALISED_NAMES[i] = "batch_counter_" + i;
+            DESCRIPTIONS[i] = "";
+        }
+    }
+}
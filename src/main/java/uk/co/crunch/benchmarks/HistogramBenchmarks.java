@@ -0,0 +1,74 @@
+package uk.co.crunch.benchmarks;
+
+import io.prometheus.client.CollectorRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.crunch.api.HistogramBuckets;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Bucket layouts: simpleclient's linear scan over the default 14 buckets or 24 exponential ones (100 us to ~14 min),
+// vs sparse log-linear buckets. Latencies spread log-uniformly over 100 us to 10 s. Run with "-prof gc" to check
+// that observe() doesn't allocate.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class HistogramBenchmarks {
+
+    @Param({"defaults", "exponential", "sparse"})
+    String buckets;
+
+    CollectorRegistry registry;
+    PrometheusMetrics.Histogram histogram;
+
+    @Setup
+    public void setUp() {
+        registry = new CollectorRegistry();
+
+        final PrometheusMetrics metrics = new PrometheusMetrics(registry, "bench");
+        switch (buckets) {
+            case "exponential":
+                histogram = metrics.histogram("latency", HistogramBuckets.exponential(0.0001, 2, 24));
+                break;
+            case "sparse":
+                histogram = metrics.histogram("latency", HistogramBuckets.sparse());
+                break;
+            default:
+                histogram = metrics.histogram("latency");
+        }
+    }
+
+    // Precomputed, so that the benchmark measures bucketing rather than Math.pow()
+    private static final double[] LATENCIES = new double[4096];
+    static {
+        for (int i = 0; i < LATENCIES.length; i++) {
+            LATENCIES[i] = 0.0001 * Math.pow(10, 5 * ThreadLocalRandom.current().nextDouble());
+        }
+    }
+
+    private static double latency() {
+        return LATENCIES[ ThreadLocalRandom.current().nextInt(LATENCIES.length) ];
+    }
+
+    @Benchmark
+    public void observe() {
+        histogram.observe( latency() );
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void observe4Threads() {
+        histogram.observe( latency() );
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void observeThenScrape(Blackhole blackhole) {
+        for (int i = 0; i < 1000; i++) {
+            histogram.observe( latency() );
+        }
+        blackhole.consume( registry.metricFamilySamples().nextElement() );
+    }
+}
@@ -0,0 +1,53 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+// Repeat lookups of existing label tuples, cycling through a large set of them
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class LabelBenchmarks {
+
+    @Param({"10", "1000", "100000"})
+    int cardinality;
+
+    PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests;
+    io.prometheus.client.Counter rawRequests;
+
+    String[] paths;
+    String[] statuses;
+    int next;
+
+    @Setup
+    public void setUp() {
+        final PrometheusMetrics metrics = new PrometheusMetrics();
+        requests = metrics.labelledCounter("requests", "path", "status");
+        rawRequests = io.prometheus.client.Counter.build().name("raw_requests").help("raw_requests").labelNames("path", "status").create();
+
+        paths = new String[cardinality];
+        statuses = new String[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            paths[i] = "/api/v1/resource/" + i;
+            statuses[i] = String.valueOf(200 + i % 5);
+
+            requests.labels(paths[i], statuses[i]).inc();
+            rawRequests.labels(paths[i], statuses[i]).inc();
+        }
+    }
+
+    @Benchmark
+    public void labelledIncrement() {
+        final int i = next++ % cardinality;
+        requests.labels(paths[i], statuses[i]).inc();
+    }
+
+    // Baseline: simpleclient's varargs labels(), which builds a List key per call
+    @Benchmark
+    public void rawLabelledIncrement() {
+        final int i = next++ % cardinality;
+        rawRequests.labels(paths[i], statuses[i]).inc();
+    }
+}
@@ -0,0 +1,54 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.crunch.benchmarks.legacy.LegacyNormaliser;
+import uk.co.crunch.utils.PrometheusUtils;
+
+import java.util.concurrent.TimeUnit;
+
+// Normalises a corpus of names as services actually write them: already in Prometheus style, dotted / camel case
+// as in code, and free text as in alert rule metricNames. Run with "-prof gc" for the allocation per name.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class NormaliseBenchmarks {
+
+    @Param({"prometheus", "dotted", "freeText"})
+    String corpus;
+
+    String[] names;
+
+    @Setup
+    public void setUp() {
+        switch (corpus) {
+            case "prometheus":
+                names = new String[]{"http_requests_total", "jvm_memory_bytes_used", "process_cpu_seconds_total", "db_pool_active",
+                        "cache_hits", "cache_misses", "queue_depth", "request_duration_seconds", "login_failures", "errors"};
+                break;
+            case "dotted":
+                names = new String[]{"Http.Requests-Total", "Jvm.Memory.BytesUsed", "Process.CpuSeconds", "db.pool-active",
+                        "Cache.Hits", "Cache.Misses", "queue.Depth", "Request.Duration-Seconds", "Login.Failures", "Errors"};
+                break;
+            default:
+                names = new String[]{"Requests per second", "dropped connections", "Audit service errors", "Login failures #2",
+                        "Cache hit ratio", "Queue depth", "DB pool active", "5xx responses", "Payment declines", "Slow queries"};
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void singlePass(final Blackhole bh) {
+        for (String each : names) {
+            bh.consume( PrometheusUtils.normaliseName(each) );
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void replaceChain(final Blackhole bh) {
+        for (String each : names) {
+            bh.consume( LegacyNormaliser.normaliseName(each) );
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.api.AlertRules;
+import uk.co.crunch.benchmarks.legacy.LegacyPlaceholders;
+import uk.co.crunch.impl.AlertRulesGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+// Placeholder substitution for one rule, through the cached template against a String.replace() per metric.
+// (The latter gets the twelve-metric rule wrong, but it's the speed that's being compared.)
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.Throughput)
+@AlertRules({
+    @AlertRule(name = "one", metricNames = "Requests.per-second", duration = "5m", summary = "", description = "", confluenceLink = "",
+            rule = "avg_over_time($1[1m]) / avg_over_time($1[24h]) * 100 > 150"),
+    @AlertRule(name = "twelve", duration = "5m", summary = "", description = "", confluenceLink = "",
+            metricNames = {"m.1", "m.2", "m.3", "m.4", "m.5", "m.6", "m.7", "m.8", "m.9", "m.10", "m.11", "m.12"},
+            rule = "$1 + $2 + $3 + $4 + $5 + $6 + $7 + $8 + $9 + $10 + $11 + $12 > 0")
+})
+public class PlaceholderBenchmarks {
+
+    @Param({"1", "12"})
+    int metrics;
+
+    AlertRule rule;
+
+    @Setup
+    public void setUp() {
+        for (AlertRule each : PlaceholderBenchmarks.class.getAnnotation(AlertRules.class).value()) {
+            if (each.metricNames().length == metrics) {
+                rule = each;
+            }
+        }
+    }
+
+    @Benchmark
+    public String template() {
+        return AlertRulesGenerator.replaceRulePlaceholders(rule, "bench_");
+    }
+
+    @Benchmark
+    public String stringReplace() {
+        return LegacyPlaceholders.replaceRulePlaceholders(rule, "bench_");
+    }
+}
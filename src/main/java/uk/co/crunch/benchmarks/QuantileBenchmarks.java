@@ -0,0 +1,60 @@
+package uk.co.crunch.benchmarks;
+
+import io.prometheus.client.CollectorRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.crunch.api.PrometheusMetrics;
+import uk.co.crunch.api.PrometheusMetrics.Context;
+import uk.co.crunch.api.QuantileEngine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// CKMS vs HdrHistogram summaries: cost of observe() on the hot path, and of the scrape that does the quantile work
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class QuantileBenchmarks {
+
+    @Param({"ckms", "hdr"})
+    String engine;
+
+    CollectorRegistry registry;
+    PrometheusMetrics.Summary summary;
+
+    @Setup
+    public void setUp() {
+        registry = new CollectorRegistry();
+
+        final PrometheusMetrics metrics = new PrometheusMetrics(registry, "bench");
+        metrics.setQuantileEngine( engine.equals("hdr") ? QuantileEngine.hdr() : QuantileEngine.ckms() );
+        summary = metrics.summary("latency");
+    }
+
+    @Benchmark
+    public void observe() {
+        summary.observe( ThreadLocalRandom.current().nextDouble() );
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void observe4Threads() {
+        summary.observe( ThreadLocalRandom.current().nextDouble() );
+    }
+
+    @Benchmark
+    public void timing(Blackhole blackhole) {
+        try (Context ignored = summary.time()) {
+            blackhole.consume(1);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void observeThenScrape(Blackhole blackhole) {
+        for (int i = 0; i < 1000; i++) {
+            summary.observe( ThreadLocalRandom.current().nextDouble() );
+        }
+        blackhole.consume( registry.metricFamilySamples().nextElement() );
+    }
+}
@@ -0,0 +1,110 @@
+package uk.co.crunch.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.PrometheusMetrics;
+import uk.co.crunch.impl.exposition.HttpExporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// A local HttpURLConnection client scraping our exporter, and the same registry served the way MetricsServlet does
+// it (collect, TextFormat through a Writer, optional GZIPOutputStream) on the JDK's HttpServer. Run with "-prof gc".
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class ScrapeBenchmarks {
+
+    @Param({"1000", "10000"})
+    int series;
+
+    @Param({"false", "true"})
+    boolean gzip;
+
+    HttpExporter exporter;
+    HttpServer servletStyle;
+    URL exporterUrl;
+    URL servletStyleUrl;
+    final byte[] readBuffer = new byte[64 * 1024];
+
+    @Setup
+    public void setUp() throws IOException {
+        final CollectorRegistry registry = new CollectorRegistry();
+        final PrometheusMetrics metrics = new PrometheusMetrics(registry, "bench");
+
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("requests", "path", "status");
+        for (int i = 0; i < series; i++) {
+            requests.labels("/api/v1/resource/" + i, String.valueOf(200 + i % 5)).inc(i);
+        }
+
+        exporter = metrics.startHttpServer(0);
+        exporterUrl = new URL("http://localhost:" + exporter.getPort() + "/metrics");
+
+        System.setProperty("sun.net.httpserver.nodelay", "true");  // Otherwise Nagle adds 40ms to every response
+        servletStyle = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        servletStyle.createContext("/metrics", exchange -> {
+            final boolean compress = String.valueOf( exchange.getRequestHeaders().getFirst("Accept-Encoding") ).contains("gzip");
+            exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+            if (compress) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+
+            // Buffered with a Content-Length, as simpleclient's HTTPServer does: chunked responses stall on delayed ACKs
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 20);
+            final OutputStream body = compress ? new GZIPOutputStream(buffer) : buffer;
+            try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+                TextFormat.write004(writer, registry.metricFamilySamples());
+            }
+
+            exchange.sendResponseHeaders(200, buffer.size());
+            buffer.writeTo( exchange.getResponseBody() );
+            exchange.close();
+        });
+        servletStyle.start();
+        servletStyleUrl = new URL("http://localhost:" + servletStyle.getAddress().getPort() + "/metrics");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        exporter.close();
+        servletStyle.stop(0);
+    }
+
+    @Benchmark
+    public long nioExporter() throws IOException {
+        return scrape(exporterUrl);
+    }
+
+    @Benchmark
+    public long servletStyleBaseline() throws IOException {
+        return scrape(servletStyleUrl);
+    }
+
+    // Read (but don't decompress) the whole body, so the connection goes back into the keep-alive cache
+    private long scrape(final URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            for (int n; (n = in.read(readBuffer)) > 0; ) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
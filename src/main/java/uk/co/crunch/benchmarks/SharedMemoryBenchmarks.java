@@ -0,0 +1,69 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.HistogramBuckets;
+import uk.co.crunch.api.PrometheusMetrics;
+import uk.co.crunch.api.SharedMemoryStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Counters and histograms on the heap, or in a shared memory file, as one of several worker processes would record them
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class SharedMemoryBenchmarks {
+
+    @Param({"false", "true"})
+    boolean shared;
+
+    Path directory;
+    PrometheusMetrics.Counter counter;
+    PrometheusMetrics.Histogram histogram;
+
+    @Setup
+    public void setUp() throws IOException {
+        final PrometheusMetrics metrics = new PrometheusMetrics();
+        if (shared) {
+            directory = Files.createTempDirectory("metrics");
+            metrics.setSharedMemoryStore( SharedMemoryStore.open(directory, "worker", 1 << 16) );
+        }
+
+        counter = metrics.counter("messages");
+        histogram = metrics.histogram("message_bytes", HistogramBuckets.exponential(64, 4, 8));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (directory != null) {
+            Files.deleteIfExists( directory.resolve("worker.metrics") );
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void counter01Thread() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counter04Threads() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void histogram01Thread() {
+        histogram.observe(1500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogram04Threads() {
+        histogram.observe(1500);
+    }
+}
@@ -0,0 +1,50 @@
+package uk.co.crunch.benchmarks;
+
+import io.prometheus.client.CollectorRegistry;
+import org.openjdk.jmh.annotations.*;
+import uk.co.crunch.api.MetricSnapshots;
+import uk.co.crunch.api.PrometheusMetrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// One save of many labelled counter series, plus a few histograms, as done in the background every interval
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class SnapshotBenchmarks {
+
+    @Param({"1000", "100000"})
+    int series;
+
+    Path directory;
+    PrometheusMetrics metrics;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshots");
+        metrics = new PrometheusMetrics(new CollectorRegistry(), "Bench");
+        metrics.setMetricSnapshots( MetricSnapshots.savedEvery(directory.resolve("metrics.snapshot"), 1, TimeUnit.DAYS) );
+
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("requests", "customer");
+        for (int i = 0; i < series; i++) {
+            requests.labels("customer-" + i).inc(i);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.histogram("latency_" + i).observe(0.01 * i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists( directory.resolve("metrics.snapshot") );
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int save() throws IOException {
+        return metrics.saveMetricSnapshot();
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.crunch.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.crunch.api.PrometheusMetrics;
+import uk.co.crunch.api.PrometheusMetrics.Context;
+import uk.co.crunch.api.TimerClock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Run with "-prof gc" to see the allocation rate alongside ns/op. The async helpers are compared with the hand-rolled
+// nanoTime bookkeeping they replace, on a future that's already complete and across a (platform) thread pool. Java 8
+// has no virtual threads; none of the timers hold a monitor, so nothing here could pin a carrier thread anyway.
+// coarseHistogramTiming is histogramTiming on a 1ms TimerClock.coarse(), with no System.nanoTime() per timing.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class TimerBenchmarks {
+
+    PrometheusMetrics metrics = new PrometheusMetrics();
+
+    PrometheusMetrics.Summary summary = metrics.summary("summary");
+    PrometheusMetrics.Histogram histogram = metrics.histogram("histogram");
+
+    io.prometheus.client.Summary rawSummary = io.prometheus.client.Summary.build().name("raw_summary").help("raw_summary")
+            .quantile(0.5, 0.01)
+            .quantile(0.99, 0.01)
+            .create();
+
+    final Supplier<String> task = () -> "result";
+    final CompletableFuture<String> completed = CompletableFuture.completedFuture("result");
+    final Supplier<CompletableFuture<String>> completedTask = () -> completed;
+
+    PrometheusMetrics coarseMetrics = new PrometheusMetrics();
+    PrometheusMetrics.Histogram coarseHistogram;
+
+    ExecutorService platformThreads;
+
+    @Setup
+    public void setUp() {
+        coarseMetrics.setTimerClock( TimerClock.coarse(1, TimeUnit.MILLISECONDS) );
+        coarseHistogram = coarseMetrics.histogram("histogram");
+        platformThreads = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        platformThreads.shutdown();
+    }
+
+    @Benchmark
+    public void summaryTiming(Blackhole blackhole) {
+        try (Context ignored = summary.time()) {
+            blackhole.consume(1);  // Don't let the context itself escape
+        }
+    }
+
+    @Benchmark
+    public void histogramTiming(Blackhole blackhole) {
+        try (Context ignored = histogram.time()) {
+            blackhole.consume(1);
+        }
+    }
+
+    @Benchmark
+    public void coarseHistogramTiming(Blackhole blackhole) {
+        try (Context ignored = coarseHistogram.time()) {
+            blackhole.consume(1);
+        }
+    }
+
+    @Benchmark
+    public void histogramTimingByName(Blackhole blackhole) {
+        try (Context ignored = metrics.histogram("histogram").time()) {
+            blackhole.consume(1);
+        }
+    }
+
+    @Benchmark
+    public void histogramSupplier(Blackhole blackhole) {
+        blackhole.consume( histogram.time(task) );
+    }
+
+    @Benchmark
+    public void histogramCompletedFuture(Blackhole blackhole) {
+        blackhole.consume( histogram.timeAsync(completedTask) );
+    }
+
+    @Benchmark
+    public void handRolledCompletedFuture(Blackhole blackhole) {
+        final long start = System.nanoTime();
+        blackhole.consume( completed.whenComplete((result, failure) -> histogram.observe((System.nanoTime() - start) / 1E9)) );
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String histogramPlatformThread() {
+        return histogram.timeAsync(() -> CompletableFuture.supplyAsync(task, platformThreads)).join();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String handRolledPlatformThread() {
+        final long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(task, platformThreads)
+                .whenComplete((result, failure) -> histogram.observe((System.nanoTime() - start) / 1E9))
+                .join();
+    }
+
+    // Baseline: simpleclient's own Timer, for comparison with our context
+    @Benchmark
+    public void rawSummaryTimer(Blackhole blackhole) {
+        try (io.prometheus.client.Summary.Timer ignored = rawSummary.startTimer()) {
+            blackhole.consume(1);
+        }
+    }
+}
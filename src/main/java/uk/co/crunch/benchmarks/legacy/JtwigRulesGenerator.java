@@ -0,0 +1,54 @@
+package uk.co.crunch.benchmarks.legacy;
+
+import org.jtwig.JtwigModel;
+import org.jtwig.JtwigTemplate;
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.utils.PrometheusUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static uk.co.crunch.benchmarks.legacy.LegacyPlaceholders.replaceRulePlaceholders;
+import static uk.co.crunch.impl.AlertRulesGenerator.*;
+
+// The Jtwig template rendering AlertRulesGenerator1x replaced, kept as a baseline for AlertRulesBenchmarks
+public class JtwigRulesGenerator {
+
+    public static String buildRulesFile(final String metricPrefix, final AlertRule... rules) {
+        final JtwigModel model = JtwigModel.newModel();
+        model.with("prefix", metricPrefix);
+
+        final JtwigTemplate template = JtwigTemplate.classpathTemplate("templates/rule_template_1.x.rule");
+
+        final List<String> ruleStrs = new ArrayList<>();
+
+        final String normalisedPrefix = PrometheusUtils.normaliseName(metricPrefix) + "_";
+
+        for (AlertRule eachRule : rules) {
+            model.with("alertName", eachRule.name());
+            model.with("duration", eachRule.duration());
+            model.with("rule", replaceRulePlaceholders(eachRule, normalisedPrefix));
+            model.with("annotations", entriesMapToString( getAnnotations(eachRule) ));
+            model.with("labels", entriesMapToString( getLabels(eachRule) ));
+
+            ruleStrs.add(template.render(model));
+        }
+
+        return String.join("\n", ruleStrs);
+    }
+
+    private static CharSequence quoteString(final String s) {
+        return new StringBuilder().append("\"").append(s.replace("\"", "\\\"")).append("\"");
+    }
+
+    private static Function<Map.Entry<String,String>,String> formatEntry() {
+        return entry -> entry.getKey() + " = " + quoteString(entry.getValue());
+    }
+
+    private static String entriesMapToString(final Map<String,String> entries) {
+        return entries.entrySet().stream().map( formatEntry() ).collect( Collectors.joining(",\n    ") );
+    }
+}
@@ -0,0 +1,13 @@
+package uk.co.crunch.benchmarks.legacy;
+
+// The chain of replace() calls PrometheusUtils.normaliseName() replaced, kept as a baseline
+public class LegacyNormaliser {
+
+    public static String normaliseName(String name) {
+        return name.replace('.','_')
+                .replace('-','_')
+                .replace('#','_')
+                .replace(' ','_')
+                .toLowerCase();
+    }
+}
@@ -0,0 +1,20 @@
+package uk.co.crunch.benchmarks.legacy;
+
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.utils.PrometheusUtils;
+
+// The String.replace() pass per metric that RuleTemplate replaced, kept as a baseline. Note that it corrupts $10
+// and up, as $1 is replaced first.
+public class LegacyPlaceholders {
+
+    public static String replaceRulePlaceholders(final AlertRule rule, final String normalisedPrefix) {
+        String ruleStr = rule.rule();
+        for (int i = 0; i < rule.metricNames().length; ++i) {
+            final String rawName = rule.metricNames()[i];
+            final String missingPrefix = rawName.startsWith(normalisedPrefix) ? "" : normalisedPrefix;
+
+            ruleStr = ruleStr.replace("$" + (i + 1), missingPrefix + PrometheusUtils.normaliseName(rawName));
+        }
+        return ruleStr;
+    }
+}
@@ -6,26 +6,48 @@ import uk.co.crunch.api.AlertRule.Label;
 import uk.co.crunch.api.PrometheusVersion;
 import uk.co.crunch.impl.v1x.AlertRulesGenerator1x;
 import uk.co.crunch.impl.v2x.AlertRulesGenerator2x;
-import uk.co.crunch.utils.PrometheusUtils;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class AlertRulesGenerator {
 
     public static String buildRulesFile(final PrometheusVersion version, final String metricPrefix, final String alertGroupName, final AlertRule... rules) {
-        return version == PrometheusVersion.V2_X ? AlertRulesGenerator2x.buildRulesFile(metricPrefix, alertGroupName, rules) : AlertRulesGenerator1x.buildRulesFile(metricPrefix, rules);
+        final StringBuilder sb = new StringBuilder(1024 * rules.length);
+        try {
+            writeRulesFile(sb, version, metricPrefix, alertGroupName, rules);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);  // Can't happen for a StringBuilder
+        }
+        return sb.toString();
     }
 
-    public static String replaceRulePlaceholders(final AlertRule rule, final String normalisedPrefix) {
-        String ruleStr = rule.rule();
-        for (int i = 0; i < rule.metricNames().length; ++i) {
-            final String rawName = rule.metricNames()[i];
-            final String missingPrefix = rawName.startsWith(normalisedPrefix) ? "" : normalisedPrefix;
+    // Streams the file straight to the output, with no intermediate strings for the whole rule or file
+    public static void writeRulesFile(final Appendable out, final PrometheusVersion version, final String metricPrefix, final String alertGroupName, final AlertRule... rules) throws IOException {
+        if (version == PrometheusVersion.V2_X) {
+            AlertRulesGenerator2x.writeRulesFile(out, metricPrefix, alertGroupName, rules);
+        } else {
+            AlertRulesGenerator1x.writeRulesFile(out, metricPrefix, rules);
+        }
+    }
 
-            ruleStr = ruleStr.replace("$" + (i + 1), missingPrefix + PrometheusUtils.normaliseName(rawName));
+    public static String replaceRulePlaceholders(final AlertRule rule, final String normalisedPrefix) {
+        final StringBuilder sb = new StringBuilder( rule.rule().length() + 64 );
+        try {
+            appendRule(sb, rule, normalisedPrefix);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);  // Can't happen for a StringBuilder
         }
-        return ruleStr;
+        return sb.toString();
+    }
+
+    // The rule expression with each $n replaced by the prefixed, normalised name of the n'th metric
+    public static void appendRule(final Appendable out, final AlertRule rule, final String normalisedPrefix) throws IOException {
+        RuleTemplate.of(rule).render(out, normalisedPrefix);
     }
 
     public static Map<String,String> getLabels(final AlertRule rule) {
@@ -0,0 +1,90 @@
+package uk.co.crunch.impl;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.utils.PrometheusUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link AlertRule#rule()} expression parsed once into literal text and $n placeholder segments, with its
+ * metric names already normalised, so that rendering is a single pass of appends.
+ *
+ * A placeholder is the longest run of digits after a '$' that names one of the rule's metrics, so $10 is the tenth
+ * metric where there are ten or more, and $1 followed by a literal 0 otherwise. A '$' that doesn't name a metric
+ * ($0, $labels) is left as it is.
+ */
+final class RuleTemplate {
+
+    // Keyed on the AlertRule instance (weak keys compare by identity), so annotations read once and reused, as
+    // Class.getAnnotation() hands out, are only parsed once
+    private static final LoadingCache<AlertRule,RuleTemplate> CACHE = CacheBuilder.newBuilder().weakKeys().build( CacheLoader.from(RuleTemplate::new) );
+
+    private final String[] literals;  // One more than there are placeholders
+    private final int[] placeholders;  // Zero-based metric indexes
+
+    private final String[] rawNames;
+    private final String[] normalisedNames;
+
+    private RuleTemplate(final AlertRule rule) {
+        this.rawNames = rule.metricNames();
+        this.normalisedNames = new String[rawNames.length];
+        for (int i = 0; i < rawNames.length; i++) {
+            normalisedNames[i] = PrometheusUtils.normaliseName( rawNames[i] );
+        }
+
+        final String expr = rule.rule();
+        final List<String> literals = new ArrayList<>();
+        final List<Integer> placeholders = new ArrayList<>();
+
+        int literalStart = 0;
+        int i = expr.indexOf('$');
+        while (i >= 0) {
+            int end = i + 1;
+            int index = 0;
+            int matchedEnd = -1;
+            int matchedIndex = 0;
+            while (end < expr.length() && expr.charAt(end) >= '0' && expr.charAt(end) <= '9' && index <= rawNames.length) {
+                index = index * 10 + (expr.charAt(end) - '0');
+                end++;
+                if (index >= 1 && index <= rawNames.length) {
+                    matchedEnd = end;
+                    matchedIndex = index;
+                }
+            }
+
+            if (matchedEnd > 0) {
+                literals.add( expr.substring(literalStart, i) );
+                placeholders.add(matchedIndex - 1);
+                literalStart = matchedEnd;
+                i = expr.indexOf('$', matchedEnd);
+            } else {
+                i = expr.indexOf('$', i + 1);
+            }
+        }
+        literals.add( expr.substring(literalStart) );
+
+        this.literals = literals.toArray(new String[0]);
+        this.placeholders = placeholders.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static RuleTemplate of(final AlertRule rule) {
+        return CACHE.getUnchecked(rule);
+    }
+
+    // Metric names not already starting with the prefix get it prepended
+    void render(final Appendable out, final String normalisedPrefix) throws IOException {
+        out.append( literals[0] );
+        for (int i = 0; i < placeholders.length; i++) {
+            final int metric = placeholders[i];
+            if (!rawNames[metric].startsWith(normalisedPrefix)) {
+                out.append(normalisedPrefix);
+            }
+            out.append( normalisedNames[metric] ).append( literals[i + 1] );
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package uk.co.crunch.impl.export;
+
+import com.google.common.io.ByteStreams;
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.api.AlertRules;
+import uk.co.crunch.api.PrometheusVersion;
+import uk.co.crunch.impl.AlertRulesGenerator;
+import uk.co.crunch.impl.export.ClassFileRules.GroupedRule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Exports the rules files for a whole classpath in one go: every {@link AlertRules} / {@link AlertRule} in the
+ * given directories and jars, read from the class files without loading them, grouped by groupName, and written as
+ * <group>.rules (1.x) and <group>.yml (2.x). Both the scan and the generation run on a fork-join pool, and a file
+ * whose contents haven't changed is left untouched, so incremental builds don't see new timestamps.
+ */
+public class AlertRulesExporter {
+
+    private final String metricPrefix;
+    private final String defaultGroup;
+    private final ForkJoinPool pool;
+
+    public AlertRulesExporter(final String metricPrefix, final String defaultGroup) {
+        this(metricPrefix, defaultGroup, ForkJoinPool.commonPool());
+    }
+
+    public AlertRulesExporter(final String metricPrefix, final String defaultGroup, final ForkJoinPool pool) {
+        checkArgument(!checkNotNull(metricPrefix).isEmpty(), "Metric prefix must not be empty");
+        checkArgument(!checkNotNull(defaultGroup).isEmpty(), "Default group must not be empty");
+        this.metricPrefix = metricPrefix;
+        this.defaultGroup = defaultGroup;
+        this.pool = checkNotNull(pool);
+    }
+
+    public Result export(final List<Path> classpath, final Path outputDirectory) throws IOException {
+        final Map<String,List<AlertRule>> rulesByGroup = scan(classpath);
+
+        Files.createDirectories(outputDirectory);
+
+        final List<Path> files = new ArrayList<>();
+        final List<Callable<Boolean>> writes = new ArrayList<>();
+        for (Map.Entry<String,List<AlertRule>> entry : rulesByGroup.entrySet()) {
+            final AlertRule[] rules = entry.getValue().toArray(new AlertRule[0]);
+            for (PrometheusVersion version : PrometheusVersion.values()) {
+                final Path file = outputDirectory.resolve(entry.getKey() + (version == PrometheusVersion.V2_X ? ".yml" : ".rules"));
+                files.add(file);
+                writes.add(() -> writeIfChanged(file, version, entry.getKey(), rules));
+            }
+        }
+
+        final List<Path> written = new ArrayList<>();
+        final List<Path> unchanged = new ArrayList<>();
+        final List<Boolean> changes = invokeAll(writes);
+        for (int i = 0; i < files.size(); i++) {
+            (changes.get(i) ? written : unchanged).add( files.get(i) );
+        }
+        return new Result(written, unchanged);
+    }
+
+    // Every rule on the classpath, by group, in class name order whatever order the scan finished in
+    Map<String,List<AlertRule>> scan(final List<Path> classpath) throws IOException {
+        final Map<String,Callable<byte[]>> classFiles = new TreeMap<>();
+        final List<ZipFile> archives = new ArrayList<>();
+        try {
+            for (Path entry : classpath) {
+                if (Files.isDirectory(entry)) {
+                    addDirectory(classFiles, entry);
+                } else if (Files.isRegularFile(entry)) {
+                    final ZipFile archive = new ZipFile( entry.toFile() );
+                    archives.add(archive);
+                    addArchive(classFiles, archive);
+                }
+            }
+
+            final List<Callable<List<GroupedRule>>> reads = new ArrayList<>(classFiles.size());
+            for (Map.Entry<String,Callable<byte[]>> each : classFiles.entrySet()) {
+                reads.add(() -> {
+                    try {
+                        return ClassFileRules.read( each.getValue().call() );
+                    }
+                    catch (IllegalArgumentException e) {
+                        throw new IOException("Could not read " + each.getKey() + ": " + e.getMessage(), e);
+                    }
+                });
+            }
+
+            final Map<String,List<AlertRule>> rulesByGroup = new LinkedHashMap<>();
+            for (List<GroupedRule> classRules : invokeAll(reads)) {
+                for (GroupedRule each : classRules) {
+                    rulesByGroup.computeIfAbsent(each.group.isEmpty() ? defaultGroup : each.group, g -> new ArrayList<>()).add(each.rule);
+                }
+            }
+            return rulesByGroup;
+        }
+        finally {
+            for (ZipFile each : archives) {
+                each.close();
+            }
+        }
+    }
+
+    // As with class loading, the first entry on the classpath for a class name wins
+    private static void addDirectory(final Map<String,Callable<byte[]>> classFiles, final Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter( f -> isClassFile(f.toString()) && Files.isRegularFile(f) ).forEach( f -> {
+                classFiles.putIfAbsent(directory.relativize(f).toString().replace('\\', '/'), () -> Files.readAllBytes(f));
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void addArchive(final Map<String,Callable<byte[]>> classFiles, final ZipFile archive) {
+        for (ZipEntry entry : Collections.list( archive.entries() )) {
+            if (!entry.isDirectory() && isClassFile( entry.getName() )) {
+                classFiles.putIfAbsent(entry.getName(), () -> {
+                    try (InputStream in = archive.getInputStream(entry)) {
+                        if (entry.getSize() < 0) {
+                            return ByteStreams.toByteArray(in);
+                        }
+                        final byte[] bytes = new byte[(int) entry.getSize()];
+                        ByteStreams.readFully(in, bytes);
+                        return bytes;
+                    }
+                });
+            }
+        }
+    }
+
+    private static boolean isClassFile(final String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class") && !name.startsWith("META-INF/");
+    }
+
+    // False if the file already had exactly these contents
+    private boolean writeIfChanged(final Path file, final PrometheusVersion version, final String group, final AlertRule[] rules) throws IOException {
+        final byte[] contents = AlertRulesGenerator.buildRulesFile(version, metricPrefix, group, rules).getBytes(StandardCharsets.UTF_8);
+
+        if (Files.isRegularFile(file) && Files.size(file) == contents.length && Arrays.equals( Files.readAllBytes(file), contents )) {
+            return false;
+        }
+
+        Files.write(file, contents);
+        return true;
+    }
+
+    private <T> List<T> invokeAll(final List<Callable<T>> tasks) throws IOException {
+        final List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> each : pool.invokeAll(tasks)) {
+                results.add( each.get() );
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return results;
+    }
+
+    public static final class Result {
+        private final List<Path> written;
+        private final List<Path> unchanged;
+
+        Result(final List<Path> written, final List<Path> unchanged) {
+            this.written = Collections.unmodifiableList(written);
+            this.unchanged = Collections.unmodifiableList(unchanged);
+        }
+
+        // Files created or whose contents changed
+        public List<Path> getWritten() {
+            return written;
+        }
+
+        // Files left alone, as they already had the generated contents
+        public List<Path> getUnchanged() {
+            return unchanged;
+        }
+    }
+}
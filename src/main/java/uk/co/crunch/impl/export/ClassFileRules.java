@@ -0,0 +1,343 @@
+package uk.co.crunch.impl.export;
+
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.api.AlertRules;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads {@link AlertRules} / {@link AlertRule} annotations straight out of class file bytes, without loading the
+ * class. Only the constant pool and the annotation attributes of the class and its methods are looked at, and a
+ * class whose constant pool doesn't mention either annotation is rejected before anything else is parsed.
+ */
+final class ClassFileRules {
+
+    private static final String RULE_TYPE = descriptor(AlertRule.class);
+    private static final String RULES_TYPE = descriptor(AlertRules.class);
+    private static final byte[] RULE_DESCRIPTOR = RULE_TYPE.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RULES_DESCRIPTOR = RULES_TYPE.getBytes(StandardCharsets.UTF_8);
+
+    private static final String VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+    private static final String INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations";
+
+    private final ByteBuffer buf;
+    private int[] utf8Offsets;  // Position of each Utf8 constant's length, or -1
+
+    private ClassFileRules(final byte[] classFile) {
+        this.buf = ByteBuffer.wrap(classFile);
+    }
+
+    // Rules on the class, then on each method, in declaration order. Group is "" where none was given.
+    static List<GroupedRule> read(final byte[] classFile) {
+        try {
+            return new ClassFileRules(classFile).read();
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed class file", e);
+        }
+    }
+
+    private List<GroupedRule> read() {
+        if (buf.getInt() != 0xCAFEBABE) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        buf.getInt();  // Version
+
+        if (!readConstantPool()) {
+            return Collections.emptyList();
+        }
+
+        buf.position(buf.position() + 6);  // Access, this, super
+        skip(2 * (buf.getShort() & 0xffff));  // Interfaces
+
+        final List<GroupedRule> rules = new ArrayList<>();
+        final int fields = buf.getShort() & 0xffff;
+        for (int i = 0; i < fields; i++) {
+            buf.position(buf.position() + 6);
+            readAttributes(null);
+        }
+
+        final List<GroupedRule> methodRules = new ArrayList<>();
+        final int methods = buf.getShort() & 0xffff;
+        for (int i = 0; i < methods; i++) {
+            buf.position(buf.position() + 6);
+            readAttributes(methodRules);
+        }
+
+        readAttributes(rules);  // The class's own come after its members in the file, but first in the output
+        rules.addAll(methodRules);
+        return rules;
+    }
+
+    // False if no Utf8 constant is either annotation's descriptor, in which case there's no point going on
+    private boolean readConstantPool() {
+        final int count = buf.getShort() & 0xffff;
+        utf8Offsets = new int[count];
+        boolean mentionsRules = false;
+
+        for (int i = 1; i < count; i++) {
+            utf8Offsets[i] = -1;
+            final int tag = buf.get();
+            switch (tag) {
+                case 1:  // Utf8
+                    utf8Offsets[i] = buf.position();
+                    final int length = buf.getShort() & 0xffff;
+                    mentionsRules |= matches(RULE_DESCRIPTOR, length) || matches(RULES_DESCRIPTOR, length);
+                    skip(length);
+                    break;
+                case 7: case 8: case 16: case 19: case 20:  // Class, String, MethodType, Module, Package
+                    skip(2);
+                    break;
+                case 15:  // MethodHandle
+                    skip(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    skip(4);
+                    break;
+                case 5: case 6:  // Long, Double take two slots
+                    skip(8);
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        return mentionsRules;
+    }
+
+    private boolean matches(final byte[] descriptor, final int length) {
+        if (length != descriptor.length) {
+            return false;
+        }
+        final int start = buf.position();
+        for (int i = 0; i < length; i++) {
+            if (buf.get(start + i) != descriptor[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Rule annotations added to 'rules', if given, everything else skipped
+    private void readAttributes(final List<GroupedRule> rules) {
+        final int count = buf.getShort() & 0xffff;
+        for (int i = 0; i < count; i++) {
+            final String name = utf8( buf.getShort() );
+            final int length = buf.getInt();
+            final int end = buf.position() + length;
+
+            if (rules != null && (name.equals(VISIBLE_ANNOTATIONS) || name.equals(INVISIBLE_ANNOTATIONS))) {
+                final int annotations = buf.getShort() & 0xffff;
+                for (int j = 0; j < annotations; j++) {
+                    addRules(rules, readAnnotation());
+                }
+            }
+            buf.position(end);
+        }
+    }
+
+    private static void addRules(final List<GroupedRule> rules, final ParsedAnnotation annotation) {
+        if (annotation.type.equals(RULES_TYPE)) {
+            final String group = annotation.string("groupName", "");
+            for (Object each : annotation.list("value")) {
+                rules.add( new GroupedRule(group, ((ParsedAnnotation) each).as(AlertRule.class)) );
+            }
+        } else if (annotation.type.equals(RULE_TYPE)) {
+            rules.add( new GroupedRule("", annotation.as(AlertRule.class)) );
+        }
+    }
+
+    private ParsedAnnotation readAnnotation() {
+        final String type = utf8( buf.getShort() );
+        final int pairs = buf.getShort() & 0xffff;
+        final Map<String,Object> values = new LinkedHashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            final String name = utf8( buf.getShort() );
+            values.put(name, readElementValue());
+        }
+        return new ParsedAnnotation(type, values);
+    }
+
+    // Strings, enum constant names, nested annotations and lists of those. Other constants, which AlertRule
+    // doesn't use, come back null.
+    private Object readElementValue() {
+        final char tag = (char) buf.get();
+        switch (tag) {
+            case 's':
+                return utf8( buf.getShort() );
+            case 'e':
+                buf.getShort();  // Enum type
+                return utf8( buf.getShort() );
+            case '@':
+                return readAnnotation();
+            case '[':
+                final int count = buf.getShort() & 0xffff;
+                final List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add( readElementValue() );
+                }
+                return values;
+            default:  // Primitive constants and classes
+                buf.getShort();
+                return null;
+        }
+    }
+
+    // Decodes the "modified UTF-8" of the class file format
+    private String utf8(final short index) {
+        final int offset = utf8Offsets[index & 0xffff];
+        if (offset < 0) {
+            throw new IllegalArgumentException("Not a Utf8 constant: " + (index & 0xffff));
+        }
+
+        final int length = buf.getShort(offset) & 0xffff;
+        final int start = offset + 2;
+        final char[] chars = new char[length];
+        int count = 0;
+        for (int i = start; i < start + length; ) {
+            final int b = buf.get(i) & 0xff;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                i++;
+            } else if (b < 0xe0) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | (buf.get(i + 1) & 0x3f));
+                i += 2;
+            } else {
+                chars[count++] = (char) (((b & 0x0f) << 12) | ((buf.get(i + 1) & 0x3f) << 6) | (buf.get(i + 2) & 0x3f));
+                i += 3;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private void skip(final int bytes) {
+        buf.position(buf.position() + bytes);
+    }
+
+    private static String descriptor(final Class<?> type) {
+        return "L" + type.getName().replace('.', '/') + ";";
+    }
+
+    static final class ParsedAnnotation {
+        final String type;
+        final Map<String,Object> values;
+
+        ParsedAnnotation(final String type, final Map<String,Object> values) {
+            this.type = type;
+            this.values = values;
+        }
+
+        String string(final String name, final String defaultValue) {
+            final Object value = values.get(name);
+            return value == null ? defaultValue : (String) value;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Object> list(final String name) {
+            final Object value = values.get(name);
+            return value == null ? Collections.emptyList() : (List<Object>) value;
+        }
+
+        // A proxy returning the parsed values, converted to each member's type, or else its declared default
+        <A extends Annotation> A as(final Class<A> annotationType) {
+            final Map<String,Object> members = new HashMap<>();
+            for (Method each : annotationType.getDeclaredMethods()) {
+                final Object value = values.get( each.getName() );
+                members.put(each.getName(), value == null ? each.getDefaultValue() : convert(value, each.getReturnType()));
+            }
+
+            return annotationType.cast( Proxy.newProxyInstance(annotationType.getClassLoader(), new Class<?>[]{annotationType}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "annotationType":
+                        return annotationType;
+                    case "equals":
+                        return proxy == args[0] || annotationEquals(annotationType, members, args[0]);
+                    case "hashCode":
+                        return annotationHashCode(members);
+                    case "toString":
+                        return "@" + annotationType.getName() + values;
+                    default:
+                        final Object value = members.get( method.getName() );
+                        return value != null && value.getClass().isArray() ? cloneArray(value) : value;
+                }
+            }));
+        }
+
+        // As Annotation.equals() specifies, so a parsed rule equals the same rule read reflectively, either way round
+        private static boolean annotationEquals(final Class<? extends Annotation> annotationType, final Map<String,Object> members, final Object other) {
+            if (!annotationType.isInstance(other)) {
+                return false;
+            }
+            try {
+                for (Method each : annotationType.getDeclaredMethods()) {
+                    each.setAccessible(true);
+                    if (!Arrays.deepEquals(new Object[]{members.get( each.getName() )}, new Object[]{each.invoke(other)})) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            catch (ReflectiveOperationException e) {
+                return false;
+            }
+        }
+
+        // As Annotation.hashCode() specifies. Wrapping each value gives Arrays.hashCode() for arrays of any type.
+        private static int annotationHashCode(final Map<String,Object> members) {
+            int hash = 0;
+            for (Map.Entry<String,Object> each : members.entrySet()) {
+                hash += (127 * each.getKey().hashCode()) ^ (Arrays.deepHashCode(new Object[]{each.getValue()}) - 31);
+            }
+            return hash;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Object convert(final Object value, final Class<?> type) {
+            if (type.isArray()) {
+                final List<Object> list = (List<Object>) value;
+                final Object array = Array.newInstance(type.getComponentType(), list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    Array.set(array, i, convert(list.get(i), type.getComponentType()));
+                }
+                return array;
+            }
+            if (type.isEnum()) {
+                return Enum.valueOf((Class<Enum>) type, (String) value);
+            }
+            if (type.isAnnotation()) {
+                return ((ParsedAnnotation) value).as( type.asSubclass(Annotation.class) );
+            }
+            return value;
+        }
+
+        private static Object cloneArray(final Object array) {
+            final int length = Array.getLength(array);
+            final Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+    }
+
+    static final class GroupedRule {
+        final String group;
+        final AlertRule rule;
+
+        GroupedRule(final String group, final AlertRule rule) {
+            this.group = group;
+            this.rule = rule;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package uk.co.crunch.impl.exposition;
+
+/**
+ * A collector that can write itself straight into an {@link ExpositionWriter}, without materialising any
+ * MetricFamilySamples.
+ */
+public interface Exposable {
+
+    // The whole family: HELP and TYPE lines, then every sample
+    void expose(ExpositionWriter writer);
+}
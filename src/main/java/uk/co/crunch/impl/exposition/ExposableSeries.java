@@ -0,0 +1,11 @@
+package uk.co.crunch.impl.exposition;
+
+/**
+ * An {@link Exposable} that can also be one series of a labelled family, writing just its samples under the
+ * family's labels. Labelled families themselves can't, as they don't nest.
+ */
+public interface ExposableSeries extends Exposable {
+
+    // Just the samples, each with these pre-encoded labels (see ExpositionWriter.encodeLabels) ahead of its own
+    void exposeSamples(ExpositionWriter writer, byte[] labels);
+}
@@ -0,0 +1,307 @@
+package uk.co.crunch.impl.exposition;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes Prometheus text format (0.0.4, byte-for-byte as simpleclient's TextFormat does) into a heap ByteBuffer that
+ * is kept and reused from one scrape to the next. Strings are encoded and escaped straight into the buffer, and
+ * {@link Exposable} collectors supply pre-encoded names and labels, so a scrape of our own metrics creates next to
+ * no garbage. Anything else falls back to collect(), but is still streamed without a Writer or temporary Strings.
+ *
+ * Not thread-safe: use one per scraping thread, or lock around it.
+ */
+public final class ExpositionWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    public static final byte[] NO_LABELS = new byte[0];
+
+    private static final int ESCAPE_HELP = 1;
+    private static final int ESCAPE_LABEL_VALUE = 2;
+
+    private static final double MAX_EXACT_LONG = 1L << 53;
+
+    private ByteBuffer buffer;
+    private int maxCapacity = Integer.MAX_VALUE;
+
+    public ExpositionWriter() {
+        this(64 * 1024);
+    }
+
+    public ExpositionWriter(final int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public void clear() {
+        buffer.clear();
+    }
+
+    public int size() {
+        return buffer.position();
+    }
+
+    // Bytes held, which only grows, as the buffer is kept for the next write
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    // A write that would need the buffer to grow beyond this throws BufferOverflowException instead, leaving the
+    // contents incomplete. Escaped strings reserve room for the worst case, so it may stop a little short.
+    public void setMaxCapacity(final int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+    }
+
+    // Read-only view of what's been written so far. Valid until the next write or clear()
+    public ByteBuffer contents() {
+        final ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.flip();
+        return view;
+    }
+
+    // Backing array and length, for callers (e.g. a Deflater) that want the bytes without another copy
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+        final ByteBuffer view = contents();
+        while (view.hasRemaining()) {
+            channel.write(view);
+        }
+    }
+
+    public void writeCollector(final Collector collector) {
+        if (collector instanceof Exposable) {
+            ((Exposable) collector).expose(this);
+            return;
+        }
+
+        for (MetricFamilySamples family : collector.collect()) {
+            writeFamily(family);
+        }
+    }
+
+    // Fallback for children of a labelled family that aren't ExposableSeries
+    public void writeCollectorSamples(final Collector collector, final byte[] labels) {
+        if (collector instanceof ExposableSeries) {
+            ((ExposableSeries) collector).exposeSamples(this, labels);
+            return;
+        }
+
+        for (MetricFamilySamples family : collector.collect()) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                writeSample(sample, labels);
+            }
+        }
+    }
+
+    public void writeFamily(final MetricFamilySamples family) {
+        writeHeader(family.name, family.help, family.type);
+        for (MetricFamilySamples.Sample sample : family.samples) {
+            writeSample(sample, NO_LABELS);
+        }
+    }
+
+    public void writeBytes(final byte[] bytes) {
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public void writeBytes(final ByteBuffer bytes) {
+        ensureCapacity( bytes.remaining() );
+        buffer.put(bytes);
+    }
+
+    // name{labels extraLabel} value\n, where both label arguments are pre-encoded and either may be empty
+    public void writeSample(final byte[] name, final byte[] labels, final byte[] extraLabel, final double value) {
+        writeBytes(name);
+        if (labels.length > 0 || extraLabel.length > 0) {
+            writeByte('{');
+            writeBytes(labels);
+            writeBytes(extraLabel);
+            writeByte('}');
+        }
+        writeByte(' ');
+        writeDouble(value);
+        writeByte('\n');
+    }
+
+    private void writeSample(final MetricFamilySamples.Sample sample, final byte[] labels) {
+        writeUtf8(sample.name, 0);
+        if (labels.length > 0 || !sample.labelNames.isEmpty()) {
+            writeByte('{');
+            writeBytes(labels);
+            writeLabels(sample.labelNames, sample.labelValues);
+            writeByte('}');
+        }
+        writeByte(' ');
+        writeDouble(sample.value);
+        if (sample.timestampMs != null) {
+            writeByte(' ');
+            writeLong(sample.timestampMs);
+        }
+        writeByte('\n');
+    }
+
+    private void writeHeader(final String name, final String help, final Collector.Type type) {
+        writeAscii("# HELP ");
+        writeUtf8(name, 0);
+        writeByte(' ');
+        writeUtf8(help, ESCAPE_HELP);
+        writeAscii("\n# TYPE ");
+        writeUtf8(name, 0);
+        writeByte(' ');
+        writeAscii( typeString(type) );
+        writeByte('\n');
+    }
+
+    private void writeLabels(final List<String> names, final List<String> values) {
+        for (int i = 0; i < names.size(); i++) {
+            writeUtf8(names.get(i), 0);
+            writeAscii("=\"");
+            writeUtf8(values.get(i), ESCAPE_LABEL_VALUE);
+            writeAscii("\",");
+        }
+    }
+
+    // Same output as Collector.doubleToGoString, but whole numbers are written without creating a String
+    private void writeDouble(final double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            writeAscii("+Inf");
+        } else if (value == Double.NEGATIVE_INFINITY) {
+            writeAscii("-Inf");
+        } else if (value == (long) value && Math.abs(value) < 1E7 && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0d)) {
+            writeLong((long) value);
+            writeAscii(".0");
+        } else {
+            writeAscii( Double.toString(value) );  // NaN included
+        }
+    }
+
+    private void writeLong(final long value) {
+        if (value < 0) {
+            writeByte('-');
+        }
+
+        long remaining = Math.abs(value);
+        int digits = 1;
+        for (long i = remaining; i >= 10; i /= 10) {
+            digits++;
+        }
+
+        ensureCapacity(digits);
+        final int end = buffer.position() + digits;
+        for (int pos = end - 1; pos >= end - digits; pos--) {
+            buffer.put(pos, (byte) ('0' + (remaining % 10)));
+            remaining /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private void writeByte(final char c) {
+        ensureCapacity(1);
+        buffer.put((byte) c);
+    }
+
+    private void writeAscii(final String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private void writeUtf8(final String s, final int escaping) {
+        ensureCapacity(s.length() * 2);  // Enough for plain ASCII plus escapes; anything wider is checked as we go
+
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+
+            if (c == '\\' && escaping != 0) {
+                putAscii('\\', '\\');
+            } else if (c == '\n' && escaping != 0) {
+                putAscii('\\', 'n');
+            } else if (c == '"' && escaping == ESCAPE_LABEL_VALUE) {
+                putAscii('\\', '"');
+            } else if (c < 0x80) {
+                ensureCapacity(1);
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate( s.charAt(i + 1) )) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                ensureCapacity(1);
+                buffer.put((byte) '?');  // Unpaired surrogate, as String.getBytes() would do
+            } else {
+                ensureCapacity(3);
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void putAscii(final char first, final char second) {
+        ensureCapacity(2);
+        buffer.put((byte) first);
+        buffer.put((byte) second);
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (buffer.remaining() < extra) {
+            final long needed = (long) buffer.position() + extra;
+            if (needed > maxCapacity) {
+                throw new BufferOverflowException();
+            }
+            final ByteBuffer bigger = ByteBuffer.allocate( (int) Math.min(maxCapacity, Math.max(buffer.capacity() * 2L, needed)) );
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    private static String typeString(final Collector.Type type) {
+        return type == Collector.Type.UNTYPED ? "untyped" : type.name().toLowerCase(Locale.ROOT);
+    }
+
+    private byte[] toBytes() {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    //////////////////////////////////////////////////////////////////////  Pre-encoding, done once per family/series
+
+    public static byte[] encodeHeader(final String name, final String help, final Collector.Type type) {
+        final ExpositionWriter writer = new ExpositionWriter(name.length() * 2 + help.length() + 32);
+        writer.writeHeader(name, help, type);
+        return writer.toBytes();
+    }
+
+    public static byte[] encodeName(final String name) {
+        final ExpositionWriter writer = new ExpositionWriter(name.length() + 8);
+        writer.writeUtf8(name, 0);
+        return writer.toBytes();
+    }
+
+    // Encoded as name="value", pairs, trailing comma included, which is how TextFormat writes them
+    public static byte[] encodeLabels(final List<String> names, final List<String> values) {
+        final ExpositionWriter writer = new ExpositionWriter(64);
+        writer.writeLabels(names, values);
+        return writer.toBytes();
+    }
+}
@@ -0,0 +1,411 @@
+package uk.co.crunch.impl.exposition;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal embedded scrape endpoint: one selector thread, HTTP/1.1 keep-alive, GET or HEAD of /metrics (or /).
+ * Every response is rendered into the same {@link ExpositionWriter}, and gzipped (when the scraper sends
+ * Accept-Encoding: gzip) through the same Deflater and output array, so a scrape allocates next to nothing.
+ *
+ * Rendering happens on the selector thread, which is fine for the handful of scrapers Prometheus setups have.
+ */
+public final class HttpExporter implements Closeable {
+
+    private static final int MAX_REQUEST_BYTES = 8 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final byte[] NOT_FOUND = response("404 Not Found");
+    private static final byte[] METHOD_NOT_ALLOWED = response("405 Method Not Allowed");
+    private static final byte[] BAD_REQUEST = response("400 Bad Request");
+
+    private final Consumer<ExpositionWriter> source;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Only touched by the selector thread
+    private final ExpositionWriter writer = new ExpositionWriter();
+    private final ByteBuffer responseHeader = ByteBuffer.allocate(256);
+    private final ByteBuffer[] headerAndBody = new ByteBuffer[2];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final CRC32 crc = new CRC32();
+    private byte[] gzipped = new byte[16 * 1024];
+
+    public HttpExporter(final InetSocketAddress address, final Consumer<ExpositionWriter> source) throws IOException {
+        this.source = source;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        this.thread = new Thread(this::run, "prometheus-http-exporter-" + getPort());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                    catch (IOException | RuntimeException e) {  // NOSONAR
+                        // Scraper went away, or a collector failed - either way just drop the connection
+                        closeQuietly(key);
+                    }
+                }
+            }
+        }
+        catch (IOException | ClosedSelectorException e) {  // NOSONAR
+            // Nothing left to serve
+        }
+        finally {
+            for (SelectionKey each : selector.keys()) {
+                closeQuietly(each);
+            }
+            deflater.end();
+            try {
+                selector.close();
+            }
+            catch (IOException e) {  // NOSONAR
+                // Closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Connection connection = (Connection) key.attachment();
+
+        if (channel.read(connection.request) < 0) {
+            closeQuietly(key);
+            return;
+        }
+
+        answerBuffered(key, channel, connection);
+    }
+
+    // Answer every complete request we have, unless a slow scraper still has some of the last response to take
+    private void answerBuffered(final SelectionKey key, final SocketChannel channel, final Connection connection) throws IOException {
+        while (key.isValid() && connection.pending == null) {
+            final int end = endOfHeaders(connection.request);
+            if (end < 0) {
+                if (!connection.request.hasRemaining()) {
+                    connection.closeAfterWrite = true;
+                    send(key, channel, connection, BAD_REQUEST, null);
+                }
+                return;  // Wait for the rest of the request
+            }
+
+            respond(key, channel, connection, end);
+
+            // Keep anything after this request (i.e. a pipelined one)
+            connection.request.flip();
+            connection.request.position(end);
+            connection.request.compact();
+        }
+    }
+
+    private void respond(final SelectionKey key, final SocketChannel channel, final Connection connection, final int end) throws IOException {
+        final ByteBuffer request = connection.request;
+
+        final int methodEnd = indexOf(request, 0, end, ' ');
+        final int pathEnd = methodEnd < 0 ? -1 : indexOf(request, methodEnd + 1, end, ' ');
+        if (pathEnd < 0) {
+            connection.closeAfterWrite = true;
+            send(key, channel, connection, BAD_REQUEST, null);
+            return;
+        }
+
+        final boolean head = regionMatches(request, 0, "HEAD ");
+        if (!head && !regionMatches(request, 0, "GET ")) {
+            connection.closeAfterWrite = true;  // Don't try to make sense of any request body
+            send(key, channel, connection, METHOD_NOT_ALLOWED, null);
+            return;
+        }
+
+        int queryStart = indexOf(request, methodEnd + 1, pathEnd, '?');
+        if (queryStart < 0) {
+            queryStart = pathEnd;
+        }
+        if (!regionEquals(request, methodEnd + 1, queryStart, "/metrics") && !regionEquals(request, methodEnd + 1, queryStart, "/")) {
+            send(key, channel, connection, NOT_FOUND, null);
+            return;
+        }
+
+        final boolean http10 = regionMatches(request, pathEnd + 1, "HTTP/1.0");
+        final int lineEnd = indexOf(request, 0, end, '\n');
+        final boolean gzip = headerContains(request, lineEnd + 1, end, "accept-encoding:", "gzip");
+        connection.closeAfterWrite = http10 ? !headerContains(request, lineEnd + 1, end, "connection:", "keep-alive")
+                                            : headerContains(request, lineEnd + 1, end, "connection:", "close");
+
+        writer.clear();
+        source.accept(writer);
+
+        final ByteBuffer body;
+        if (gzip) {
+            final int length = gzip(writer);  // Before reading gzipped, which this may have grown
+            body = ByteBuffer.wrap(gzipped, 0, length);
+        } else {
+            body = writer.contents();
+        }
+
+        responseHeader.clear();
+        putAscii(responseHeader, "HTTP/1.1 200 OK\r\nContent-Type: ");
+        putAscii(responseHeader, ExpositionWriter.CONTENT_TYPE);
+        putAscii(responseHeader, "\r\nContent-Length: ");
+        putAscii(responseHeader, body.remaining());
+        if (gzip) {
+            putAscii(responseHeader, "\r\nContent-Encoding: gzip");
+        }
+        if (connection.closeAfterWrite) {
+            putAscii(responseHeader, "\r\nConnection: close");
+        }
+        putAscii(responseHeader, "\r\n\r\n");
+        responseHeader.flip();
+
+        send(key, channel, connection, null, head ? null : body);
+    }
+
+    // Writes whatever the socket will take now. Only a slow scraper leaves anything over, and only that gets copied.
+    private void send(final SelectionKey key, final SocketChannel channel, final Connection connection, final byte[] fixed, final ByteBuffer body) throws IOException {
+        if (fixed != null) {
+            responseHeader.clear();
+            responseHeader.put(fixed).flip();
+        }
+
+        if (body == null) {
+            channel.write(responseHeader);
+        } else {
+            headerAndBody[0] = responseHeader;
+            headerAndBody[1] = body;
+            channel.write(headerAndBody);
+            headerAndBody[1] = null;
+        }
+
+        final int remaining = responseHeader.remaining() + (body == null ? 0 : body.remaining());
+        if (remaining > 0) {
+            final ByteBuffer pending = ByteBuffer.allocate(remaining);
+            pending.put(responseHeader);
+            if (body != null) {
+                pending.put(body);
+            }
+            pending.flip();
+            connection.pending = pending;
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (connection.closeAfterWrite) {
+            closeQuietly(key);
+        }
+    }
+
+    private void write(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Connection connection = (Connection) key.attachment();
+        channel.write(connection.pending);
+
+        if (!connection.pending.hasRemaining()) {
+            connection.pending = null;
+            if (connection.closeAfterWrite) {
+                closeQuietly(key);
+            } else {
+                // Pipelined requests may have arrived in full while we were writing, and no more reads would wake us
+                key.interestOps(SelectionKey.OP_READ);
+                answerBuffered(key, channel, connection);
+            }
+        }
+    }
+
+    // Raw deflate plus our own gzip header and trailer, so one Deflater can be reset and reused
+    private int gzip(final ExpositionWriter source) {
+        final int length = source.size();
+
+        crc.reset();
+        crc.update(source.array(), 0, length);
+        deflater.reset();
+        deflater.setInput(source.array(), 0, length);
+        deflater.finish();
+
+        System.arraycopy(GZIP_HEADER, 0, gzipped, 0, GZIP_HEADER.length);
+        int pos = GZIP_HEADER.length;
+        while (!deflater.finished()) {
+            if (pos == gzipped.length) {
+                gzipped = Arrays.copyOf(gzipped, gzipped.length * 2);
+            }
+            pos += deflater.deflate(gzipped, pos, gzipped.length - pos);
+        }
+
+        if (gzipped.length - pos < 8) {
+            gzipped = Arrays.copyOf(gzipped, pos + 8);
+        }
+        pos = putIntLE(gzipped, pos, (int) crc.getValue());
+        return putIntLE(gzipped, pos, length);
+    }
+
+    private static int putIntLE(final byte[] bytes, final int pos, final int value) {
+        bytes[pos] = (byte) value;
+        bytes[pos + 1] = (byte) (value >> 8);
+        bytes[pos + 2] = (byte) (value >> 16);
+        bytes[pos + 3] = (byte) (value >> 24);
+        return pos + 4;
+    }
+
+    // Request parsing straight off the bytes. Positions are absolute within the connection's request buffer.
+
+    private static int endOfHeaders(final ByteBuffer request) {
+        for (int i = 3; i < request.position(); i++) {
+            if (request.get(i) == '\n' && request.get(i - 1) == '\r' && request.get(i - 2) == '\n' && request.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(final ByteBuffer buffer, final int from, final int to, final char c) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(final ByteBuffer buffer, final int from, final String s) {
+        if (from + s.length() > buffer.position()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.toLowerCase( (char) buffer.get(from + i) ) != Character.toLowerCase( s.charAt(i) )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(final ByteBuffer buffer, final int from, final int to, final String s) {
+        return to - from == s.length() && regionMatches(buffer, from, s);
+    }
+
+    // Does any header called name (lower case, colon included) have a value containing token?
+    private static boolean headerContains(final ByteBuffer buffer, final int from, final int to, final String name, final String token) {
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = indexOf(buffer, lineStart, to, '\n');
+            if (lineEnd < 0) {
+                lineEnd = to;
+            }
+            if (regionMatches(buffer, lineStart, name)) {
+                for (int i = lineStart + name.length(); i + token.length() <= lineEnd; i++) {
+                    if (regionMatches(buffer, i, token)) {
+                        return true;
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return false;
+    }
+
+    private static void putAscii(final ByteBuffer buffer, final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private static void putAscii(final ByteBuffer buffer, final int value) {
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private static byte[] response(final String status) {
+        return ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void closeQuietly(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {  // NOSONAR
+            // Closing anyway
+        }
+    }
+
+    private static final class Connection {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        ByteBuffer pending;
+        boolean closeAfterWrite;
+    }
+}
@@ -0,0 +1,420 @@
+package uk.co.crunch.impl.exposition;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Pushes groupings of metrics to a Pushgateway (PUT /metrics/job/<job>/<label>/<value>...) from one daemon thread, so
+ * the threads recording them never wait on the network. Each grouping is encoded into an {@link ExpositionWriter} kept
+ * from push to push, and the requests for every grouping that changed go out together, pipelined over one keep-alive
+ * connection.
+ *
+ * The gateway replaces a grouping's metrics on every PUT, so each push carries a grouping's full current state, and
+ * groupings unchanged since their last successful push are skipped. A push that fails is retried after a jittered,
+ * doubling backoff, and just sends whatever the state is by then: nothing piles up while the gateway is down, and what
+ * is held between pushes (two encodings per grouping) is capped at maxBytes. Encoding stops as soon as a grouping
+ * would take it over, so it's never exceeded even mid-push, and that grouping is dropped until it fits again. Every
+ * grouping is sent again after a failure, and every {@value #FULL_PUSH_EVERY} pushes, in case the gateway has restarted
+ * and lost them.
+ *
+ * Closing, or JVM shutdown, pushes one last time.
+ */
+public final class PushExporter implements Closeable {
+
+    private static final int FULL_PUSH_EVERY = 10;
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final int INITIAL_BUFFER_BYTES = 4096;
+
+    private final String host;
+    private final int port;
+    private final long intervalNanos;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long maxBytes;
+    private final Runnable onFailure;
+    private final Runnable onDropped;
+
+    private final List<Grouping> groupings = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private final Thread thread;
+    private final Thread shutdownHook;
+    private volatile boolean running = true;
+
+    // Only touched under the exporter's lock, i.e. by one push at a time
+    private final List<Grouping> batch = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder();
+    private Socket socket;
+    private InputStream in;
+    private long pushes;
+    private boolean pushAll = true;
+    private int answered;
+    private int rejected;
+    private int lastStatus;
+
+    public PushExporter(final String host, final int port, final long intervalNanos, final long initialBackoffNanos, final long maxBackoffNanos,
+                        final long maxBytes, final Runnable onFailure, final Runnable onDropped) {
+        this.host = host;
+        this.port = port;
+        this.intervalNanos = intervalNanos;
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+        this.maxBytes = maxBytes;
+        this.onFailure = onFailure;
+        this.onDropped = onDropped;
+
+        this.thread = new Thread(this::run, "prometheus-push-exporter-" + host + ":" + port);
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+        this.shutdownHook = new Thread(this::pushOnExit, "prometheus-push-on-exit");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Pushed from the next push on. The source writes the grouping's metrics, e.g. PrometheusMetrics::writeExposition.
+    public PushExporter add(final String job, final Map<String,String> labels, final Consumer<ExpositionWriter> source) {
+        final StringBuilder path = new StringBuilder("/metrics");
+        appendPathSegment(path, "job", job);
+        for (Map.Entry<String,String> each : labels.entrySet()) {
+            appendPathSegment(path, each.getKey(), each.getValue());
+        }
+
+        final String requestHead = "PUT " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nContent-Type: " + ExpositionWriter.CONTENT_TYPE + "\r\nContent-Length: ";
+        groupings.add( new Grouping(requestHead.getBytes(StandardCharsets.US_ASCII), source) );
+        return this;
+    }
+
+    // Stops the background pushes, then pushes one last time, throwing if that fails
+    @Override
+    public void close() throws IOException {
+        stop();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        catch (IllegalStateException e) {  // NOSONAR
+            // Already shutting down, and the hook will push
+        }
+        try {
+            push();
+        }
+        finally {
+            closeConnection();
+        }
+    }
+
+    // Pushes every grouping that's changed, now, on the caller's thread
+    public void push() throws IOException {
+        synchronized (lock) {
+            final boolean all = ++pushes % FULL_PUSH_EVERY == 0 || pushAll;
+            pushAll = true;  // Until every grouping has gone through
+
+            batch.clear();
+            long held = 0;
+            for (Grouping each : groupings) {
+                if (!each.encode(maxBytes - held) || held + each.heldBytes() > maxBytes) {
+                    each.release();
+                    onDropped.run();
+                    continue;
+                }
+                held += each.heldBytes();
+
+                if (all || !each.unchanged()) {
+                    batch.add(each);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                final boolean reused = socket != null;
+                try {
+                    send();
+                }
+                catch (IOException e) {
+                    closeConnection();
+                    if (!reused || answered > 0) {
+                        throw e;
+                    }
+                    send();  // The gateway may just have closed an idle connection, so try once more on a new one
+                }
+                if (rejected > 0) {
+                    throw new IOException("Push gateway " + host + ":" + port + " answered " + lastStatus + " for " + rejected + " of " + batch.size() + " groupings");
+                }
+            }
+            pushAll = false;
+        }
+    }
+
+    private void run() {
+        long delay = intervalNanos;
+        long backoff = initialBackoffNanos;
+        while (waitFor(delay)) {
+            try {
+                push();
+                delay = intervalNanos;
+                backoff = initialBackoffNanos;
+            }
+            catch (IOException | RuntimeException e) {
+                onFailure.run();
+                delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                backoff = Math.min(backoff * 2, maxBackoffNanos);
+            }
+        }
+    }
+
+    private boolean waitFor(final long nanos) {
+        final long deadline = System.nanoTime() + nanos;
+        synchronized (lock) {
+            try {
+                long remaining;
+                while (running && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+            return running;
+        }
+    }
+
+    private void stop() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(TIMEOUT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void pushOnExit() {
+        stop();
+        try {
+            push();
+        }
+        catch (IOException | RuntimeException e) {  // NOSONAR
+            // Nowhere left to report it
+        }
+        finally {
+            closeConnection();
+        }
+    }
+
+    // All requests first, then all responses. Groupings not answered with a 2xx are counted in rejected, and go again
+    // next time.
+    private void send() throws IOException {
+        answered = 0;
+        rejected = 0;
+        if (socket == null) {
+            final Socket newSocket = new Socket();
+            newSocket.setTcpNoDelay(true);
+            newSocket.setSoTimeout(TIMEOUT_MILLIS);
+            newSocket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            socket = newSocket;
+            in = new BufferedInputStream(newSocket.getInputStream());
+        }
+
+        final OutputStream out = socket.getOutputStream();
+        for (Grouping each : batch) {
+            out.write(each.requestHead);
+            out.write( (each.pending.size() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII) );
+            out.write(each.pending.array(), 0, each.pending.size());
+        }
+        out.flush();
+
+        boolean closeAfter = false;
+        for (Grouping each : batch) {
+            final int status = readStatusLine();
+            closeAfter |= skipHeadersAndBody();
+            answered++;
+            if (status / 100 == 2) {
+                each.pushed();
+            } else {
+                rejected++;
+                lastStatus = status;
+            }
+        }
+
+        if (closeAfter) {
+            closeConnection();
+        }
+    }
+
+    private int readStatusLine() throws IOException {
+        final String statusLine = readLine();
+        if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+            throw new IOException("Unexpected response from push gateway: " + statusLine);
+        }
+        try {
+            return Integer.parseInt( statusLine.substring(9, 12) );
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Unexpected response from push gateway: " + statusLine, e);
+        }
+    }
+
+    // Whether the gateway is closing the connection
+    private boolean skipHeadersAndBody() throws IOException {
+        long contentLength = 0;
+        boolean chunked = false;
+        boolean close = false;
+        for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+            final String lower = header.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("content-length:")) {
+                contentLength = Long.parseLong( lower.substring(15).trim() );
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                close = true;
+            }
+        }
+
+        if (!chunked) {
+            skip(contentLength);
+            return close;
+        }
+        for (long chunk = chunkSize( readLine() ); chunk > 0; chunk = chunkSize( readLine() )) {
+            skip(chunk + 2);  // Chunk, then CRLF
+        }
+        for (String trailer = readLine(); !trailer.isEmpty(); trailer = readLine()) {
+            // Ignored
+        }
+        return close;
+    }
+
+    private static long chunkSize(final String chunkLine) throws IOException {
+        final int extension = chunkLine.indexOf(';');
+        try {
+            return Long.parseLong((extension < 0 ? chunkLine : chunkLine.substring(0, extension)).trim(), 16);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Bad chunk from push gateway: " + chunkLine, e);
+        }
+    }
+
+    private void skip(final long bytes) throws IOException {
+        for (long remaining = bytes; remaining > 0; ) {
+            if (in.read() < 0) {
+                throw new EOFException("Push gateway closed the connection mid-response");
+            }
+            remaining -= 1 + in.skip(remaining - 1);
+        }
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException("Push gateway closed the connection");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void closeConnection() {
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {  // NOSONAR
+                // Closing anyway
+            }
+            socket = null;
+            in = null;
+        }
+    }
+
+    // Values that are empty or contain '/' can only go in the path base64-encoded, as label@base64/<value>
+    private static void appendPathSegment(final StringBuilder path, final String name, final String value) {
+        if (value.isEmpty() || value.indexOf('/') >= 0) {
+            path.append('/').append(name).append("@base64/");
+            path.append(value.isEmpty() ? "=" : Base64.getUrlEncoder().encodeToString( value.getBytes(StandardCharsets.UTF_8) ));
+        } else {
+            path.append('/').append(name).append('/').append( urlEncode(value) );
+        }
+    }
+
+    private static String urlEncode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");  // A path segment, not a form
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Grouping {
+        final byte[] requestHead;  // Up to the Content-Length value
+        final Consumer<ExpositionWriter> source;
+
+        // Swapped once pending has been pushed, so both buffers are reused
+        ExpositionWriter pending = new ExpositionWriter(INITIAL_BUFFER_BYTES);
+        ExpositionWriter lastPushed = new ExpositionWriter(INITIAL_BUFFER_BYTES);
+        boolean everPushed;
+
+        Grouping(final byte[] requestHead, final Consumer<ExpositionWriter> source) {
+            this.requestHead = requestHead;
+            this.source = source;
+        }
+
+        // False if it would have taken more than what's left of the budget, counting what's held for lastPushed
+        boolean encode(final long budget) {
+            pending.clear();
+            pending.setMaxCapacity( (int) Math.max(0, Math.min(Integer.MAX_VALUE, budget - lastPushed.capacity())) );
+            try {
+                source.accept(pending);
+                return true;
+            }
+            catch (BufferOverflowException e) {  // NOSONAR
+                return false;
+            }
+        }
+
+        long heldBytes() {
+            return (long) pending.capacity() + lastPushed.capacity();
+        }
+
+        boolean unchanged() {
+            return everPushed && pending.contents().equals( lastPushed.contents() );
+        }
+
+        void pushed() {
+            final ExpositionWriter swap = lastPushed;
+            lastPushed = pending;
+            pending = swap;
+            everPushed = true;
+        }
+
+        // Too big to hold: back to small buffers, and pushed again once it fits
+        void release() {
+            pending = new ExpositionWriter(INITIAL_BUFFER_BYTES);
+            lastPushed = new ExpositionWriter(INITIAL_BUFFER_BYTES);
+            everPushed = false;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.crunch.impl.exposition;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the last encoded exposition for a fixed window, so that however many scrapers turn up, collection runs at
+ * most once per window. A fresh snapshot is served without locking. Once it's stale, the first scraper re-collects
+ * while the rest wait for it and then share its result.
+ */
+public final class ScrapeCache {
+
+    private final Consumer<ExpositionWriter> source;
+    private final long windowNanos;
+    private final Runnable onHit;
+    private final Runnable onMiss;
+
+    private final ExpositionWriter writer = new ExpositionWriter();  // Guarded by this
+    private volatile Snapshot snapshot;
+
+    public ScrapeCache(final Consumer<ExpositionWriter> source, final long windowNanos, final Runnable onHit, final Runnable onMiss) {
+        if (windowNanos <= 0) {
+            throw new IllegalArgumentException("Cache window must be positive");
+        }
+        this.source = source;
+        this.windowNanos = windowNanos;
+        this.onHit = onHit;
+        this.onMiss = onMiss;
+    }
+
+    // Read-only view of the current snapshot, collecting a new one first if it's stale
+    public ByteBuffer get() {
+        final Snapshot current = this.snapshot;
+        if (current != null && isFresh(current)) {
+            onHit.run();
+            return current.view();
+        }
+        return refresh();
+    }
+
+    public void writeTo(final ExpositionWriter target) {
+        target.writeBytes( get() );
+    }
+
+    private synchronized ByteBuffer refresh() {
+        final Snapshot current = this.snapshot;
+        if (current != null && isFresh(current)) {
+            onHit.run();  // Someone else collected it while we waited
+            return current.view();
+        }
+
+        onMiss.run();
+
+        writer.clear();
+        source.accept(writer);
+
+        final Snapshot fresh = new Snapshot(Arrays.copyOf(writer.array(), writer.size()), System.nanoTime());
+        this.snapshot = fresh;
+        return fresh.view();
+    }
+
+    private boolean isFresh(final Snapshot snapshot) {
+        return System.nanoTime() - snapshot.takenAtNanos < windowNanos;
+    }
+
+    private static final class Snapshot {
+        final byte[] bytes;
+        final long takenAtNanos;
+
+        Snapshot(final byte[] bytes, final long takenAtNanos) {
+            this.bytes = bytes;
+            this.takenAtNanos = takenAtNanos;
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+}
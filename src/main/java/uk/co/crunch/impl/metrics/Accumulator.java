@@ -0,0 +1,10 @@
+package uk.co.crunch.impl.metrics;
+
+/**
+ * Storage behind a counter or gauge, so that PrometheusMetrics can swap between implementations, e.g.
+ * {@link AdderMetric} and {@link StripedMetric}.
+ */
+public interface Accumulator {
+    void add(double amount);
+    double get();
+}
@@ -0,0 +1,35 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Default counter or gauge: a single DoubleAdder, much as simpleclient's own types, but {@link ValueMetric} lets the
+ * streaming writer read it without collect().
+ */
+public final class AdderMetric extends ValueMetric {
+
+    private final DoubleAdder value = new DoubleAdder();
+
+    private AdderMetric(final String name, final String help, final Type type) {
+        super(name, help, type);
+    }
+
+    public static AdderMetric counter(final String name, final String help) {
+        return new AdderMetric(name, help, Type.COUNTER);
+    }
+
+    public static AdderMetric gauge(final String name, final String help) {
+        return new AdderMetric(name, help, Type.GAUGE);
+    }
+
+    @Override
+    public void add(final double amount) {
+        checkIncrement(amount);
+        value.add(amount);
+    }
+
+    @Override
+    public double get() {
+        return value.sum();
+    }
+}
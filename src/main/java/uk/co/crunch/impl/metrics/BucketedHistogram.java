@@ -0,0 +1,241 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.ExposableSeries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Base for our histograms. Buckets are addressed as (row, column), each row a primitive array of counts, created the
+ * first time a value lands in it, and the subclass maps values to buckets. Since that mapping is exposed,
+ * per-thread buffers ({@link BufferedHistogram}) can bucket values themselves and merge plain counts in later.
+ *
+ * _count goes first and scrapes read it last, so +Inf can never be less than the buckets below it.
+ */
+public abstract class BucketedHistogram extends Collector implements Distribution, ExposableSeries, Checkpointable {
+
+    // bucketOf() for values only counted in +Inf
+    static final int INF_ONLY = -1;
+
+    private static final List<String> LE = singletonList("le");
+    private static final byte[] ENCODED_INF_LE = ExpositionWriter.encodeLabels(LE, singletonList("+Inf"));
+
+    private final String name;
+    private final String help;
+    private final int columns;
+    private final boolean exposeEmptyBuckets;
+
+    // Pre-encoded for the streaming writer
+    private final byte[] encodedHeader;
+    private final byte[] encodedBucketName;
+    private final byte[] encodedCountName;
+    private final byte[] encodedSumName;
+
+    private final AtomicReferenceArray<AtomicLongArray> rows;
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+
+    // Scrape-side, only touched under this object's lock: le labels, encoded the first time each bucket is exposed
+    private final byte[][][] encodedLes;
+
+    // With exposeEmptyBuckets, every bucket exists from the start and is always exposed; without, only populated ones
+    BucketedHistogram(final String name, final String help, final int rows, final int columns, final boolean exposeEmptyBuckets) {
+        if (columns > 0xffff) {
+            throw new IllegalArgumentException("Too many buckets: " + columns);
+        }
+        checkMetricName(name);  // As simpleclient's Histogram builder does
+        this.name = name;
+        this.help = help;
+        this.columns = columns;
+        this.exposeEmptyBuckets = exposeEmptyBuckets;
+        this.rows = new AtomicReferenceArray<>(rows);
+        this.encodedLes = new byte[rows][][];
+
+        if (exposeEmptyBuckets) {
+            for (int i = 0; i < rows; i++) {
+                this.rows.set(i, new AtomicLongArray(columns));
+            }
+        }
+
+        this.encodedHeader = ExpositionWriter.encodeHeader(name, help, Type.HISTOGRAM);
+        this.encodedBucketName = ExpositionWriter.encodeName(name + "_bucket");
+        this.encodedCountName = ExpositionWriter.encodeName(name + "_count");
+        this.encodedSumName = ExpositionWriter.encodeName(name + "_sum");
+    }
+
+    // row << 16 | column, or INF_ONLY
+    abstract int bucketOf(double value);
+
+    abstract double upperBound(int row, int column);
+
+    final int rowCount() {
+        return rows.length();
+    }
+
+    final int columnCount() {
+        return columns;
+    }
+
+    @Override
+    public final void observe(final double value) {
+        count.increment();
+        sum.add(value);
+
+        final int bucket = bucketOf(value);
+        if (bucket != INF_ONLY) {
+            row(bucket >>> 16).incrementAndGet(bucket & 0xffff);
+        }
+    }
+
+    // Counts bucketed elsewhere. Like observe(), add the count and sum before the buckets.
+    final void addCountAndSum(final long observations, final double total) {
+        count.add(observations);
+        sum.add(total);
+    }
+
+    final void addToBucket(final int row, final int column, final long observations) {
+        row(row).addAndGet(column, observations);
+    }
+
+    private AtomicLongArray row(final int row) {
+        final AtomicLongArray counts = rows.get(row);
+        if (counts != null) {
+            return counts;
+        }
+        rows.compareAndSet(row, null, new AtomicLongArray(columns));
+        return rows.get(row);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    // Buckets before _count, as for scrapes
+    @Override
+    public double[] checkpoint() {
+        double[] state = new double[8];
+        int length = 2;
+        for (int row = 0; row < rows.length(); row++) {
+            final AtomicLongArray counts = rows.get(row);
+            if (counts == null) {
+                continue;
+            }
+            for (int i = 0; i < columns; i++) {
+                final long bucketCount = counts.get(i);
+                if (bucketCount > 0) {
+                    if (length == state.length) {
+                        state = Arrays.copyOf(state, 2 * length);
+                    }
+                    state[length++] = upperBound(row, i);
+                    state[length++] = bucketCount;
+                }
+            }
+        }
+
+        state[0] = count.sum();
+        state[1] = sum.sum();
+        return length == state.length ? state : Arrays.copyOf(state, length);
+    }
+
+    // Every bound must still be exactly a bucket's upper bound, or nothing is restored
+    @Override
+    public boolean restore(final double[] state) {
+        if (state.length < 2 || state.length % 2 != 0) {
+            return false;
+        }
+        final int[] buckets = new int[(state.length - 2) / 2];
+        for (int i = 0; i < buckets.length; i++) {
+            final double bound = state[2 + 2 * i];
+            buckets[i] = bucketOf(bound);
+            if (buckets[i] == INF_ONLY || upperBound(buckets[i] >>> 16, buckets[i] & 0xffff) != bound) {
+                return false;
+            }
+        }
+
+        addCountAndSum((long) state[0], state[1]);
+        for (int i = 0; i < buckets.length; i++) {
+            addToBucket(buckets[i] >>> 16, buckets[i] & 0xffff, (long) state[3 + 2 * i]);
+        }
+        return true;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        final String bucketName = name + "_bucket";
+
+        long cumulative = 0;
+        for (int row = 0; row < rows.length(); row++) {
+            final AtomicLongArray counts = rows.get(row);
+            if (counts == null) {
+                continue;
+            }
+            for (int i = 0; i < columns; i++) {
+                final long bucketCount = counts.get(i);
+                if (bucketCount > 0 || exposeEmptyBuckets) {
+                    cumulative += bucketCount;
+                    samples.add( new MetricFamilySamples.Sample(bucketName, LE, singletonList( doubleToGoString( upperBound(row, i) ) ), cumulative) );
+                }
+            }
+        }
+
+        final long total = count.sum();
+        samples.add( new MetricFamilySamples.Sample(bucketName, LE, singletonList("+Inf"), total) );
+        samples.add( new MetricFamilySamples.Sample(name + "_count", emptyList(), emptyList(), total) );
+        samples.add( new MetricFamilySamples.Sample(name + "_sum", emptyList(), emptyList(), sum.sum()) );
+
+        return singletonList( new MetricFamilySamples(name, Type.HISTOGRAM, help, samples) );
+    }
+
+    @Override
+    public void expose(final ExpositionWriter writer) {
+        writer.writeBytes(encodedHeader);
+        exposeSamples(writer, ExpositionWriter.NO_LABELS);
+    }
+
+    @Override
+    public void exposeSamples(final ExpositionWriter writer, final byte[] labels) {
+        long cumulative = 0;
+        synchronized (this) {
+            for (int row = 0; row < rows.length(); row++) {
+                final AtomicLongArray counts = rows.get(row);
+                if (counts == null) {
+                    continue;
+                }
+                for (int i = 0; i < columns; i++) {
+                    final long bucketCount = counts.get(i);
+                    if (bucketCount > 0 || exposeEmptyBuckets) {
+                        cumulative += bucketCount;
+                        writer.writeSample(encodedBucketName, labels, encodedLe(row, i), cumulative);
+                    }
+                }
+            }
+        }
+
+        final long total = count.sum();
+        writer.writeSample(encodedBucketName, labels, ENCODED_INF_LE, total);
+        writer.writeSample(encodedCountName, labels, ExpositionWriter.NO_LABELS, total);
+        writer.writeSample(encodedSumName, labels, ExpositionWriter.NO_LABELS, sum.sum());
+    }
+
+    private byte[] encodedLe(final int row, final int column) {
+        if (encodedLes[row] == null) {
+            encodedLes[row] = new byte[columns][];
+        }
+        if (encodedLes[row][column] == null) {
+            encodedLes[row][column] = ExpositionWriter.encodeLabels(LE, singletonList( doubleToGoString( upperBound(row, column) ) ));
+        }
+        return encodedLes[row][column];
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.crunch.impl.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes {@link Buffered} metrics on a timer, from a single daemon thread shared by them all, started on first use.
+ * Only holds metrics weakly: a metric nothing else refers to any more is simply dropped.
+ */
+final class BufferFlusher {
+
+    // For metrics only meant to be flushed at scrape time: often enough to release the buffers of dead threads
+    static final long REAPER_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private BufferFlusher() {}
+
+    private static final class Holder {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "prometheus-buffer-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static void schedule(final Buffered buffered, final long intervalNanos) {
+        final Task task = new Task(buffered);
+        task.future = Holder.EXECUTOR.scheduleWithFixedDelay(task, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static final class Task implements Runnable {
+        private final WeakReference<Buffered> buffered;
+        volatile ScheduledFuture<?> future;
+
+        Task(final Buffered buffered) {
+            this.buffered = new WeakReference<>(buffered);
+        }
+
+        @Override
+        public void run() {
+            final Buffered target = buffered.get();
+            if (target != null) {
+                target.flush();
+            } else if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package uk.co.crunch.impl.metrics;
+
+/**
+ * Storage that records into per-thread buffers, and only merges them into the shared metric on flush().
+ */
+public interface Buffered {
+    void flush();
+}
@@ -0,0 +1,82 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter storage where each thread adds into its own running total, with no atomic read-modify-write and nothing
+ * shared, and flush() adds what each total has grown by since the last flush into the shared metric. A thread that
+ * has died is flushed one last time and then forgotten, so nothing it recorded is ever lost. Each cell holds its
+ * thread until then, so there's always a timed flush, if only a slow one, to let go of threads that have died even
+ * when nothing is ever scraped.
+ */
+public final class BufferedAccumulator implements Accumulator, Buffered {
+
+    private final ValueMetric shared;
+    private final ThreadLocal<Cell> cells = ThreadLocal.withInitial(this::newCell);
+    private final List<Cell> allCells = new CopyOnWriteArrayList<>();
+
+    public BufferedAccumulator(final ValueMetric shared, final long flushIntervalNanos) {
+        this.shared = shared;
+        BufferFlusher.schedule(this, flushIntervalNanos > 0 ? flushIntervalNanos : BufferFlusher.REAPER_INTERVAL_NANOS);
+    }
+
+    // Only ever written by its own thread, so a plain read and an ordered write will do
+    @Override
+    public void add(final double amount) {
+        shared.checkIncrement(amount);
+        final Cell cell = cells.get();
+        cell.lazySet( Double.doubleToRawLongBits( Double.longBitsToDouble( cell.get() ) + amount ) );
+    }
+
+    @Override
+    public double get() {
+        flush();
+        return shared.get();
+    }
+
+    @Override
+    public synchronized void flush() {
+        List<Cell> dead = null;
+        for (Cell each : allCells) {
+            // Checked first: once a thread is seen to have died, everything it wrote is visible
+            final boolean died = !each.owner.isAlive();
+
+            final double total = Double.longBitsToDouble( each.get() );
+            if (total != each.flushed) {
+                shared.add(total - each.flushed);
+                each.flushed = total;
+            }
+
+            if (died) {
+                dead = dead != null ? dead : new ArrayList<>();
+                dead.add(each);
+            }
+        }
+
+        // One copy of the list, however many died
+        if (dead != null) {
+            allCells.removeAll(dead);
+        }
+    }
+
+    private Cell newCell() {
+        final Cell cell = new Cell( Thread.currentThread() );
+        allCells.add(cell);
+        return cell;
+    }
+
+    // The thread's running total, as double bits
+    @SuppressWarnings("serial")
+    private static final class Cell extends AtomicLong {
+        final Thread owner;
+        double flushed;  // Guarded by the accumulator's lock
+
+        Cell(final Thread owner) {
+            super( Double.doubleToRawLongBits(0.0) );
+            this.owner = owner;
+        }
+    }
+}
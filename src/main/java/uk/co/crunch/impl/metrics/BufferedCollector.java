@@ -0,0 +1,59 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.ExposableSeries;
+
+import java.util.List;
+
+/**
+ * Registered in place of a buffered metric's own collector, so that every scrape, streaming or not, flushes the
+ * per-thread buffers first.
+ */
+public final class BufferedCollector extends Collector implements ExposableSeries, Checkpointable {
+
+    private final Collector shared;
+    private final Checkpointable sharedState;
+    private final Buffered buffered;
+
+    public <C extends Collector & Checkpointable> BufferedCollector(final C shared, final Buffered buffered) {
+        this.shared = shared;
+        this.sharedState = shared;
+        this.buffered = buffered;
+    }
+
+    @Override
+    public String getName() {
+        return sharedState.getName();
+    }
+
+    @Override
+    public double[] checkpoint() {
+        buffered.flush();
+        return sharedState.checkpoint();
+    }
+
+    // Straight into the shared metric, which the buffers only ever add to
+    @Override
+    public boolean restore(final double[] state) {
+        return sharedState.restore(state);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        buffered.flush();
+        return shared.collect();
+    }
+
+    @Override
+    public void expose(final ExpositionWriter writer) {
+        buffered.flush();
+        writer.writeCollector(shared);
+    }
+
+    @Override
+    public void exposeSamples(final ExpositionWriter writer, final byte[] labels) {
+        buffered.flush();
+        writer.writeCollectorSamples(shared, labels);
+    }
+}
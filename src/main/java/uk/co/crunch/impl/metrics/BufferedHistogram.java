@@ -0,0 +1,150 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Histogram storage where each thread buckets its own observations into its own running counts, with no atomic
+ * read-modify-write and nothing shared, and flush() adds what each count has grown by since the last flush into the
+ * shared histogram. A thread that has died is flushed one last time and then forgotten, so nothing it recorded is
+ * ever lost. Each cell holds its thread until then, so there's always a timed flush, if only a slow one, to let go
+ * of threads that have died even when nothing is ever scraped.
+ */
+public final class BufferedHistogram implements Distribution, Buffered {
+
+    private final BucketedHistogram shared;
+    private final ThreadLocal<Cell> cells = ThreadLocal.withInitial(this::newCell);
+    private final List<Cell> allCells = new CopyOnWriteArrayList<>();
+
+    // Bucket counts as read during a flush, and which rows were there to read, guarded by this object's lock
+    private final long[][] snapshot;
+    private final boolean[] snapshotted;
+
+    public BufferedHistogram(final BucketedHistogram shared, final long flushIntervalNanos) {
+        this.shared = shared;
+        this.snapshot = new long[shared.rowCount()][];
+        this.snapshotted = new boolean[shared.rowCount()];
+        BufferFlusher.schedule(this, flushIntervalNanos > 0 ? flushIntervalNanos : BufferFlusher.REAPER_INTERVAL_NANOS);
+    }
+
+    // Only ever written by its own thread, so plain reads and ordered writes will do. There's no separate count:
+    // the flush adds up the buckets.
+    @Override
+    public void observe(final double value) {
+        final Cell cell = cells.get();
+        cell.sum.lazySet( Double.doubleToRawLongBits( Double.longBitsToDouble( cell.sum.get() ) + value ) );
+
+        final int bucket = shared.bucketOf(value);
+        if (bucket != BucketedHistogram.INF_ONLY) {
+            final AtomicLongArray counts = cell.row(bucket >>> 16);
+            final int column = bucket & 0xffff;
+            counts.lazySet(column, counts.get(column) + 1);
+        } else {
+            cell.infOnly.lazySet(cell.infOnly.get() + 1);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        List<Cell> dead = null;
+        for (Cell each : allCells) {
+            // Checked first: once a thread is seen to have died, everything it wrote is visible
+            final boolean died = !each.owner.isAlive();
+
+            flush(each);
+
+            if (died) {
+                dead = dead != null ? dead : new ArrayList<>();
+                dead.add(each);
+            }
+        }
+
+        // One copy of the list, however many died
+        if (dead != null) {
+            allCells.removeAll(dead);
+        }
+    }
+
+    // The count is merged before the buckets it's made up of, so that the shared count never falls behind them
+    private void flush(final Cell cell) {
+        long count = cell.infOnly.get();
+        for (int row = 0; row < snapshot.length; row++) {
+            final AtomicLongArray counts = cell.rows.get(row);
+            snapshotted[row] = counts != null;
+            if (counts != null) {
+                if (snapshot[row] == null) {
+                    snapshot[row] = new long[shared.columnCount()];
+                }
+                for (int i = 0; i < counts.length(); i++) {
+                    snapshot[row][i] = counts.get(i);
+                    count += snapshot[row][i];
+                }
+            }
+        }
+        if (count == cell.flushedCount) {
+            return;
+        }
+
+        final double sum = Double.longBitsToDouble( cell.sum.get() );
+        shared.addCountAndSum(count - cell.flushedCount, sum - cell.flushedSum);
+        cell.flushedCount = count;
+        cell.flushedSum = sum;
+
+        for (int row = 0; row < snapshot.length; row++) {
+            if (!snapshotted[row]) {
+                continue;
+            }
+            if (cell.flushedRows[row] == null) {
+                cell.flushedRows[row] = new long[shared.columnCount()];
+            }
+            final long[] flushed = cell.flushedRows[row];
+            for (int i = 0; i < flushed.length; i++) {
+                if (snapshot[row][i] != flushed[i]) {
+                    shared.addToBucket(row, i, snapshot[row][i] - flushed[i]);
+                    flushed[i] = snapshot[row][i];
+                }
+            }
+        }
+    }
+
+    private Cell newCell() {
+        final Cell cell = new Cell(Thread.currentThread(), shared.rowCount(), shared.columnCount());
+        allCells.add(cell);
+        return cell;
+    }
+
+    // The thread's running totals
+    private static final class Cell {
+        final Thread owner;
+        final int columns;
+        final AtomicLong infOnly = new AtomicLong();  // Values beyond the last bucket
+        final AtomicLong sum = new AtomicLong( Double.doubleToRawLongBits(0.0) );
+        final AtomicReferenceArray<AtomicLongArray> rows;
+
+        // Guarded by the histogram's lock
+        long flushedCount;
+        double flushedSum;
+        final long[][] flushedRows;
+
+        Cell(final Thread owner, final int rows, final int columns) {
+            this.owner = owner;
+            this.columns = columns;
+            this.rows = new AtomicReferenceArray<>(rows);
+            this.flushedRows = new long[rows][];
+        }
+
+        // Only the owner creates rows, so no need to CAS
+        AtomicLongArray row(final int row) {
+            AtomicLongArray counts = rows.get(row);
+            if (counts == null) {
+                counts = new AtomicLongArray(columns);
+                rows.lazySet(row, counts);
+            }
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package uk.co.crunch.impl.metrics;
+
+/**
+ * A counter or histogram whose state can be saved and added back into a later process's metric, so that a restart
+ * doesn't look like a reset. Neither method blocks recording.
+ *
+ * State is [value] for counters, and [count, sum, then upper bound and count for each populated bucket] for histograms.
+ */
+public interface Checkpointable {
+    String getName();
+
+    double[] checkpoint();
+
+    // False, leaving the metric as it was, if the state doesn't fit, e.g. the histogram's buckets have changed since
+    boolean restore(double[] state);
+}
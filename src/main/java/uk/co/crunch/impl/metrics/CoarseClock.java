@@ -0,0 +1,44 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * System.nanoTime() as of the last tick of a daemon thread, so readers pay for a volatile load rather than a clock
+ * read. One clock, and one thread, per resolution, started on first use and kept for the life of the process.
+ */
+public final class CoarseClock implements LongSupplier {
+
+    private static final ConcurrentMap<Long,CoarseClock> BY_RESOLUTION = new ConcurrentHashMap<>();
+
+    private final long resolutionNanos;
+    private volatile long nanoTime = System.nanoTime();
+
+    private CoarseClock(final long resolutionNanos) {
+        this.resolutionNanos = resolutionNanos;
+    }
+
+    public static CoarseClock withResolution(final long resolutionNanos) {
+        return BY_RESOLUTION.computeIfAbsent(resolutionNanos, r -> {
+            final CoarseClock clock = new CoarseClock(r);
+            final Thread ticker = new Thread(clock::tick, "prometheus-coarse-clock-" + r + "ns");
+            ticker.setDaemon(true);
+            ticker.start();
+            return clock;
+        });
+    }
+
+    @Override
+    public long getAsLong() {
+        return nanoTime;
+    }
+
+    private void tick() {
+        while (true) {
+            LockSupport.parkNanos(resolutionNanos);
+            nanoTime = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of daemon threads that {@link ScheduledCollector}s collect on, and the time budget each gets per
+ * scrape. A collector never has more than one collect() queued or running, so the queue can't grow past the number of
+ * collectors, however slow they get.
+ */
+public final class CollectionScheduler {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    final ExecutorService executor;
+    final long budgetNanos;
+
+    public CollectionScheduler(final int threads, final long budgetNanos) {
+        this.budgetNanos = budgetNanos;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "prometheus-collector-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ScheduledCollector schedule(final String name, final Collector collector) {
+        return new ScheduledCollector(name, collector, this);
+    }
+}
@@ -0,0 +1,57 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.api.CollectorCost;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Self-metrics for every {@link CostTrackingCollector}, one series per collector, labelled collector="<name>". Not
+ * tracked itself, so scraping it doesn't change what it reports.
+ */
+public final class CollectorCosts extends Collector {
+
+    private static final List<String> LABEL_NAMES = Collections.singletonList("collector");
+
+    private final String prefix;
+    private final Iterable<CostTrackingCollector> tracked;
+
+    public CollectorCosts(final String prefix, final Iterable<CostTrackingCollector> tracked) {
+        this.prefix = prefix;
+        this.tracked = tracked;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<CollectorCost> costs = new ArrayList<>();
+        for (CostTrackingCollector each : tracked) {
+            costs.add( each.snapshot() );
+        }
+
+        final List<MetricFamilySamples> result = new ArrayList<>();
+        result.add( family("collector_collects", Type.COUNTER, "Times each custom collector was collected", costs, c -> c.getCollects()) );
+        result.add( family("collector_failures", Type.COUNTER, "Collects that threw", costs, c -> c.getFailures()) );
+        result.add( family("collector_seconds", Type.COUNTER, "Total time spent collecting", costs, c -> c.getTotalNanos() / 1E9) );
+        result.add( family("collector_last_seconds", Type.GAUGE, "Time the last collect took", costs, c -> c.getLastNanos() / 1E9) );
+        result.add( family("collector_last_samples", Type.GAUGE, "Samples returned by the last successful collect", costs, c -> c.getLastSamples()) );
+        if (CostTrackingCollector.isAllocationCounted()) {
+            result.add( family("collector_allocated_bytes", Type.COUNTER, "Total bytes allocated while collecting", costs, c -> c.getTotalAllocatedBytes()) );
+            result.add( family("collector_last_allocated_bytes", Type.GAUGE, "Bytes allocated by the last collect", costs, c -> c.getLastAllocatedBytes()) );
+        }
+        return result;
+    }
+
+    private MetricFamilySamples family(final String name, final Type type, final String help, final List<CollectorCost> costs, final Value value) {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>( costs.size() );
+        for (CollectorCost each : costs) {
+            samples.add( new MetricFamilySamples.Sample(prefix + name, LABEL_NAMES, Collections.singletonList( each.getName() ), value.of(each)) );
+        }
+        return new MetricFamilySamples(prefix + name, type, help, samples);
+    }
+
+    private interface Value {
+        double of(CollectorCost cost);
+    }
+}
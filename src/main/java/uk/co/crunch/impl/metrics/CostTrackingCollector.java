@@ -0,0 +1,111 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.api.CollectorCost;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Wraps a collector to record what each collect() costs: time taken, samples returned, and bytes allocated by the
+ * collecting thread, where the JVM can count them (HotSpot's com.sun.management.ThreadMXBean).
+ *
+ * Describable, so that registering it doesn't count as a scrape: describe() passes through to the wrapped collector,
+ * or calls its collect() without recording anything.
+ */
+public final class CostTrackingCollector extends Collector implements Collector.Describable {
+
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+    private final String name;
+    private final Collector delegate;
+
+    // Guarded by this. Taken once per scrape, so never contended in practice.
+    private long collects;
+    private long failures;
+    private long totalNanos;
+    private long lastNanos;
+    private int lastSamples;
+    private long totalAllocatedBytes;
+    private long lastAllocatedBytes;
+
+    public CostTrackingCollector(final String name, final Collector delegate) {
+        this.name = name;
+        this.delegate = delegate;
+    }
+
+    public static boolean isAllocationCounted() {
+        return ALLOCATIONS != null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = ALLOCATIONS != null ? ALLOCATIONS.getThreadAllocatedBytes(threadId) : 0;
+        final long start = System.nanoTime();
+
+        List<MetricFamilySamples> result = null;
+        try {
+            result = delegate.collect();
+            return result;
+        }
+        finally {
+            final long nanos = System.nanoTime() - start;
+            final long allocated = ALLOCATIONS != null ? Math.max(0, ALLOCATIONS.getThreadAllocatedBytes(threadId) - allocatedBefore) : 0;
+            record(nanos, result == null ? -1 : countSamples(result), allocated);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return delegate instanceof Describable ? ((Describable) delegate).describe() : delegate.collect();
+    }
+
+    // Samples -1: collect() threw
+    private synchronized void record(final long nanos, final int samples, final long allocatedBytes) {
+        collects++;
+        totalNanos += nanos;
+        lastNanos = nanos;
+        totalAllocatedBytes += allocatedBytes;
+        lastAllocatedBytes = allocatedBytes;
+        if (samples < 0) {
+            failures++;
+        } else {
+            lastSamples = samples;
+        }
+    }
+
+    public synchronized CollectorCost snapshot() {
+        return new CollectorCost(name, collects, failures, totalNanos, lastNanos, lastSamples, totalAllocatedBytes, lastAllocatedBytes);
+    }
+
+    private static int countSamples(final List<MetricFamilySamples> families) {
+        int count = 0;
+        for (MetricFamilySamples each : families) {
+            count += each.samples.size();
+        }
+        return count;
+    }
+
+    // Null if this JVM can't count allocations per thread
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+                if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                    return hotspot;
+                }
+            }
+        }
+        catch (LinkageError | RuntimeException e) {  // NOSONAR
+            // Not HotSpot
+        }
+        return null;
+    }
+}
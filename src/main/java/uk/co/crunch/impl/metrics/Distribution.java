@@ -0,0 +1,9 @@
+package uk.co.crunch.impl.metrics;
+
+/**
+ * Storage behind a summary, so that PrometheusMetrics can swap simpleclient's CKMS implementation for other engines.
+ */
+@FunctionalInterface
+public interface Distribution {
+    void observe(double value);
+}
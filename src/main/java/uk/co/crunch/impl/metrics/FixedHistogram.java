@@ -0,0 +1,32 @@
+package uk.co.crunch.impl.metrics;
+
+/**
+ * Histogram with explicit bucket bounds, exposed exactly as simpleclient's own Histogram: every bucket, populated or
+ * not, plus +Inf. Unlike simpleclient's, it can stream itself, and be buffered per thread.
+ */
+public final class FixedHistogram extends BucketedHistogram {
+
+    private final double[] bounds;
+
+    // Upper bounds in increasing order, not including +Inf
+    public FixedHistogram(final String name, final String help, final double... bounds) {
+        super(name, help, 1, bounds.length, true);
+        this.bounds = bounds.clone();
+    }
+
+    // Same linear search as simpleclient: the first bound the value doesn't exceed
+    @Override
+    int bucketOf(final double value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                return i;
+            }
+        }
+        return INF_ONLY;
+    }
+
+    @Override
+    double upperBound(final int row, final int column) {
+        return bounds[column];
+    }
+}
@@ -0,0 +1,166 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import org.HdrHistogram.DoubleHistogram;
+import org.HdrHistogram.DoubleRecorder;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.ExposableSeries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Summary whose quantiles come from HdrHistogram rather than CKMS. observe() only ever touches the double-buffered
+ * DoubleRecorder plus two adders, so it's wait-free; the scrape thread swaps the interval out, folds it into a
+ * sliding window of age buckets (same 10 minute / 5 bucket shape as simpleclient) and reads the quantiles.
+ *
+ * Quantiles only cover finite, non-negative observations within the dynamic range the recorder can stretch to
+ * (a bounded ratio of largest to smallest, narrower for more significant digits). Anything else is left out of the quantiles,
+ * but still counts towards _count and _sum.
+ */
+public final class HdrSummary extends Collector implements Distribution, ExposableSeries {
+
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int AGE_BUCKETS = 5;
+
+    private final String name;
+    private final String help;
+    private final double[] quantiles;
+    private final List<List<String>> quantileLabelValues = new ArrayList<>();
+
+    // Pre-encoded for the streaming writer
+    private final byte[] encodedHeader;
+    private final byte[] encodedName;
+    private final byte[] encodedCountName;
+    private final byte[] encodedSumName;
+    private final byte[][] encodedQuantileLabels;
+
+    private final DoubleRecorder recorder;
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+
+    // Scrape-side state, only touched under this object's lock
+    private final DoubleHistogram[] window = new DoubleHistogram[AGE_BUCKETS];
+    private int oldestBucket;
+    private long lastRotationMillis = System.currentTimeMillis();
+    private DoubleHistogram interval;
+
+    public HdrSummary(final String name, final String help, final int significantDigits, final double... quantiles) {
+        checkMetricName(name);  // As simpleclient's Summary builder does
+        this.name = name;
+        this.help = help;
+        this.quantiles = quantiles.clone();
+        this.recorder = new DoubleRecorder(significantDigits);
+        this.encodedQuantileLabels = new byte[quantiles.length][];
+
+        for (int i = 0; i < quantiles.length; i++) {
+            final double q = quantiles[i];
+            if (q < 0.0 || q > 1.0) {
+                throw new IllegalArgumentException("Quantile " + q + " invalid: Expected number between 0.0 and 1.0.");
+            }
+            quantileLabelValues.add( singletonList( doubleToGoString(q) ) );
+            encodedQuantileLabels[i] = ExpositionWriter.encodeLabels( singletonList("quantile"), quantileLabelValues.get(i) );
+        }
+
+        this.encodedHeader = ExpositionWriter.encodeHeader(name, help, Type.SUMMARY);
+        this.encodedName = ExpositionWriter.encodeName(name);
+        this.encodedCountName = ExpositionWriter.encodeName(name + "_count");
+        this.encodedSumName = ExpositionWriter.encodeName(name + "_sum");
+
+        for (int i = 0; i < AGE_BUCKETS; i++) {
+            window[i] = new DoubleHistogram(significantDigits);
+        }
+    }
+
+    @Override
+    public void observe(final double value) {
+        if (value >= 0 && value != Double.POSITIVE_INFINITY) {
+            try {
+                recorder.recordValue(value);
+            }
+            catch (ArrayIndexOutOfBoundsException e) {  // NOSONAR
+                // Beyond what the recorder's range can be extended to cover, given what it already holds
+            }
+        }
+        sum.add(value);
+        count.increment();
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>(quantiles.length + 2);
+        final List<String> quantileLabel = singletonList("quantile");
+
+        synchronized (this) {
+            final DoubleHistogram current = windowSnapshot();
+            for (int i = 0; i < quantiles.length; i++) {
+                samples.add( new MetricFamilySamples.Sample(name, quantileLabel, quantileLabelValues.get(i), quantile(current, i)) );
+            }
+        }
+
+        samples.add( new MetricFamilySamples.Sample(name + "_count", emptyList(), emptyList(), count.sum()) );
+        samples.add( new MetricFamilySamples.Sample(name + "_sum", emptyList(), emptyList(), sum.sum()) );
+
+        return singletonList( new MetricFamilySamples(name, Type.SUMMARY, help, samples) );
+    }
+
+    @Override
+    public void expose(final ExpositionWriter writer) {
+        writer.writeBytes(encodedHeader);
+        exposeSamples(writer, ExpositionWriter.NO_LABELS);
+    }
+
+    @Override
+    public void exposeSamples(final ExpositionWriter writer, final byte[] labels) {
+        synchronized (this) {
+            final DoubleHistogram current = windowSnapshot();
+            for (int i = 0; i < quantiles.length; i++) {
+                writer.writeSample(encodedName, labels, encodedQuantileLabels[i], quantile(current, i));
+            }
+        }
+
+        writer.writeSample(encodedCountName, labels, ExpositionWriter.NO_LABELS, count.sum());
+        writer.writeSample(encodedSumName, labels, ExpositionWriter.NO_LABELS, sum.sum());
+    }
+
+    private double quantile(final DoubleHistogram current, final int index) {
+        return current.getTotalCount() == 0 ? Double.NaN : current.getValueAtPercentile(quantiles[index] * 100.0);
+    }
+
+    // Every bucket sees every value, but each is reset in turn, so the oldest always covers (up to) the full window
+    private DoubleHistogram windowSnapshot() {
+        final long now = System.currentTimeMillis();
+        if (now - lastRotationMillis > MAX_AGE_MILLIS) {
+            // Not scraped for a whole window: everything we hold is stale
+            for (DoubleHistogram each : window) {
+                each.reset();
+            }
+            lastRotationMillis = now;
+        }
+        while (now - lastRotationMillis > MAX_AGE_MILLIS / AGE_BUCKETS) {
+            window[oldestBucket].reset();
+            oldestBucket = (oldestBucket + 1) % AGE_BUCKETS;
+            lastRotationMillis += MAX_AGE_MILLIS / AGE_BUCKETS;
+        }
+
+        interval = recorder.getIntervalHistogram(interval);
+        if (interval.getTotalCount() > 0) {
+            for (DoubleHistogram each : window) {
+                try {
+                    each.add(interval);
+                }
+                catch (ArrayIndexOutOfBoundsException e) {  // NOSONAR
+                    // Intervals of very different magnitudes can't share a bucket: leave this one out, rather than fail the scrape
+                }
+            }
+        }
+
+        return window[oldestBucket];
+    }
+}
@@ -0,0 +1,111 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.Exposable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * One labelled metric family, made of an unlabelled child collector per label tuple. Children are plain (unregistered)
+ * collectors of any kind, so the same family works for simpleclient types and our own; their samples get the
+ * family's labels prepended at scrape time. Each child keeps its label pairs pre-encoded for the streaming writer.
+ */
+public final class LabelledCollector extends Collector implements Exposable {
+
+    private final String name;
+    private final String help;
+    private final Type type;
+    private final List<String> labelNames;
+    private final byte[] encodedHeader;
+    private final ConcurrentMap<List<String>,Child> children = new ConcurrentHashMap<>();
+
+    public LabelledCollector(final String name, final String help, final Type type, final String... labelNames) {
+        if (labelNames.length == 0) {
+            throw new IllegalArgumentException("Labelled metrics need at least one label name");
+        }
+        checkMetricName(name);
+        for (String each : labelNames) {
+            // Same checks, and messages, as simpleclient's builders
+            checkMetricLabelName(each);
+            if (type == Type.HISTOGRAM && each.equals("le")) {
+                throw new IllegalArgumentException("Histogram cannot have a label named 'le'.");
+            }
+            if (type == Type.SUMMARY && each.equals("quantile")) {
+                throw new IllegalArgumentException("Summary cannot have a label named 'quantile'.");
+            }
+        }
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.labelNames = Collections.unmodifiableList( Arrays.asList( labelNames.clone() ) );
+        this.encodedHeader = ExpositionWriter.encodeHeader(name, help, type);
+    }
+
+    public List<String> getLabelNames() {
+        return labelNames;
+    }
+
+    public void addChild(final String[] labelValues, final Collector child) {
+        final List<String> values = Collections.unmodifiableList( Arrays.asList(labelValues) );
+        children.put(values, new Child(child, ExpositionWriter.encodeLabels(labelNames, values)));
+    }
+
+    public void removeChild(final String[] labelValues) {
+        children.remove( Arrays.asList(labelValues) );
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+
+        for (Map.Entry<List<String>,Child> entry : children.entrySet()) {
+            for (MetricFamilySamples family : entry.getValue().collector.collect()) {
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    samples.add( new MetricFamilySamples.Sample(sample.name,
+                            concat(labelNames, sample.labelNames),
+                            concat(entry.getKey(), sample.labelValues),
+                            sample.value) );
+                }
+            }
+        }
+
+        return singletonList( new MetricFamilySamples(name, type, help, samples) );
+    }
+
+    @Override
+    public void expose(final ExpositionWriter writer) {
+        writer.writeBytes(encodedHeader);
+        for (Child child : children.values()) {
+            writer.writeCollectorSamples(child.collector, child.encodedLabels);
+        }
+    }
+
+    private static List<String> concat(final List<String> first, final List<String> second) {
+        if (second.isEmpty()) {
+            return first;
+        }
+        final List<String> result = new ArrayList<>(first.size() + second.size());
+        result.addAll(first);
+        result.addAll(second);
+        return result;
+    }
+
+    private static final class Child {
+        final Collector collector;
+        final byte[] encodedLabels;
+
+        Child(final Collector collector, final byte[] encodedLabels) {
+            this.collector = collector;
+            this.encodedLabels = encodedLabels;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.ExposableSeries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Histogram with explicit bucket bounds, its counts and sum kept in a {@link MappedStore}. Exposed locally exactly as
+ * {@link FixedHistogram}. In the store, each bucket holds only its own count, with its bound as an le label, so the
+ * aggregator can add workers' buckets up before making them cumulative.
+ *
+ * The buckets are allocated before _count, and observe() adds to _count first, so a reader going through the file in
+ * order never sees +Inf less than the buckets below it.
+ */
+public final class MappedHistogram extends Collector implements Distribution, ExposableSeries, Checkpointable {
+
+    private static final List<String> LE = singletonList("le");
+    private static final byte[] ENCODED_INF_LE = ExpositionWriter.encodeLabels(LE, singletonList("+Inf"));
+
+    private final String name;
+    private final String help;
+    private final double[] bounds;
+
+    private final MappedStore store;  // Keeps the mapping alive
+    private final long[] bucketAddresses;
+    private final long countAddress;
+    private final long sumAddress;
+
+    private final byte[] encodedHeader;
+    private final byte[] encodedBucketName;
+    private final byte[] encodedCountName;
+    private final byte[] encodedSumName;
+    private final byte[][] encodedLes;
+
+    // Upper bounds in increasing order, not including +Inf
+    public MappedHistogram(final MappedStore store, final String name, final String help, final double[] bounds, final List<String> labelNames, final List<String> labelValues) {
+        checkMetricName(name);  // Before anything goes in the store, where a bad name would use up space for good
+        this.name = name;
+        this.help = help;
+        this.bounds = bounds.clone();
+        this.store = store;
+
+        final List<String> bucketLabelNames = new ArrayList<>(labelNames);
+        bucketLabelNames.add("le");
+
+        this.bucketAddresses = new long[bounds.length];
+        this.encodedLes = new byte[bounds.length][];
+        for (int i = 0; i < bounds.length; i++) {
+            final String le = doubleToGoString(bounds[i]);
+            final List<String> bucketLabelValues = new ArrayList<>(labelValues);
+            bucketLabelValues.add(le);
+            bucketAddresses[i] = store.address(Type.HISTOGRAM, name, help, "_bucket", bucketLabelNames, bucketLabelValues);
+            encodedLes[i] = ExpositionWriter.encodeLabels(LE, singletonList(le));
+        }
+        this.countAddress = store.address(Type.HISTOGRAM, name, help, "_count", labelNames, labelValues);
+        this.sumAddress = store.address(Type.HISTOGRAM, name, help, "_sum", labelNames, labelValues);
+
+        this.encodedHeader = ExpositionWriter.encodeHeader(name, help, Type.HISTOGRAM);
+        this.encodedBucketName = ExpositionWriter.encodeName(name + "_bucket");
+        this.encodedCountName = ExpositionWriter.encodeName(name + "_count");
+        this.encodedSumName = ExpositionWriter.encodeName(name + "_sum");
+    }
+
+    @Override
+    public void observe(final double value) {
+        MappedStore.add(countAddress, 1);
+        MappedStore.add(sumAddress, value);
+
+        // Same linear search as FixedHistogram
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                MappedStore.add(bucketAddresses[i], 1);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    // Buckets before _count, as for scrapes
+    @Override
+    public double[] checkpoint() {
+        final double[] buckets = new double[2 * bounds.length];
+        int populated = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            final double bucketCount = MappedStore.get( bucketAddresses[i] );
+            if (bucketCount > 0) {
+                buckets[populated++] = bounds[i];
+                buckets[populated++] = bucketCount;
+            }
+        }
+
+        final double[] state = new double[2 + populated];
+        state[0] = MappedStore.get(countAddress);
+        state[1] = MappedStore.get(sumAddress);
+        System.arraycopy(buckets, 0, state, 2, populated);
+        return state;
+    }
+
+    @Override
+    public boolean restore(final double[] state) {
+        if (state.length < 2 || state.length % 2 != 0) {
+            return false;
+        }
+        final int[] buckets = new int[(state.length - 2) / 2];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = Arrays.binarySearch(bounds, state[2 + 2 * i]);
+            if (buckets[i] < 0) {
+                return false;
+            }
+        }
+
+        MappedStore.add(countAddress, state[0]);
+        MappedStore.add(sumAddress, state[1]);
+        for (int i = 0; i < buckets.length; i++) {
+            MappedStore.add(bucketAddresses[ buckets[i] ], state[3 + 2 * i]);
+        }
+        return true;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>(bounds.length + 3);
+        final String bucketName = name + "_bucket";
+
+        double cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += MappedStore.get( bucketAddresses[i] );
+            samples.add( new MetricFamilySamples.Sample(bucketName, LE, singletonList( doubleToGoString(bounds[i]) ), cumulative) );
+        }
+
+        final double total = MappedStore.get(countAddress);
+        samples.add( new MetricFamilySamples.Sample(bucketName, LE, singletonList("+Inf"), total) );
+        samples.add( new MetricFamilySamples.Sample(name + "_count", emptyList(), emptyList(), total) );
+        samples.add( new MetricFamilySamples.Sample(name + "_sum", emptyList(), emptyList(), MappedStore.get(sumAddress)) );
+
+        return singletonList( new MetricFamilySamples(name, Type.HISTOGRAM, help, samples) );
+    }
+
+    @Override
+    public void expose(final ExpositionWriter writer) {
+        writer.writeBytes(encodedHeader);
+        exposeSamples(writer, ExpositionWriter.NO_LABELS);
+    }
+
+    @Override
+    public void exposeSamples(final ExpositionWriter writer, final byte[] labels) {
+        double cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += MappedStore.get( bucketAddresses[i] );
+            writer.writeSample(encodedBucketName, labels, encodedLes[i], cumulative);
+        }
+
+        final double total = MappedStore.get(countAddress);
+        writer.writeSample(encodedBucketName, labels, ENCODED_INF_LE, total);
+        writer.writeSample(encodedCountName, labels, ExpositionWriter.NO_LABELS, total);
+        writer.writeSample(encodedSumName, labels, ExpositionWriter.NO_LABELS, MappedStore.get(sumAddress));
+    }
+}
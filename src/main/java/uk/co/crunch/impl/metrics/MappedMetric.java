@@ -0,0 +1,38 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.List;
+
+/**
+ * Counter or gauge whose value lives in a {@link MappedStore}, where other processes can read it, rather than on the
+ * heap. Exposed locally just like {@link AdderMetric}.
+ */
+public final class MappedMetric extends ValueMetric {
+
+    private final MappedStore store;  // Keeps the mapping alive
+    private final long address;
+
+    private MappedMetric(final MappedStore store, final String name, final String help, final Type type, final List<String> labelNames, final List<String> labelValues) {
+        super(name, help, type);  // Checks the name, before anything goes in the store
+        this.store = store;
+        this.address = store.address(type, name, help, "", labelNames, labelValues);
+    }
+
+    public static MappedMetric counter(final MappedStore store, final String name, final String help, final List<String> labelNames, final List<String> labelValues) {
+        return new MappedMetric(store, name, help, Type.COUNTER, labelNames, labelValues);
+    }
+
+    public static MappedMetric gauge(final MappedStore store, final String name, final String help, final List<String> labelNames, final List<String> labelValues) {
+        return new MappedMetric(store, name, help, Type.GAUGE, labelNames, labelValues);
+    }
+
+    @Override
+    public void add(final double amount) {
+        checkIncrement(amount);
+        MappedStore.add(address, amount);
+    }
+
+    @Override
+    public double get() {
+        return MappedStore.get(address);
+    }
+}
@@ -0,0 +1,177 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import sun.misc.Unsafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One worker process's metric values, as doubles in a memory-mapped file that other processes map and read while
+ * it's being written ({@link MappedStoreAggregator}). Values are updated in place with CAS, so metrics backed by the
+ * store have no per-value objects on the heap at all.
+ *
+ * Layout: a 16-byte header (magic, version, then the number of bytes in use, published only once an entry is
+ * complete), then entries of [int entry length][int key length][key][padding][value], all in native byte order, each
+ * value 8-byte aligned so that a CAS on it is atomic. Keys say which family, sample and labels the value belongs to, and never change once
+ * written.
+ *
+ * The mapping can't be safely released while metrics use it, so everything that holds a value's address also holds
+ * the store, which keeps the buffer (and so the mapping) alive.
+ */
+public final class MappedStore {
+
+    static final String FILE_SUFFIX = ".metrics";
+
+    static final int MAGIC = 0x504d4d31;  // "PMM1"
+    static final int VERSION = 1;
+    static final int USED_OFFSET = 8;
+    static final int HEADER_LENGTH = 16;
+
+    static final Unsafe UNSAFE;
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            ADDRESS_OFFSET = UNSAFE.objectFieldOffset( Buffer.class.getDeclaredField("address") );
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Path file;
+    private final MappedByteBuffer buffer;  // Also what keeps the mapping alive
+    private final long baseAddress;
+    private final int capacity;
+
+    // Allocation is under the store's lock; repeat keys (e.g. a labelled series evicted and added again) get the same value
+    private final Map<ByteBuffer,Long> addressesByKey = new ConcurrentHashMap<>();
+    private int used = HEADER_LENGTH;
+
+    private MappedStore(final Path file, final MappedByteBuffer buffer, final int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.baseAddress = addressOf(buffer);
+        this.capacity = capacity;
+    }
+
+    // <workerId>.metrics in the directory. Any earlier file for the same worker id is replaced, not truncated, since
+    // an aggregator may still have it mapped; a new process under the same id starts from zero.
+    public static MappedStore create(final Path directory, final String workerId, final int capacity) throws IOException {
+        if (capacity < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Capacity " + capacity + " too small");
+        }
+        Files.createDirectories(directory);
+        final Path file = directory.resolve(workerId + FILE_SUFFIX);
+        Files.deleteIfExists(file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(capacity);  // Sparse: only pages actually written take up memory or disk
+
+            final MappedStore store = new MappedStore(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity), capacity);
+            UNSAFE.putInt(store.baseAddress, MAGIC);
+            UNSAFE.putInt(store.baseAddress + 4, VERSION);
+            UNSAFE.putLongVolatile(null, store.baseAddress + USED_OFFSET, HEADER_LENGTH);
+            return store;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // The value for this sample, created at zero if new
+    public long address(final Collector.Type type, final String name, final String help, final String sampleSuffix,
+                        final List<String> labelNames, final List<String> labelValues) {
+        final ByteBuffer key = ByteBuffer.wrap( encodeKey(type, name, help, sampleSuffix, labelNames, labelValues) );
+        final Long existing = addressesByKey.get(key);
+        return existing != null ? existing : allocate(key);
+    }
+
+    private synchronized long allocate(final ByteBuffer key) {
+        final Long existing = addressesByKey.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final int keyLength = key.remaining();
+        final int valueOffset = align(used + 8 + keyLength);
+        final int end = valueOffset + 8;
+        if (end > capacity) {
+            throw new IllegalStateException("Shared memory store " + file + " is full: " + capacity + " bytes");
+        }
+
+        final long entry = baseAddress + used;
+        UNSAFE.putInt(entry, end - used);
+        UNSAFE.putInt(entry + 4, keyLength);
+        final ByteBuffer target = buffer.duplicate();
+        target.position(used + 8);
+        target.put( key.duplicate() );
+        UNSAFE.putLong(baseAddress + valueOffset, Double.doubleToRawLongBits(0.0));
+
+        // Readers only look as far as this, so they never see a half-written entry
+        used = end;
+        UNSAFE.putLongVolatile(null, baseAddress + USED_OFFSET, end);
+
+        final long address = baseAddress + valueOffset;
+        addressesByKey.put(key, address);
+        return address;
+    }
+
+    // Callers must hold on to the store, see above
+    static void add(final long address, final double amount) {
+        long current;
+        do {
+            current = UNSAFE.getLongVolatile(null, address);
+        } while (!UNSAFE.compareAndSwapLong(null, address, current, Double.doubleToRawLongBits( Double.longBitsToDouble(current) + amount )));
+    }
+
+    static double get(final long address) {
+        return Double.longBitsToDouble( UNSAFE.getLongVolatile(null, address) );
+    }
+
+    static long addressOf(final ByteBuffer buffer) {
+        return UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+    }
+
+    static int align(final int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    private static byte[] encodeKey(final Collector.Type type, final String name, final String help, final String sampleSuffix,
+                                    final List<String> labelNames, final List<String> labelValues) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte( type.ordinal() );
+            out.writeUTF(name);
+            out.writeUTF(help);
+            out.writeUTF(sampleSuffix);
+            out.writeShort( labelNames.size() );
+            for (int i = 0; i < labelNames.size(); i++) {
+                out.writeUTF( labelNames.get(i) );
+                out.writeUTF( labelValues.get(i) );
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,289 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Every worker's {@link MappedStore} in a directory, added up: each scrape maps any new store files read-only, reads
+ * the values in place, and sums them across workers by family, sample and labels. Histogram buckets are summed per
+ * bound, then made cumulative, with +Inf from _count.
+ *
+ * Workers' files stay in the directory after they exit, so their counts still contribute and totals don't go backwards
+ * as workers come and go; clear the directory before starting a new set of workers. Gauges are summed too, so a gauge
+ * that only makes sense per process needs a label telling the workers apart.
+ */
+public final class MappedStoreAggregator extends Collector {
+
+    private final Path directory;
+
+    // Only touched under the collector's lock
+    private final Map<Path,StoreReader> readers = new HashMap<>();
+
+    public MappedStoreAggregator(final Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        final Map<String,Family> families = new TreeMap<>();
+        for (StoreReader each : refreshReaders()) {
+            for (Entry entry : each.entries) {
+                families.computeIfAbsent(entry.name, n -> new Family(entry)).add(entry, MappedStore.get( entry.address ));
+            }
+        }
+
+        final List<MetricFamilySamples> result = new ArrayList<>( families.size() );
+        for (Family each : families.values()) {
+            result.add( each.toSamples() );
+        }
+        return result;
+    }
+
+    // In file name order, so samples come out in a stable order
+    private List<StoreReader> refreshReaders() {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + MappedStore.FILE_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        catch (NoSuchFileException e) {
+            // No workers yet
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.sort(files);
+
+        readers.keySet().retainAll(files);
+
+        final List<StoreReader> current = new ArrayList<>( files.size() );
+        for (Path file : files) {
+            try {
+                // A worker restarting under the same id replaces its file, rather than truncating the one mapped here
+                final Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+                StoreReader reader = readers.get(file);
+                if (reader == null || !Objects.equals(reader.fileKey, fileKey)) {
+                    reader = StoreReader.open(file, fileKey);
+                    if (reader == null) {
+                        readers.remove(file);
+                        continue;
+                    }
+                    readers.put(file, reader);
+                }
+                reader.refresh();
+                current.add(reader);
+            }
+            catch (NoSuchFileException e) {
+                readers.remove(file);  // Removed since the listing
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return current;
+    }
+
+    private static final class StoreReader {
+        final Object fileKey;
+        final MappedByteBuffer buffer;  // Keeps the mapping alive for as long as its entries are read
+        final long baseAddress;
+        final int capacity;
+        final List<Entry> entries = new ArrayList<>();
+        int parsed = MappedStore.HEADER_LENGTH;
+
+        private StoreReader(final Object fileKey, final MappedByteBuffer buffer) {
+            this.fileKey = fileKey;
+            this.buffer = buffer;
+            this.buffer.order( ByteOrder.nativeOrder() );  // As written through Unsafe
+            this.baseAddress = MappedStore.addressOf(buffer);
+            this.capacity = buffer.capacity();
+        }
+
+        // Null if the file isn't a store, or isn't ready yet
+        static StoreReader open(final Path file, final Object fileKey) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size < MappedStore.HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                    return null;
+                }
+                final StoreReader reader = new StoreReader(fileKey, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                if (reader.buffer.getInt(0) != MappedStore.MAGIC || reader.buffer.getInt(4) != MappedStore.VERSION) {
+                    return null;
+                }
+                return reader;
+            }
+        }
+
+        // Entries are only ever appended, so only those published since the last scrape need decoding
+        void refresh() {
+            final long used = Math.min(MappedStore.UNSAFE.getLongVolatile(null, baseAddress + MappedStore.USED_OFFSET), capacity);
+            while (parsed < used) {
+                final int length = buffer.getInt(parsed);
+                final int keyLength = buffer.getInt(parsed + 4);
+                final byte[] key = new byte[keyLength];
+                for (int i = 0; i < keyLength; i++) {
+                    key[i] = buffer.get(parsed + 8 + i);
+                }
+                entries.add( Entry.decode(key, baseAddress + MappedStore.align(parsed + 8 + keyLength)) );
+                parsed += length;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Type type;
+        final String name;
+        final String help;
+        final String sampleSuffix;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final double le;  // Histogram buckets only, and not included in the labels above
+        final long address;
+
+        private Entry(final Type type, final String name, final String help, final String sampleSuffix, final List<String> labelNames,
+                      final List<String> labelValues, final double le, final long address) {
+            this.type = type;
+            this.name = name;
+            this.help = help;
+            this.sampleSuffix = sampleSuffix;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.le = le;
+            this.address = address;
+        }
+
+        boolean isBucket() {
+            return type == Type.HISTOGRAM && sampleSuffix.equals("_bucket");
+        }
+
+        static Entry decode(final byte[] key, final long address) {
+            try (DataInputStream in = new DataInputStream( new ByteArrayInputStream(key) )) {
+                final Type type = Type.values()[ in.readUnsignedByte() ];
+                final String name = in.readUTF();
+                final String help = in.readUTF();
+                final String sampleSuffix = in.readUTF();
+
+                final int labelCount = in.readUnsignedShort();
+                final List<String> labelNames = new ArrayList<>(labelCount);
+                final List<String> labelValues = new ArrayList<>(labelCount);
+                for (int i = 0; i < labelCount; i++) {
+                    labelNames.add( in.readUTF() );
+                    labelValues.add( in.readUTF() );
+                }
+
+                double le = Double.NaN;
+                if (type == Type.HISTOGRAM && sampleSuffix.equals("_bucket")) {
+                    le = Double.parseDouble( labelValues.remove(labelCount - 1) );
+                    labelNames.remove(labelCount - 1);
+                }
+                return new Entry(type, name, help, sampleSuffix, labelNames, labelValues, le, address);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // One family's samples summed across workers; the first worker seen decides its type and help
+    private static final class Family {
+        final String name;
+        final Type type;
+        final String help;
+        final Map<List<Object>,Series> series = new LinkedHashMap<>();
+
+        Family(final Entry first) {
+            this.name = first.name;
+            this.type = first.type;
+            this.help = first.help;
+        }
+
+        void add(final Entry entry, final double value) {
+            if (entry.type != type) {
+                return;
+            }
+
+            final List<Object> key = type == Type.HISTOGRAM
+                    ? Arrays.asList(entry.labelNames, entry.labelValues)
+                    : Arrays.asList(entry.sampleSuffix, entry.labelNames, entry.labelValues);
+            final Series s = series.computeIfAbsent(key, k -> new Series(entry.labelNames, entry.labelValues));
+            if (entry.isBucket()) {
+                s.buckets.merge(entry.le, value, Double::sum);
+            } else if (type == Type.HISTOGRAM && entry.sampleSuffix.equals("_count")) {
+                s.count += value;
+            } else if (type == Type.HISTOGRAM) {
+                s.sum += value;
+            } else {
+                s.sampleName = name + entry.sampleSuffix;
+                s.value += value;
+            }
+        }
+
+        MetricFamilySamples toSamples() {
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+            for (Series each : series.values()) {
+                if (type != Type.HISTOGRAM) {
+                    samples.add( new MetricFamilySamples.Sample(each.sampleName, each.labelNames, each.labelValues, each.value) );
+                    continue;
+                }
+
+                final List<String> bucketLabelNames = new ArrayList<>(each.labelNames);
+                bucketLabelNames.add("le");
+
+                double cumulative = 0;
+                for (Map.Entry<Double,Double> bucket : each.buckets.entrySet()) {
+                    cumulative += bucket.getValue();
+                    samples.add( new MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames, withLe(each.labelValues, doubleToGoString( bucket.getKey() )), cumulative) );
+                }
+                samples.add( new MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames, withLe(each.labelValues, "+Inf"), each.count) );
+                samples.add( new MetricFamilySamples.Sample(name + "_count", each.labelNames, each.labelValues, each.count) );
+                samples.add( new MetricFamilySamples.Sample(name + "_sum", each.labelNames, each.labelValues, each.sum) );
+            }
+            return new MetricFamilySamples(name, type, help, samples);
+        }
+
+        private static List<String> withLe(final List<String> labelValues, final String le) {
+            final List<String> result = new ArrayList<>(labelValues.size() + 1);
+            result.addAll(labelValues);
+            result.add(le);
+            return result;
+        }
+    }
+
+    private static final class Series {
+        final List<String> labelNames;
+        final List<String> labelValues;
+        String sampleName;
+        double value;
+
+        // Histograms only
+        final Map<Double,Double> buckets = new TreeMap<>();
+        double count;
+        double sum;
+
+        Series(final List<String> labelNames, final List<String> labelValues) {
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+    }
+}
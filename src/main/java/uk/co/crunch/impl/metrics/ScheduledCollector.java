@@ -0,0 +1,99 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A collector collected on a {@link CollectionScheduler}'s pool. A scrape calls start() on every scheduled collector
+ * first, then takes each one's result with await(), so they all run at once while the scrape writes everything else.
+ *
+ * A collect() still running when the budget's up is left to finish in the background, and the scrape gets the last
+ * result that did finish in time instead, counted as stale. It's empty if there's never been one. Only the one
+ * collect() is ever in flight: later scrapes wait on that, rather than queue up more.
+ */
+public final class ScheduledCollector extends Collector implements Collector.Describable {
+
+    private final String name;
+    private final Collector delegate;
+    private final CollectionScheduler scheduler;
+
+    private CompletableFuture<List<MetricFamilySamples>> inFlight;  // Guarded by this
+    private volatile List<MetricFamilySamples> lastGood = Collections.emptyList();
+    private volatile long lastGoodNanos;  // 0: none yet
+    private final LongAdder staleScrapes = new LongAdder();
+
+    ScheduledCollector(final String name, final Collector delegate, final CollectionScheduler scheduler) {
+        this.name = name;
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStaleScrapes() {
+        return staleScrapes.sum();
+    }
+
+    // Negative if nothing has been collected yet
+    public double getResultAgeSeconds() {
+        final long collectedAt = lastGoodNanos;
+        return collectedAt == 0 ? -1 : (System.nanoTime() - collectedAt) / 1E9;
+    }
+
+    // Kicks off a collect(), unless the last one is still going
+    public synchronized void start() {
+        if (inFlight == null || inFlight.isDone()) {
+            inFlight = CompletableFuture.supplyAsync(this::collectNow, scheduler.executor);
+        }
+    }
+
+    // The result, if ready within the budget of a scrape that began at scrapeStartNanos, otherwise the last good one
+    public List<MetricFamilySamples> await(final long scrapeStartNanos) {
+        final CompletableFuture<List<MetricFamilySamples>> current;
+        synchronized (this) {
+            current = inFlight;
+        }
+
+        try {
+            final long remaining = scrapeStartNanos + scheduler.budgetNanos - System.nanoTime();
+            return current.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | TimeoutException e) {  // NOSONAR
+            // Stale
+        }
+        staleScrapes.increment();
+        return lastGood;
+    }
+
+    // For scrapes that don't start collectors up front, e.g. through CollectorRegistry: still budgeted, but serial
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final long start = System.nanoTime();
+        start();
+        return await(start);
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return delegate instanceof Describable ? ((Describable) delegate).describe() : delegate.collect();
+    }
+
+    private List<MetricFamilySamples> collectNow() {
+        final List<MetricFamilySamples> result = delegate.collect();
+        lastGood = result;
+        lastGoodNanos = System.nanoTime();
+        return result;
+    }
+}
@@ -0,0 +1,219 @@
+package uk.co.crunch.impl.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Counter and histogram state saved to a file, and added back into the same series when a later process creates them.
+ * Each series' key (name and labels) is encoded once, when it's tracked, so a save is little more than reading each
+ * metric and writing doubles. Saves go to a temporary file that then replaces the old one, so a crash mid-save leaves
+ * the previous snapshot intact.
+ *
+ * Series in the file that this process hasn't created (yet) are carried over into every save, so a series that only
+ * comes up now and then keeps its count across any number of restarts.
+ *
+ * Format: magic, version, series count, then per series [int key length][key][int state length][state as doubles].
+ */
+public final class SnapshotFile {
+
+    private static final int MAGIC = 0x504d5331;  // "PMS1"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private final Path tempFile;
+
+    private final ConcurrentMap<ByteBuffer,Checkpointable> tracked = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteBuffer,double[]> unclaimed;
+
+    // Guarded by this
+    private ScheduledFuture<?> scheduledSaves;
+    private Thread saveOnExit;
+
+    private SnapshotFile(final Path file, final Map<ByteBuffer,double[]> loaded) {
+        this.file = file;
+        this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.unclaimed = new ConcurrentHashMap<>(loaded);
+    }
+
+    // Empty if there's no file yet
+    public static SnapshotFile load(final Path file) throws IOException {
+        final Map<ByteBuffer,double[]> loaded = new HashMap<>();
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE) )) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a metric snapshot file: " + file);
+            }
+            final int seriesCount = in.readInt();
+            for (int i = 0; i < seriesCount; i++) {
+                final byte[] key = new byte[ in.readInt() ];
+                in.readFully(key);
+                final double[] state = new double[ in.readInt() ];
+                for (int j = 0; j < state.length; j++) {
+                    state[j] = in.readDouble();
+                }
+                loaded.put(ByteBuffer.wrap(key), state);
+            }
+        }
+        catch (NoSuchFileException e) {
+            // Nothing saved yet
+        }
+        catch (EOFException e) {
+            throw new IOException("Truncated metric snapshot file: " + file, e);
+        }
+        return new SnapshotFile(file, loaded);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Saved from now on, after adding back whatever was saved for the same series
+    public void track(final Checkpointable metric, final List<String> labelNames, final List<String> labelValues) {
+        final ByteBuffer key = ByteBuffer.wrap( encodeKey(metric.getName(), labelNames, labelValues) );
+        final double[] saved = unclaimed.get(key);
+        if (saved != null) {
+            metric.restore(saved);
+        }
+        // Tracked before it's unclaimed, so a save in between can't miss the series altogether. Saves skip unclaimed
+        // copies of tracked series, so it can't be written twice either.
+        tracked.put(key, metric);
+        unclaimed.remove(key);
+    }
+
+    // No longer saved, nor carried over, e.g. once a CardinalityLimit has evicted it
+    public void untrack(final String name, final List<String> labelNames, final List<String> labelValues) {
+        tracked.remove( ByteBuffer.wrap( encodeKey(name, labelNames, labelValues) ) );
+    }
+
+    // Saves on a daemon thread shared by all snapshot files, and once more when the JVM shuts down, until stopSaving()
+    public synchronized void saveEvery(final long intervalNanos, final Consumer<Exception> onFailure) {
+        if (scheduledSaves != null) {
+            throw new IllegalStateException("Already saving " + file);
+        }
+        scheduledSaves = Holder.EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            }
+            catch (IOException | RuntimeException e) {
+                onFailure.accept(e);
+            }
+        }, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+
+        saveOnExit = new Thread(() -> {
+            try {
+                save();
+            }
+            catch (IOException | RuntimeException e) {  // NOSONAR
+                // Nowhere left to report it
+            }
+        }, "prometheus-snapshot-on-exit");
+        Runtime.getRuntime().addShutdownHook(saveOnExit);
+    }
+
+    // No more scheduled saves, nor one at shutdown. Explicit save() calls still work.
+    public synchronized void stopSaving() {
+        if (scheduledSaves != null) {
+            scheduledSaves.cancel(false);
+            scheduledSaves = null;
+        }
+        if (saveOnExit != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(saveOnExit);
+            }
+            catch (IllegalStateException e) {  // NOSONAR
+                // Already shutting down, so it's saving anyway
+            }
+            saveOnExit = null;
+        }
+    }
+
+    // Series count written
+    public synchronized int save() throws IOException {
+        int seriesCount = 0;
+        try (OutputStream stream = Files.newOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream( new BufferedOutputStream(stream, BUFFER_SIZE) )) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);  // Series count, filled in below
+
+            for (Map.Entry<ByteBuffer,Checkpointable> each : tracked.entrySet()) {
+                write(out, each.getKey(), each.getValue().checkpoint());
+                seriesCount++;
+            }
+            for (Map.Entry<ByteBuffer,double[]> each : unclaimed.entrySet()) {
+                if (tracked.containsKey( each.getKey() )) {
+                    continue;  // Being claimed right now, and already written above
+                }
+                write(out, each.getKey(), each.getValue());
+                seriesCount++;
+            }
+        }
+
+        // Written in place, rather than counting the series up front while metrics come and go
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            final ByteBuffer count = ByteBuffer.allocate(4).putInt(0, seriesCount);
+            channel.write(count, 8);
+            channel.force(true);  // Before the rename, so a crash can't leave a snapshot that's renamed but not all there
+        }
+
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return seriesCount;
+    }
+
+    private static final class Holder {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "prometheus-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void write(final DataOutputStream out, final ByteBuffer key, final double[] state) throws IOException {
+        out.writeInt( key.remaining() );
+        out.write(key.array(), key.arrayOffset() + key.position(), key.remaining());
+        out.writeInt(state.length);
+        for (double each : state) {
+            out.writeDouble(each);
+        }
+    }
+
+    private static byte[] encodeKey(final String name, final List<String> labelNames, final List<String> labelValues) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(name);
+            out.writeShort( labelNames.size() );
+            for (int i = 0; i < labelNames.size(); i++) {
+                out.writeUTF( labelNames.get(i) );
+                out.writeUTF( labelValues.get(i) );
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
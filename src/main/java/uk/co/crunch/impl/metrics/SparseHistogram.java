@@ -0,0 +1,63 @@
+package uk.co.crunch.impl.metrics;
+
+/**
+ * Histogram with log-linear buckets, after Prometheus native histograms: each power of two is split into
+ * 2^subBucketBits equal buckets, so every bucket's width is within 2^-subBucketBits of its bounds, whatever the
+ * range of values. The bucket comes straight from the bits of the double (exponent, then the top mantissa bits),
+ * with no search and no logarithms.
+ *
+ * One row of counts per power of two, created the first time a value lands there: only ranges actually seen cost
+ * memory, and after the first value in a range observe() is allocation-free. Only populated buckets are exposed, as
+ * cumulative le buckets like any other histogram.
+ *
+ * Covers (2^-64, 2^64]. Anything at or below 2^-64, including zero and negative values, is counted in the lowest
+ * bucket; anything above 2^64, or NaN, only in +Inf. All still count towards _count and _sum.
+ */
+public final class SparseHistogram extends BucketedHistogram {
+
+    private static final int MIN_EXPONENT = -64;
+    private static final int MAX_EXPONENT = 63;
+    private static final double MIN_VALUE = Math.scalb(1.0, MIN_EXPONENT);
+    private static final double MAX_VALUE = Math.scalb(1.0, MAX_EXPONENT + 1);
+
+    // Row 0 holds just the one bucket for everything up to MIN_VALUE, then one row per power of two
+    private static final int ROWS = MAX_EXPONENT - MIN_EXPONENT + 2;
+
+    private final int subBucketBits;
+
+    public SparseHistogram(final String name, final String help, final int subBucketBits) {
+        super(name, help, ROWS, 1 << checkSubBucketBits(subBucketBits), false);
+        this.subBucketBits = subBucketBits;
+    }
+
+    private static int checkSubBucketBits(final int subBucketBits) {
+        if (subBucketBits < 0 || subBucketBits > 8) {
+            throw new IllegalArgumentException("Sub-bucket bits " + subBucketBits + " invalid: Expected number between 0 and 8.");
+        }
+        return subBucketBits;
+    }
+
+    @Override
+    int bucketOf(final double value) {
+        if (value <= MIN_VALUE) {
+            return 0;
+        }
+        if (value <= MAX_VALUE) {
+            // One below the value's bits, so that a value exactly on a bucket's upper bound lands in that bucket
+            final long bits = Double.doubleToRawLongBits(value) - 1;
+            final int row = (int) (bits >>> 52) - 1023 - MIN_EXPONENT + 1;
+            final int subBucket = (int) (bits >>> (52 - subBucketBits)) & ((1 << subBucketBits) - 1);
+            return row << 16 | subBucket;
+        }
+        return INF_ONLY;
+    }
+
+    // 2^exponent * (1 + (subBucket + 1) / 2^subBucketBits), which is exact
+    @Override
+    double upperBound(final int row, final int subBucket) {
+        if (row == 0) {
+            return MIN_VALUE;
+        }
+        return Math.scalb(1.0 + (subBucket + 1.0) / (1 << subBucketBits), row - 1 + MIN_EXPONENT);
+    }
+}
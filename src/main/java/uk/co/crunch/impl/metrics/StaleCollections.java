@@ -0,0 +1,44 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Self-metrics for every {@link ScheduledCollector}, labelled collector="<name>": how many scrapes got a stale result,
+ * and how old the latest result is.
+ */
+public final class StaleCollections extends Collector {
+
+    private static final List<String> LABEL_NAMES = Collections.singletonList("collector");
+
+    private final String prefix;
+    private final Iterable<ScheduledCollector> scheduled;
+
+    public StaleCollections(final String prefix, final Iterable<ScheduledCollector> scheduled) {
+        this.prefix = prefix;
+        this.scheduled = scheduled;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> stale = new ArrayList<>();
+        final List<MetricFamilySamples.Sample> ages = new ArrayList<>();
+        for (ScheduledCollector each : scheduled) {
+            final List<String> labelValues = Collections.singletonList( each.getName() );
+            stale.add( new MetricFamilySamples.Sample(prefix + "collector_stale", LABEL_NAMES, labelValues, each.getStaleScrapes()) );
+
+            final double age = each.getResultAgeSeconds();
+            if (age >= 0) {
+                ages.add( new MetricFamilySamples.Sample(prefix + "collector_result_age_seconds", LABEL_NAMES, labelValues, age) );
+            }
+        }
+
+        final List<MetricFamilySamples> result = new ArrayList<>(2);
+        result.add( new MetricFamilySamples(prefix + "collector_stale", Type.COUNTER, "Scrapes served a stale result, as the collector ran over its budget or failed", stale) );
+        result.add( new MetricFamilySamples(prefix + "collector_result_age_seconds", Type.GAUGE, "Time since the collector last finished collecting", ages) );
+        return result;
+    }
+}
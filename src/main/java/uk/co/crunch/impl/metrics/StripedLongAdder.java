@@ -0,0 +1,49 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed set of cache-line padded long cells, one picked per thread. Unlike LongAdder there is no CAS retry or
+ * lazy cell expansion: each add is a single atomic XADD, and only sum() walks all the cells.
+ */
+public final class StripedLongAdder {
+
+    private static final int PADDING = 8;  // longs per 64-byte cache line
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedLongAdder() {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    public StripedLongAdder(final int concurrency) {
+        final int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit( Math.max(1, concurrency - 1) ) << 1);
+        this.mask = stripes - 1;
+        // Leave an empty line either side, so neither the array header nor a neighbouring object shares a cell's line
+        this.cells = new AtomicLongArray((stripes + 2) * PADDING);
+    }
+
+    public void add(final long x) {
+        cells.getAndAdd(cellIndex(), x);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++) {
+            sum += cells.get((i + 1) * PADDING);
+        }
+        return sum;
+    }
+
+    int stripes() {
+        return mask + 1;
+    }
+
+    private int cellIndex() {
+        // Thread ids are handed out sequentially, so a Fibonacci hash spreads them evenly over the stripes
+        final int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        return (stripe + 1) * PADDING;
+    }
+}
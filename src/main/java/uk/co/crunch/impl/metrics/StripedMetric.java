@@ -0,0 +1,42 @@
+package uk.co.crunch.impl.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * High-contention counter or gauge. Whole-number updates go to a {@link StripedLongAdder}, anything fractional to
+ * a DoubleAdder, and the two are only summed when the registry is scraped.
+ */
+public final class StripedMetric extends ValueMetric {
+
+    private final StripedLongAdder whole = new StripedLongAdder();
+    private final DoubleAdder fractional = new DoubleAdder();
+
+    private StripedMetric(final String name, final String help, final Type type) {
+        super(name, help, type);
+    }
+
+    public static StripedMetric counter(final String name, final String help) {
+        return new StripedMetric(name, help, Type.COUNTER);
+    }
+
+    public static StripedMetric gauge(final String name, final String help) {
+        return new StripedMetric(name, help, Type.GAUGE);
+    }
+
+    @Override
+    public void add(final double amount) {
+        checkIncrement(amount);
+
+        final long asLong = (long) amount;
+        if (asLong == amount) {
+            whole.add(asLong);
+        } else {
+            fractional.add(amount);
+        }
+    }
+
+    @Override
+    public double get() {
+        return whole.sum() + fractional.sum();
+    }
+}
@@ -0,0 +1,76 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector;
+import uk.co.crunch.impl.exposition.ExpositionWriter;
+import uk.co.crunch.impl.exposition.ExposableSeries;
+
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Base for our single-valued counters and gauges. Samples come out exactly as simpleclient's own Counter and Gauge
+ * write them, and the HELP/TYPE lines and sample name are encoded once, up front, for the streaming writer.
+ */
+public abstract class ValueMetric extends Collector implements Accumulator, ExposableSeries, Checkpointable {
+
+    private final String name;
+    private final String help;
+    private final Type type;
+
+    private final byte[] encodedHeader;
+    private final byte[] encodedName;
+
+    ValueMetric(final String name, final String help, final Type type) {
+        checkMetricName(name);  // As simpleclient's builders do, so a bad name fails here rather than breaking every scrape
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.encodedHeader = ExpositionWriter.encodeHeader(name, help, type);
+        this.encodedName = ExpositionWriter.encodeName(name);
+    }
+
+    // Same check, and message, as simpleclient's Counter
+    final void checkIncrement(final double amount) {
+        if (type == Type.COUNTER && amount < 0) {
+            throw new IllegalArgumentException("Amount to increment must be non-negative.");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public double[] checkpoint() {
+        return new double[]{ get() };
+    }
+
+    @Override
+    public boolean restore(final double[] state) {
+        if (state.length != 1 || (type == Type.COUNTER && !(state[0] >= 0))) {
+            return false;
+        }
+        add(state[0]);
+        return true;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample(name, emptyList(), emptyList(), get());
+        return singletonList( new MetricFamilySamples(name, type, help, singletonList(sample)) );
+    }
+
+    @Override
+    public void expose(final ExpositionWriter writer) {
+        writer.writeBytes(encodedHeader);
+        exposeSamples(writer, ExpositionWriter.NO_LABELS);
+    }
+
+    @Override
+    public void exposeSamples(final ExpositionWriter writer, final byte[] labels) {
+        writer.writeSample(encodedName, labels, ExpositionWriter.NO_LABELS, get());
+    }
+}
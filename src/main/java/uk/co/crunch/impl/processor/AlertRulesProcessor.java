@@ -0,0 +1,114 @@
+package uk.co.crunch.impl.processor;
+
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.api.AlertRules;
+import uk.co.crunch.api.PrometheusVersion;
+import uk.co.crunch.impl.AlertRulesGenerator;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the alert rules declared with {@link AlertRules} / {@link AlertRule} out at compile time, as
+ * META-INF/prometheus/<group>.rules (1.x) and <group>.yml (2.x) in the class output, so nothing needs generating
+ * at runtime.
+ *
+ * Options: -Aprometheus.alerts.prefix=<metric prefix> (without it, nothing is written) and
+ * -Aprometheus.alerts.group=<group for rules without an @AlertRules groupName> (default "alerts").
+ */
+public class AlertRulesProcessor extends AbstractProcessor {
+
+    private static final String PREFIX_OPTION = "prometheus.alerts.prefix";
+    private static final String GROUP_OPTION = "prometheus.alerts.group";
+    private static final String OUTPUT_DIRECTORY = "META-INF/prometheus/";
+
+    private static final String DEFAULT_GROUP = "alerts";
+
+    // Collected over every round, written in the last
+    private final Map<String,List<AlertRule>> rulesByGroup = new LinkedHashMap<>();
+    private final List<Element> originatingElements = new ArrayList<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>( Arrays.asList( AlertRules.class.getName(), AlertRule.class.getName()) );
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return new HashSet<>( Arrays.asList(PREFIX_OPTION, GROUP_OPTION) );
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        final String defaultGroup = processingEnv.getOptions().getOrDefault(GROUP_OPTION, DEFAULT_GROUP);
+
+        for (Element each : roundEnv.getElementsAnnotatedWith(AlertRules.class)) {
+            final AlertRules rules = each.getAnnotation(AlertRules.class);
+            addRules(rules.groupName().isEmpty() ? defaultGroup : rules.groupName(), each, rules.value());
+        }
+        for (Element each : roundEnv.getElementsAnnotatedWith(AlertRule.class)) {
+            addRules(defaultGroup, each, each.getAnnotation(AlertRule.class));
+        }
+
+        if (roundEnv.processingOver() && !rulesByGroup.isEmpty()) {
+            writeRules();
+        }
+        return false;
+    }
+
+    private void addRules(final String group, final Element element, final AlertRule... rules) {
+        rulesByGroup.computeIfAbsent(group, g -> new ArrayList<>()).addAll( Arrays.asList(rules) );
+        originatingElements.add(element);
+    }
+
+    private void writeRules() {
+        final String prefix = processingEnv.getOptions().get(PREFIX_OPTION);
+        if (prefix == null || prefix.isEmpty()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Alert rules found, but none written: no -A" + PREFIX_OPTION + "=<metric prefix> given");
+            return;
+        }
+
+        final Element[] origins = originatingElements.toArray(new Element[0]);
+        for (Map.Entry<String,List<AlertRule>> entry : rulesByGroup.entrySet()) {
+            final AlertRule[] rules = entry.getValue().toArray(new AlertRule[0]);
+            try {
+                write(entry.getKey() + ".rules", PrometheusVersion.V1_X, prefix, entry.getKey(), rules, origins);
+                write(entry.getKey() + ".yml", PrometheusVersion.V2_X, prefix, entry.getKey(), rules, origins);
+            }
+            catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write alert rules for " + entry.getKey() + ": " + e.getMessage());
+            }
+            catch (IllegalArgumentException e) {  // A metric name that can't be normalised
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Invalid alert rules in " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(final String fileName, final PrometheusVersion version, final String prefix, final String group, final AlertRule[] rules, final Element[] origins) throws IOException {
+        final FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", OUTPUT_DIRECTORY + fileName, origins);
+        try (Writer writer = new BufferedWriter( file.openWriter() )) {
+            AlertRulesGenerator.writeRulesFile(writer, version, prefix, group, rules);
+        }
+    }
+}
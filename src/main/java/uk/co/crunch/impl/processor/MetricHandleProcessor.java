@@ -0,0 +1,263 @@
+package uk.co.crunch.impl.processor;
+
+import uk.co.crunch.api.Metric;
+import uk.co.crunch.utils.PrometheusUtils;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Generates a <Interface>Handles class for every interface with {@link Metric} methods. Names are normalised here,
+ * at compile time, and the generated constructor registers all of its handles through one
+ * PrometheusMetrics.registerHandles() call, so call sites get plain final fields with no lookup at all.
+ */
+public class MetricHandleProcessor extends AbstractProcessor {
+
+    private static final List<String> HANDLE_TYPES = Arrays.asList("Counter", "Gauge", "Summary", "Histogram");
+    private static final String METRICS_CLASS = "uk.co.crunch.api.PrometheusMetrics";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton( Metric.class.getName() );
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        final Set<TypeElement> interfaces = new LinkedHashSet<>();
+        for (Element each : roundEnv.getElementsAnnotatedWith(Metric.class)) {
+            interfaces.add( (TypeElement) each.getEnclosingElement() );
+        }
+
+        for (TypeElement each : interfaces) {
+            final List<Handle> handles = handlesFor(each);
+            if (handles != null) {
+                generate(each, handles);
+            }
+        }
+        return true;
+    }
+
+    // Null if anything's wrong, in which case errors have been reported against the offending elements
+    private List<Handle> handlesFor(final TypeElement type) {
+        if (type.getKind() != ElementKind.INTERFACE) {
+            error(type, "@Metric methods must be declared on an interface");
+            return null;
+        }
+
+        final List<Handle> handles = new ArrayList<>();
+        final Map<String,Element> byNormalisedName = new HashMap<>();
+        boolean valid = true;
+
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.METHOD) {
+                continue;
+            }
+
+            final ExecutableElement method = (ExecutableElement) member;
+            final Metric metric = method.getAnnotation(Metric.class);
+            if (metric == null) {
+                if (method.getModifiers().contains(Modifier.ABSTRACT)) {
+                    error(method, "Every abstract method needs @Metric, so that a handle class can be generated");
+                    valid = false;
+                }
+                continue;
+            }
+
+            final String handleType = handleType( method.getReturnType() );
+            if (handleType == null) {
+                error(method, "@Metric methods must return PrometheusMetrics." + String.join(", PrometheusMetrics.", HANDLE_TYPES));
+                valid = false;
+                continue;
+            }
+            if (!method.getParameters().isEmpty() || !method.getModifiers().contains(Modifier.ABSTRACT)) {
+                error(method, "@Metric methods must be abstract and take no parameters");
+                valid = false;
+                continue;
+            }
+
+            if (metric.name().isEmpty()) {
+                error(method, "@Metric name must not be empty");
+                valid = false;
+                continue;
+            }
+
+            final String normalisedName;
+            try {
+                normalisedName = PrometheusUtils.normaliseName( metric.name() );
+            }
+            catch (IllegalArgumentException e) {
+                error(method, e.getMessage());
+                valid = false;
+                continue;
+            }
+
+            final Element clash = byNormalisedName.put(normalisedName, method);
+            if (clash != null) {
+                error(method, "Metric name " + normalisedName + " is already used by " + clash.getSimpleName() + "()");
+                valid = false;
+                continue;
+            }
+
+            handles.add( new Handle( method.getSimpleName().toString(), handleType, metric.name(), normalisedName, metric.description()) );
+        }
+
+        return valid ? handles : null;
+    }
+
+    private static String handleType(final TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        final TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        final Element enclosing = element.getEnclosingElement();
+        if (enclosing instanceof TypeElement && ((TypeElement) enclosing).getQualifiedName().contentEquals(METRICS_CLASS)
+                && HANDLE_TYPES.contains( element.getSimpleName().toString() )) {
+            return element.getSimpleName().toString();
+        }
+        return null;
+    }
+
+    // javax.annotation.Generated went with java.xml.ws.annotation in Java 11, so use whichever the target can see, if any
+    private String generatedAnnotation() {
+        final String name = processingEnv.getSourceVersion().compareTo(SourceVersion.RELEASE_8) > 0 ? "javax.annotation.processing.Generated" : "javax.annotation.Generated";
+        return processingEnv.getElementUtils().getTypeElement(name) != null ? name : null;
+    }
+
+    private void generate(final TypeElement type, final List<Handle> handles) {
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        final String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        final String interfaceName = type.getQualifiedName().toString().substring( packageName.isEmpty() ? 0 : packageName.length() + 1 );
+        final String className = interfaceName.replace('.', '_') + "Handles";
+        final String visibility = type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+
+        final StringBuilder src = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            src.append("package ").append(packageName).append(";\n\n");
+        }
+        if (!METRICS_CLASS.equals(packageName + ".PrometheusMetrics")) {
+            src.append("import ").append(METRICS_CLASS).append(";\n\n");
+        }
+        final String generated = generatedAnnotation();
+        if (generated != null) {
+            src.append('@').append(generated).append("(\"").append( getClass().getName() ).append("\")\n");
+        }
+        src.append(visibility).append("final class ").append(className).append(" implements ").append(interfaceName).append(" {\n\n");
+
+        src.append("    private static final Class<?>[] TYPES = {");
+        for (int i = 0; i < handles.size(); i++) {
+            src.append(i > 0 ? ", " : "").append("PrometheusMetrics.").append( handles.get(i).type ).append(".class");
+        }
+        src.append("};\n");
+        appendStrings(src, "NAMES", handles, h -> h.name);
+        appendStrings(src, "NORMALISED_NAMES", handles, h -> h.normalisedName);
+        appendStrings(src, "DESCRIPTIONS", handles, h -> h.description);
+        src.append('\n');
+
+        for (Handle each : handles) {
+            src.append("    public final PrometheusMetrics.").append(each.type).append(' ').append(each.method).append(";\n");
+        }
+
+        src.append("\n    public ").append(className).append("(final PrometheusMetrics metrics) {\n");
+        src.append("        final Object[] handles = metrics.registerHandles(TYPES, NAMES, NORMALISED_NAMES, DESCRIPTIONS);\n");
+        for (int i = 0; i < handles.size(); i++) {
+            final Handle each = handles.get(i);
+            src.append("        this.").append(each.method).append(" = (PrometheusMetrics.").append(each.type).append(") handles[").append(i).append("];\n");
+        }
+        src.append("    }\n");
+
+        for (Handle each : handles) {
+            src.append("\n    @Override\n");
+            src.append("    public PrometheusMetrics.").append(each.type).append(' ').append(each.method).append("() {\n");
+            src.append("        return ").append(each.method).append(";\n");
+            src.append("    }\n");
+        }
+        src.append("}\n");
+
+        try {
+            final JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? className : packageName + "." + className, type);
+            try (Writer writer = file.openWriter()) {
+                writer.write( src.toString() );
+            }
+        }
+        catch (IOException e) {
+            error(type, "Could not write " + className + ": " + e.getMessage());
+        }
+    }
+
+    private static void appendStrings(final StringBuilder src, final String field, final List<Handle> handles, final Function<Handle,String> value) {
+        src.append("    private static final String[] ").append(field).append(" = {");
+        for (int i = 0; i < handles.size(); i++) {
+            src.append(i > 0 ? ", " : "");
+            appendLiteral(src, value.apply( handles.get(i) ));
+        }
+        src.append("};\n");
+    }
+
+    // Everything outside printable ASCII escaped, so the output doesn't depend on the source encoding. Control
+    // characters get octal escapes: a unicode escape for a line break would end the literal.
+    private static void appendLiteral(final StringBuilder src, final String s) {
+        src.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                src.append('\\').append(c);
+            } else if (c < 0x20) {
+                src.append( String.format("\\%03o", (int) c) );
+            } else if (c > 0x7e) {
+                src.append( String.format("\\u%04x", (int) c) );
+            } else {
+                src.append(c);
+            }
+        }
+        src.append('"');
+    }
+
+    private void error(final Element element, final String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static final class Handle {
+        final String method;
+        final String type;
+        final String name;
+        final String normalisedName;
+        final String description;
+
+        Handle(final String method, final String type, final String name, final String normalisedName, final String description) {
+            this.method = method;
+            this.type = type;
+            this.name = name;
+            this.normalisedName = normalisedName;
+            this.description = description;
+        }
+    }
+}
@@ -1,52 +1,75 @@
 package uk.co.crunch.impl.v1x;
 
-import org.jtwig.JtwigModel;
-import org.jtwig.JtwigTemplate;
 import uk.co.crunch.api.AlertRule;
 import uk.co.crunch.utils.PrometheusUtils;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import static uk.co.crunch.impl.AlertRulesGenerator.*;
 
+// Writes the same text templates/rule_template_1.x.rule rendered through Jtwig, straight to the output
 public class AlertRulesGenerator1x {
 
-    public static String buildRulesFile(final String metricPrefix, final AlertRule... rules) {
-        final JtwigModel model = JtwigModel.newModel();
-        model.with("prefix", metricPrefix);
-
-        final JtwigTemplate template = JtwigTemplate.classpathTemplate("templates/rule_template_1.x.rule");
-
-        final List<String> ruleStrs = new ArrayList<>();
-
+    public static void writeRulesFile(final Appendable out, final String metricPrefix, final AlertRule... rules) throws IOException {
         final String normalisedPrefix = PrometheusUtils.normaliseName(metricPrefix) + "_";
+        final String alertPrefix = title( metricPrefix.trim() );
 
-        for (AlertRule eachRule : rules) {
-            model.with("alertName", eachRule.name());
-            model.with("duration", eachRule.duration());
-            model.with("rule", replaceRulePlaceholders(eachRule, normalisedPrefix));
-            model.with("annotations", entriesMapToString( getAnnotations(eachRule) ));
-            model.with("labels", entriesMapToString( getLabels(eachRule) ));
+        for (int i = 0; i < rules.length; i++) {
+            final AlertRule eachRule = rules[i];
+            if (i > 0) {
+                out.append('\n');
+            }
 
-            ruleStrs.add(template.render(model));
+            out.append("ALERT ").append(alertPrefix).append( title( eachRule.name().trim() ) ).append('\n');
+            out.append("  IF ");
+            appendRule(out, eachRule, normalisedPrefix);
+            out.append('\n');
+            out.append("  FOR ").append( eachRule.duration() ).append('\n');
+            out.append("  LABELS {\n");
+            writeEntries(out, getLabels(eachRule) );
+            out.append("  }\n");
+            out.append("  ANNOTATIONS {\n");
+            writeEntries(out, getAnnotations(eachRule) );
+            out.append("  }\n");
         }
-
-        return String.join("\n", ruleStrs);
     }
 
-    private static CharSequence quoteString(final String s) {
-        return new StringBuilder().append("\"").append(s.replace("\"", "\\\"")).append("\"");
+    private static void writeEntries(final Appendable out, final Map<String,String> entries) throws IOException {
+        boolean first = true;
+        for (Map.Entry<String,String> entry : entries.entrySet()) {
+            out.append(first ? "    " : ",\n    ").append( entry.getKey() ).append(" = ");
+            writeQuoted(out, entry.getValue());
+            first = false;
+        }
+        out.append('\n');
     }
 
-    private static Function<Map.Entry<String,String>,String> formatEntry() {
-        return entry -> entry.getKey() + " = " + quoteString(entry.getValue());
+    private static void writeQuoted(final Appendable out, final String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
     }
 
-    private static String entriesMapToString(final Map<String,String> entries) {
-        return entries.entrySet().stream().map( formatEntry() ).collect( Collectors.joining(",\n    ") );
+    // As Jtwig's title(): the first character of each whitespace-separated word in title case, the rest untouched
+    static String title(final String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        boolean wordStart = true;
+        for (int i = 0; i < s.length(); ) {
+            final int c = s.codePointAt(i);
+            sb.appendCodePoint( wordStart ? Character.toTitleCase(c) : c );
+            wordStart = Character.isWhitespace(c);
+            i += Character.charCount(c);
+        }
+        return sb.toString();
     }
 }
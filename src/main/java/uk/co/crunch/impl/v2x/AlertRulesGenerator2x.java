@@ -2,46 +2,53 @@ package uk.co.crunch.impl.v2x;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
-import org.yaml.snakeyaml.DumperOptions;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.constructor.Constructor;
-import org.yaml.snakeyaml.introspector.BeanAccess;
-import org.yaml.snakeyaml.introspector.Property;
-import org.yaml.snakeyaml.introspector.PropertyUtils;
-import org.yaml.snakeyaml.representer.Representer;
 import uk.co.crunch.api.AlertRule;
 import uk.co.crunch.utils.PrometheusUtils;
 
-import java.util.*;
+import java.io.IOException;
+import java.util.Map;
 
 import static uk.co.crunch.impl.AlertRulesGenerator.*;
 
+// Writes the same block-style YAML that SnakeYAML's dumpAsMap() produced for the rules, straight to the output
 public class AlertRulesGenerator2x {
 
     private final static Splitter WORDS = Splitter.onPattern("[-_\\.]");
 
-    public static String buildRulesFile(final String metricPrefix, final String alertGroupName, final AlertRule... rules) {
+    public static void writeRulesFile(final Appendable out, final String metricPrefix, final String alertGroupName, final AlertRule... rules) throws IOException {
         final String normalisedPrefix = PrometheusUtils.normaliseName(metricPrefix) + "_";
+        final String alertPrefix = titlecase(metricPrefix);
 
-        final AlertRulesGroup group = new AlertRulesGroup(alertGroupName);
+        out.append("groups:\n- name: ");
+        YamlScalars.write(out, alertGroupName, 4);
 
-        for (AlertRule eachRule : rules) {
-            final String alertName = titlecase(metricPrefix) + titlecase( eachRule.name() );
-
-            group.addRule( new AlertRulePojo(alertName, replaceRulePlaceholders(eachRule, normalisedPrefix), eachRule.duration(), getLabels(eachRule), getAnnotations(eachRule)) );
+        if (rules.length == 0) {
+            out.append("  rules: []\n");
+            return;
         }
 
-        return getYaml().dumpAsMap( new AlertRulesPojo(group) );
+        out.append("  rules:\n");
+        for (AlertRule eachRule : rules) {
+            out.append("  - alert: ");
+            YamlScalars.write(out, alertPrefix + titlecase( eachRule.name() ), 6);
+            out.append("    expr: ");
+            YamlScalars.write(out, replaceRulePlaceholders(eachRule, normalisedPrefix), 6);
+            out.append("    duration: ");
+            YamlScalars.write(out, eachRule.duration(), 6);
+            out.append("    labels:\n");
+            writeMap(out, getLabels(eachRule));
+            out.append("    annotations:\n");
+            writeMap(out, getAnnotations(eachRule));
+        }
     }
 
-    private static Yaml getYaml() {
-        final Representer repr = new Representer();
-        repr.setPropertyUtils( new UnsortedPropertyUtils() );
-
-        final DumperOptions dumper = new DumperOptions();
-        dumper.setSplitLines(false);
-
-        return new Yaml(new Constructor(), repr, dumper);
+    private static void writeMap(final Appendable out, final Map<String,String> entries) throws IOException {
+        for (Map.Entry<String,String> entry : entries.entrySet()) {
+            out.append("      ");
+            YamlScalars.writeKey(out, entry.getKey());
+            out.append(": ");
+            YamlScalars.write(out, entry.getValue(), 8);
+        }
     }
 
     @VisibleForTesting
@@ -55,49 +62,4 @@ public class AlertRulesGenerator2x {
         }
         return sb.toString();
     }
-
-    // https://bitbucket.org/asomov/snakeyaml/src/tip/src/test/java/org/yaml/snakeyaml/issues/issue60/CustomOrderTest.java?fileviewer=file-view-default
-    private static class UnsortedPropertyUtils extends PropertyUtils {
-        @Override
-        protected Set<Property> createPropertySet(Class<? extends Object> type, BeanAccess bAccess) {
-            return new LinkedHashSet<>(getPropertiesMap(type, BeanAccess.FIELD).values());
-        }
-    }
-
-    private static class AlertRulesPojo {
-        private final List<AlertRulesGroup> groups = new ArrayList<>();
-
-        public AlertRulesPojo(AlertRulesGroup group) {
-            groups.add(group);
-        }
-    }
-
-    private static class AlertRulesGroup {
-        private final String name;
-        private final List<AlertRulePojo> rules = new ArrayList<>();
-
-        AlertRulesGroup(String alertGroupName) {
-            this.name = alertGroupName;
-        }
-
-        void addRule(AlertRulePojo rule) {
-            this.rules.add(rule);
-        }
-    }
-
-    private static class AlertRulePojo {
-        String alert = "OpenstackCinderVolumeStuck";
-        String expr;
-        String duration;
-        Map<String,String> labels;
-        Map<String,String> annotations;
-
-        AlertRulePojo(String alert, String expr, String duration, Map<String,String> labels, Map<String,String> annotations) {
-            this.alert = alert;
-            this.expr = expr;
-            this.duration = duration;
-            this.labels = labels;
-            this.annotations = annotations;
-        }
-    }
 }
@@ -0,0 +1,298 @@
+package uk.co.crunch.impl.v2x;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Writes string scalars in the style SnakeYAML's emitter would pick for them: plain where that can't be misread,
+ * else single-quoted, else double-quoted with escapes, and multi-line strings as literal blocks. Line splitting is
+ * always off, as it was for our DumperOptions.
+ */
+final class YamlScalars {
+
+    private static final int BEST_INDENT = 2;
+
+    // Any string matching one of SnakeYAML's implicit resolvers (bool, int, float, merge, null, timestamp,
+    // yaml, empty) would read back as something else if written plain
+    private static final Pattern IMPLICIT = Pattern.compile(
+            "yes|Yes|YES|no|No|NO|true|True|TRUE|false|False|FALSE|on|On|ON|off|Off|OFF" +
+            "|[-+]?0b[0-1_]+|[-+]?0[0-7_]+|[-+]?(?:0|[1-9][0-9_]*)|[-+]?0x[0-9a-fA-F_]+|[-+]?[1-9][0-9_]*(?::[0-5]?[0-9])+" +
+            "|[-+]?(?:\\.[0-9]+|[0-9_]+(?:\\.[0-9_]*)?)(?:[eE][-+]?[0-9]+)?|[-+]?[0-9][0-9_]*(?::[0-5]?[0-9])+\\.[0-9_]*|[-+]?\\.(?:inf|Inf|INF)|\\.(?:nan|NaN|NAN)" +
+            "|<<|~|null|Null|NULL" +
+            "|[0-9][0-9][0-9][0-9]-[0-9][0-9]-[0-9][0-9]|[0-9][0-9][0-9][0-9]-[0-9][0-9]?-[0-9][0-9]?(?:[Tt]|[ \t]+)[0-9][0-9]?:[0-9][0-9]:[0-9][0-9](?:\\.[0-9]*)?(?:[ \t]*(?:Z|[-+][0-9][0-9]?(?::[0-9][0-9])?))?" +
+            "|!|&|\\*|");
+    private static final String IMPLICIT_FIRST_CHARS = "yYnNtTfFoO-+0123456789.<~!&*";
+
+    private YamlScalars() {}
+
+    // A mapping value, ending the line. Lines of a literal block are indented by the given amount: that of the
+    // mapping plus BEST_INDENT.
+    static void write(final Appendable out, final String s, final int indent) throws IOException {
+        final Analysis analysis = new Analysis(s);
+        if (analysis.multiline) {
+            if (analysis.allowBlock) {
+                writeLiteral(out, s, indent);
+                return;  // Already ends the line
+            }
+            writeDoubleQuoted(out, s);
+        } else if (analysis.allowBlockPlain && !isImplicit(s)) {
+            out.append(s);
+        } else if (analysis.allowSingleQuoted) {
+            writeSingleQuoted(out, s);
+        } else {
+            writeDoubleQuoted(out, s);
+        }
+        out.append('\n');
+    }
+
+    // A mapping key, on the same line as its value
+    static void writeKey(final Appendable out, final String s) throws IOException {
+        final Analysis analysis = new Analysis(s);
+        if (!analysis.empty && !analysis.multiline && analysis.allowBlockPlain && !isImplicit(s)) {
+            out.append(s);
+        } else if (!analysis.multiline && analysis.allowSingleQuoted) {
+            writeSingleQuoted(out, s);
+        } else {
+            writeDoubleQuoted(out, s);
+        }
+    }
+
+    private static boolean isImplicit(final String s) {
+        return s.isEmpty() || (IMPLICIT_FIRST_CHARS.indexOf( s.charAt(0) ) >= 0 && IMPLICIT.matcher(s).matches());
+    }
+
+    private static void writeSingleQuoted(final Appendable out, final String s) throws IOException {
+        out.append('\'');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            out.append(c);
+            if (c == '\'') {
+                out.append('\'');
+            }
+        }
+        out.append('\'');
+    }
+
+    private static void writeDoubleQuoted(final Appendable out, final String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x20 && c <= 0x7e && c != '"' && c != '\\') {
+                out.append(c);
+                continue;
+            }
+
+            final String escape = escapeFor(c);
+            if (escape != null) {
+                out.append('\\').append(escape);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate( s.charAt(i + 1) )) {
+                out.append("\\U").append( hex(s.codePointAt(i), 8) );
+                i++;
+            } else if ((c >= 0xa0 && c <= 0xd7ff) || (c >= 0xe000 && c <= 0xfffd)) {  // Printable
+                out.append(c);
+            } else if (c <= 0xff) {
+                out.append("\\x").append( hex(c, 2) );
+            } else {
+                out.append("\\u").append( hex(c, 4) );
+            }
+        }
+        out.append('"');
+    }
+
+    private static String escapeFor(final char c) {
+        switch (c) {
+            case '\0': return "0";
+            case '\u0007': return "a";
+            case '\b': return "b";
+            case '\t': return "t";
+            case '\n': return "n";
+            case '\u000b': return "v";
+            case '\f': return "f";
+            case '\r': return "r";
+            case '\u001b': return "e";
+            case '"': return "\"";
+            case '\\': return "\\";
+            case '\u0085': return "N";
+            case '\u00a0': return "_";
+            case '\u2028': return "L";
+            case '\u2029': return "P";
+            default: return null;
+        }
+    }
+
+    private static String hex(final int c, final int digits) {
+        final String s = "0000000" + Integer.toHexString(c);
+        return s.substring(s.length() - digits);
+    }
+
+    private static void writeLiteral(final Appendable out, final String s, final int indent) throws IOException {
+        out.append('|');
+        if (s.charAt(0) == ' ' || isLineBreak( s.charAt(0) )) {
+            out.append( Integer.toString(BEST_INDENT) );
+        }
+        final char last = s.charAt(s.length() - 1);
+        if (!isLineBreak(last)) {
+            out.append('-');
+        } else if (s.length() == 1 || isLineBreak( s.charAt(s.length() - 2) )) {
+            out.append('+');
+        }
+        out.append('\n');
+
+        // Blank lines carry no indentation, and the text's own trailing line breaks are kept as they are
+        boolean atLineStart = true;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (isLineBreak(c)) {
+                out.append(c);
+                atLineStart = true;
+                continue;
+            }
+            if (atLineStart) {
+                for (int j = 0; j < indent; j++) {
+                    out.append(' ');
+                }
+                atLineStart = false;
+            }
+            out.append(c);
+        }
+        if (!atLineStart) {
+            out.append('\n');
+        }
+    }
+
+    private static boolean isLineBreak(final int c) {
+        return c == '\n' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isBlankOrBreak(final int c) {
+        return c == ' ' || c == '\t' || isLineBreak(c);
+    }
+
+    // Port of the relevant parts of SnakeYAML's Emitter.analyzeScalar(), with unicode allowed
+    private static final class Analysis {
+        final boolean empty;
+        final boolean multiline;
+        final boolean allowBlockPlain;
+        final boolean allowSingleQuoted;
+        final boolean allowBlock;
+
+        Analysis(final String s) {
+            if (s.isEmpty()) {
+                empty = true;
+                multiline = false;
+                allowBlockPlain = true;
+                allowSingleQuoted = true;
+                allowBlock = false;
+                return;
+            }
+            empty = false;
+
+            boolean blockIndicators = s.startsWith("---") || s.startsWith("...");
+            boolean lineBreaks = false;
+            boolean specialCharacters = false;
+            boolean leadingSpace = false;
+            boolean leadingBreak = false;
+            boolean trailingSpace = false;
+            boolean trailingBreak = false;
+            boolean breakSpace = false;
+            boolean spaceBreak = false;
+
+            boolean precededByWhitespace = true;
+            boolean followedByWhitespace = s.length() == 1 || isBlankOrBreak( s.codePointAt(1) ) || s.charAt(1) == '\0';
+            boolean previousSpace = false;
+            boolean previousBreak = false;
+
+            int index = 0;
+            while (index < s.length()) {
+                final int c = s.codePointAt(index);
+
+                if (index == 0) {
+                    if ("#,[]{}&*!|>'\"%@`".indexOf(c) != -1) {
+                        blockIndicators = true;
+                    }
+                    if ((c == '?' || c == ':' || c == '-') && followedByWhitespace) {
+                        blockIndicators = true;
+                    }
+                } else {
+                    if (c == ':' && followedByWhitespace) {
+                        blockIndicators = true;
+                    }
+                    if (c == '#' && precededByWhitespace) {
+                        blockIndicators = true;
+                    }
+                }
+
+                final boolean isLineBreak = isLineBreak(c);
+                if (isLineBreak) {
+                    lineBreaks = true;
+                }
+                if (!(c == '\n' || (c >= 0x20 && c <= 0x7e))) {
+                    if (!(c == 0x85 || (c >= 0xa0 && c <= 0xd7ff) || (c >= 0xe000 && c <= 0xfffd) || (c >= 0x10000 && c <= 0x10ffff))) {
+                        specialCharacters = true;
+                    }
+                }
+
+                if (c == ' ') {
+                    if (index == 0) {
+                        leadingSpace = true;
+                    }
+                    if (index == s.length() - 1) {
+                        trailingSpace = true;
+                    }
+                    if (previousBreak) {
+                        breakSpace = true;
+                    }
+                    previousSpace = true;
+                    previousBreak = false;
+                } else if (isLineBreak) {
+                    if (index == 0) {
+                        leadingBreak = true;
+                    }
+                    if (index == s.length() - 1) {
+                        trailingBreak = true;
+                    }
+                    if (previousSpace) {
+                        spaceBreak = true;
+                    }
+                    previousSpace = false;
+                    previousBreak = true;
+                } else {
+                    previousSpace = false;
+                    previousBreak = false;
+                }
+
+                index += Character.charCount(c);
+                precededByWhitespace = c == ' ' || c == '\t' || c == '\0' || isLineBreak;
+                followedByWhitespace = true;
+                if (index + 1 < s.length()) {
+                    final int next = index + Character.charCount( s.codePointAt(index) );
+                    if (next < s.length()) {
+                        final int n = s.codePointAt(next);
+                        followedByWhitespace = n == ' ' || n == '\t' || n == '\0' || isLineBreak;
+                    }
+                }
+            }
+
+            boolean blockPlain = !(leadingSpace || leadingBreak || trailingSpace || trailingBreak);
+            boolean singleQuoted = true;
+            boolean block = !trailingSpace;
+            if (breakSpace) {
+                blockPlain = false;
+                singleQuoted = false;
+            }
+            if (spaceBreak || specialCharacters) {
+                blockPlain = false;
+                singleQuoted = false;
+                block = false;
+            }
+            if (lineBreaks || blockIndicators) {
+                blockPlain = false;
+            }
+
+            multiline = lineBreaks;
+            allowBlockPlain = blockPlain;
+            allowSingleQuoted = singleQuoted;
+            allowBlock = block;
+        }
+    }
+}
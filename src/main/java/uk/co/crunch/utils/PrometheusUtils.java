@@ -1,11 +1,54 @@
 package uk.co.crunch.utils;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 public class PrometheusUtils {
-    public static String normaliseName(String name) {
-        return name.replace('.','_')
-                .replace('-','_')
-                .replace('#','_')
-                .replace(' ','_')
-                .toLowerCase();
+
+    // Repeat inputs that needed changing. Bounded by simply not adding once full: the names an application uses
+    // are a small, fixed set, and anything past the limit is still normalised correctly, just not cached.
+    private static final int MAX_INTERNED = 4096;
+    private static final ConcurrentMap<String,String> INTERNED = new ConcurrentHashMap<>();
+
+    /**
+     * Lowercases the name and replaces '.', '-', '#' and ' ' with '_'. A name that's already normalised comes back
+     * as the same instance, with nothing allocated. The result is usually a fragment, to be prefixed, so only its
+     * characters are checked against the Prometheus name grammar, not where it starts.
+     *
+     * @throws IllegalArgumentException for any character that can't appear in a Prometheus metric name
+     */
+    public static String normaliseName(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == ':')) {
+                return normaliseFrom(name, i);
+            }
+        }
+        return name;
+    }
+
+    private static String normaliseFrom(final String name, final int firstChange) {
+        final String interned = INTERNED.get(name);
+        if (interned != null) {
+            return interned;
+        }
+
+        final char[] chars = name.toCharArray();
+        for (int i = firstChange; i < chars.length; i++) {
+            final char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            } else if (c == '.' || c == '-' || c == '#' || c == ' ') {
+                chars[i] = '_';
+            } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == ':')) {
+                throw new IllegalArgumentException("Invalid character '" + c + "' in metric name: " + name);
+            }
+        }
+
+        final String normalised = new String(chars);
+        if (INTERNED.size() < MAX_INTERNED) {
+            INTERNED.putIfAbsent(name, normalised);
+        }
+        return normalised;
     }
 }
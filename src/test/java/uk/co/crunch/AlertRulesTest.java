@@ -2,6 +2,7 @@ package uk.co.crunch;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
+import com.google.common.io.Resources;
 import org.junit.Test;
 import uk.co.crunch.api.AlertRule;
 import uk.co.crunch.api.AlertRule.Annotation;
@@ -55,6 +56,23 @@ public class AlertRulesTest {
                 .isEqualTo( Files.asCharSource(new File("src/test/resources/expectations/generated_rules.yml"), Charsets.UTF_8).read().trim() );
     }
 
+    // Written by AlertRulesProcessor when the tests were compiled, with -Aprometheus.alerts.prefix=Test
+    @Test
+    public void testGenerationAtCompileTime() throws IOException {
+        assertThat( generated("webapp.alerts.rules").trim() )
+                .isEqualTo( Files.asCharSource(new File("src/test/resources/expectations/generated_rules.rule"), Charsets.UTF_8).read().trim() );
+        assertThat( generated("webapp.alerts.yml").trim() )
+                .isEqualTo( Files.asCharSource(new File("src/test/resources/expectations/generated_rules.yml"), Charsets.UTF_8).read().trim() );
+
+        // Rules outside an @AlertRules go into the default group
+        assertThat( generated("alerts.yml") ).startsWith("groups:\n- name: alerts\n  rules:\n  - alert: TestRpsRule\n");
+        assertThat( generated("alerts.rules") ).startsWith("ALERT TestRpsRule\n");
+    }
+
+    private static String generated(final String name) throws IOException {
+        return Resources.toString( Resources.getResource("META-INF/prometheus/" + name), Charsets.UTF_8);
+    }
+
     @AlertRule(name = "rpsRule",
             metricNames = "rps",
             rule = "avg_over_time($1[1m]) / avg_over_time($1[24h]) * 100 > 200",
@@ -1,7 +1,6 @@
 package uk.co.crunch;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.TestableTimeProvider;
 import org.junit.Before;
 import org.junit.Test;
 import uk.co.crunch.api.PrometheusMetrics;
@@ -10,19 +9,21 @@ import java.io.IOException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static uk.co.crunch.TestUtils.samplesString;
+import static uk.co.crunch.TestUtils.steppedClock;
 
 public class ExampleTest {
     private CollectorRegistry registry;
 
     @Before
     public void setUp() {
-        TestableTimeProvider.install();
         registry = new CollectorRegistry();
     }
 
     @Test
     public void testExample() {
-        final Example ex = new Example( new PrometheusMetrics(registry, "Example") );
+        final PrometheusMetrics metrics = new PrometheusMetrics(registry, "Example");
+        metrics.setTimerClock( steppedClock() );
+        final Example ex = new Example(metrics);
 
         assertThat(registry.getSampleValue("example_sessions_open")).isNull();
         assertThat(registry.getSampleValue("example_errors", new String[]{"error_type"}, new String[]{"generic"})).isNull();
@@ -1,12 +1,20 @@
 package uk.co.crunch;
 
 import io.prometheus.client.CollectorRegistry;
+import uk.co.crunch.api.TimerClock;
 
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TestUtils {
 
     public static String samplesString(CollectorRegistry registry) {
         return Collections.list( registry.metricFamilySamples() ).toString();
     }
+
+    // Moves on 1979ns at every read, so every timing takes exactly 1.979E-6 seconds
+    public static TimerClock steppedClock() {
+        final AtomicLong nanoTime = new AtomicLong();
+        return TimerClock.of(() -> nanoTime.getAndAdd(1979L));
+    }
 }
@@ -0,0 +1,17 @@
+package uk.co.crunch.api;
+
+// Compiled by MetricHandleProcessor into LoginMetricsHandles
+public interface LoginMetrics {
+
+    @Metric(name = "Sessions.open")
+    PrometheusMetrics.Gauge sessionsOpen();
+
+    @Metric(name = "Sessions.handleLogin", description = "Login times")
+    PrometheusMetrics.Summary handleLogin();
+
+    @Metric(name = "Login-failures", description = "Failed \"logins\" なお\n")
+    PrometheusMetrics.Counter loginFailures();
+
+    @Metric(name = "Login.sizes")
+    PrometheusMetrics.Histogram loginSizes();
+}
@@ -0,0 +1,98 @@
+package uk.co.crunch.api;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static uk.co.crunch.TestUtils.samplesString;
+import static uk.co.crunch.TestUtils.steppedClock;
+
+public class MetricHandlesTest {
+    private PrometheusMetrics metrics;
+    private CollectorRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new CollectorRegistry();
+        metrics = new PrometheusMetrics(registry, "MyApp");
+        metrics.setTimerClock( steppedClock() );
+    }
+
+    @Test
+    public void testHandlesAreRegisteredUpFront() {
+        final Properties props = new Properties();
+        props.setProperty("Sessions.open", "Open sessions");
+        metrics.setDescriptionMappings(props);
+
+        final LoginMetricsHandles handles = new LoginMetricsHandles(metrics);
+
+        // Everything registered before first use
+        assertThat(registry.getSampleValue("myapp_sessions_open")).isEqualTo(0.0d);
+        assertThat(registry.getSampleValue("myapp_login_failures")).isEqualTo(0.0d);
+        assertThat(registry.getSampleValue("myapp_sessions_handlelogin_count")).isEqualTo(0.0d);
+        assertThat(registry.getSampleValue("myapp_login_sizes_count")).isEqualTo(0.0d);
+
+        handles.sessionsOpen.inc();
+        handles.loginFailures().inc();
+        try (PrometheusMetrics.Context ignored = handles.handleLogin.time()) {
+            handles.loginSizes.observe(100);
+        }
+
+        assertThat(registry.getSampleValue("myapp_sessions_open")).isEqualTo(1.0d);
+        assertThat(registry.getSampleValue("myapp_login_failures")).isEqualTo(1.0d);
+        assertThat(registry.getSampleValue("myapp_sessions_handlelogin_sum")).isEqualTo(1.979E-6d);
+        assertThat(registry.getSampleValue("myapp_login_sizes_count")).isEqualTo(1.0d);
+
+        assertThat(samplesString(registry))
+                .contains("Name: myapp_sessions_open Type: GAUGE Help: Open sessions Samples")
+                .contains("Name: myapp_sessions_handlelogin Type: SUMMARY Help: Login times Samples")
+                .contains("Name: myapp_login_failures Type: COUNTER Help: Failed \"logins\" なお\n Samples");
+    }
+
+    @Test
+    public void testHandlesShareMetricsLookedUpByName() {
+        final PrometheusMetrics.Gauge byName = metrics.gauge("Sessions.open");
+        final LoginMetricsHandles handles = new LoginMetricsHandles(metrics);
+
+        assertThat(handles.sessionsOpen).isSameAs(byName);
+        assertThat(metrics.summary("Sessions.handleLogin")).isSameAs(handles.handleLogin);
+        assertThat(new LoginMetricsHandles(metrics).loginFailures).isSameAs(handles.loginFailures);
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testHandleTypesAreChecked() {
+        metrics.counter("Sessions.open");
+
+        try {
+            new LoginMetricsHandles(metrics);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("myapp_sessions_open is already used for a different type of metric");
+        }
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testBadHandleLeavesNothingBehind() {
+        metrics.gauge("Login.sizes");
+
+        try {
+            new LoginMetricsHandles(metrics);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("myapp_login_sizes is already used for a different type of metric");
+        }
+
+        // The handles before the bad one were neither created nor registered
+        assertThat(registry.getSampleValue("myapp_sessions_open")).isNull();
+        assertThat(metrics.gauge("Sessions.open")).isNotNull();
+        assertThat(registry.getSampleValue("myapp_sessions_open")).isEqualTo(0.0d);
+    }
+}
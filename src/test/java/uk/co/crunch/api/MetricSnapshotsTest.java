@@ -0,0 +1,176 @@
+package uk.co.crunch.api;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MetricSnapshotsTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testRestoredAfterRestart() throws IOException {
+        final Path file = temp.getRoot().toPath().resolve("metrics.snapshot");
+
+        final PrometheusMetrics before = newMetrics(new CollectorRegistry(), file);
+        before.counter("requests").inc(5);
+        before.labelledCounter("jobs", "kind").labels("daily").inc(2);
+        before.labelledCounter("jobs", "kind").labels("hourly").inc(24);
+        before.histogram("latency").observe(0.003).observe(0.2).observe(100);
+        before.histogram("sizes", HistogramBuckets.sparse()).observe(3).observe(1000);
+        before.error("timeout");
+        before.gauge("inflight").inc(7);
+        assertThat(before.saveMetricSnapshot()).isEqualTo(6);
+
+        final CollectorRegistry registry = new CollectorRegistry();
+        final PrometheusMetrics after = newMetrics(registry, file);
+        after.counter("requests").inc();
+        after.labelledCounter("jobs", "kind").labels("daily").inc();
+        after.histogram("latency").observe(0.2);
+        after.histogram("sizes", HistogramBuckets.sparse());
+        after.error("timeout");
+        after.gauge("inflight");
+
+        assertThat(registry.getSampleValue("myapp_requests")).isEqualTo(6d);
+        assertThat(registry.getSampleValue("myapp_jobs", new String[]{"kind"}, new String[]{"daily"})).isEqualTo(3d);
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"0.005"})).isEqualTo(1d);
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"0.25"})).isEqualTo(3d);
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"+Inf"})).isEqualTo(4d);
+        assertThat(registry.getSampleValue("myapp_latency_count")).isEqualTo(4d);
+        assertThat(registry.getSampleValue("myapp_latency_sum")).isEqualTo(100.403);
+        assertThat(registry.getSampleValue("myapp_sizes_count")).isEqualTo(2d);
+        assertThat(registry.getSampleValue("myapp_sizes_sum")).isEqualTo(1003d);
+        assertThat(registry.getSampleValue("myapp_errors", new String[]{"error_type"}, new String[]{"timeout"})).isEqualTo(2d);
+
+        // Gauges start afresh
+        assertThat(registry.getSampleValue("myapp_inflight")).isEqualTo(0d);
+
+        // Not created since the restart, but still carried over
+        assertThat(registry.getSampleValue("myapp_jobs", new String[]{"kind"}, new String[]{"hourly"})).isNull();
+        assertThat(after.saveMetricSnapshot()).isEqualTo(6);
+
+        final CollectorRegistry third = new CollectorRegistry();
+        newMetrics(third, file).labelledCounter("jobs", "kind").labels("hourly");
+        assertThat(third.getSampleValue("myapp_jobs", new String[]{"kind"}, new String[]{"hourly"})).isEqualTo(24d);
+    }
+
+    @Test
+    public void testHandlesRestored() throws IOException {
+        final Path file = temp.getRoot().toPath().resolve("metrics.snapshot");
+
+        final PrometheusMetrics before = newMetrics(new CollectorRegistry(), file);
+        final LoginMetricsHandles handles = new LoginMetricsHandles(before);
+        handles.loginFailures.inc(3);
+        handles.loginSizes.observe(100);
+        handles.sessionsOpen.inc();
+        assertThat(before.saveMetricSnapshot()).isEqualTo(2);
+
+        final CollectorRegistry registry = new CollectorRegistry();
+        new LoginMetricsHandles( newMetrics(registry, file) ).loginFailures.inc();
+
+        assertThat(registry.getSampleValue("myapp_login_failures")).isEqualTo(4d);
+        assertThat(registry.getSampleValue("myapp_login_sizes_count")).isEqualTo(1d);
+        assertThat(registry.getSampleValue("myapp_login_sizes_sum")).isEqualTo(100d);
+        assertThat(registry.getSampleValue("myapp_sessions_open")).isEqualTo(0d);
+    }
+
+    // Evicted series aren't saved, so the cardinality limit bounds the snapshot too
+    @Test
+    public void testEvictedSeriesNotSaved() throws IOException {
+        final Path file = temp.getRoot().toPath().resolve("metrics.snapshot");
+
+        final PrometheusMetrics metrics = newMetrics(new CollectorRegistry(), file);
+        metrics.setCardinalityLimit( CardinalityLimit.evictLeastRecentlyUsed(10) );
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("requests", "user");
+        for (int i = 0; i < 5000; i++) {
+            requests.labels("user_" + i).inc();
+        }
+
+        assertThat(metrics.saveMetricSnapshot()).isBetween(1, 10);
+        assertThat(Files.size(file)).isLessThan(1024);
+
+        final CollectorRegistry registry = new CollectorRegistry();
+        newMetrics(registry, file).labelledCounter("requests", "user").labels("user_4999");
+        assertThat(registry.getSampleValue("myapp_requests", new String[]{"user"}, new String[]{"user_4999"})).isEqualTo(1d);
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testChangedBucketsNotRestored() throws IOException {
+        final Path file = temp.getRoot().toPath().resolve("metrics.snapshot");
+
+        final PrometheusMetrics before = newMetrics(new CollectorRegistry(), file);
+        before.histogram("latency").observe(0.2);
+        before.saveMetricSnapshot();
+
+        final CollectorRegistry registry = new CollectorRegistry();
+        newMetrics(registry, file).histogram("latency", HistogramBuckets.linear(0.3, 0.3, 3));
+
+        assertThat(registry.getSampleValue("myapp_latency_count")).isEqualTo(0d);
+        assertThat(registry.getSampleValue("myapp_latency_sum")).isEqualTo(0d);
+    }
+
+    @Test
+    public void testBadFile() throws IOException {
+        final Path file = temp.newFile("metrics.snapshot").toPath();
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        try {
+            newMetrics(new CollectorRegistry(), file);
+            fail("Should not pass");
+        }
+        catch (IOException e) {
+            assertThat(e.getMessage()).startsWith("Not a metric snapshot file: ");
+        }
+    }
+
+    @Test
+    public void testSnapshotsOnlySetOnce() throws IOException {
+        final PrometheusMetrics metrics = newMetrics(new CollectorRegistry(), temp.getRoot().toPath().resolve("metrics.snapshot"));
+        try {
+            metrics.setMetricSnapshots( MetricSnapshots.savedEvery(temp.getRoot().toPath().resolve("other.snapshot"), 1, TimeUnit.MINUTES) );
+            fail("Should not pass");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("Metric snapshots already set");
+        }
+    }
+
+    @Test
+    public void testScheduledSaves() throws IOException, InterruptedException {
+        final Path file = temp.getRoot().toPath().resolve("metrics.snapshot");
+
+        final PrometheusMetrics metrics = new PrometheusMetrics(new CollectorRegistry(), "MyApp");
+        metrics.setMetricSnapshots( MetricSnapshots.savedEvery(file, 10, TimeUnit.MILLISECONDS) );
+        metrics.counter("requests").inc();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!Files.exists(file) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(file).exists();
+
+        metrics.stopMetricSnapshots();
+        Thread.sleep(50);  // Let any save already under way finish
+        Files.delete(file);
+        Thread.sleep(100);
+        assertThat(file).doesNotExist();
+    }
+
+    private static PrometheusMetrics newMetrics(final CollectorRegistry registry, final Path file) throws IOException {
+        final PrometheusMetrics metrics = new PrometheusMetrics(registry, "MyApp");
+        metrics.setMetricSnapshots( MetricSnapshots.savedEvery(file, 1, TimeUnit.MINUTES) );
+        return metrics;
+    }
+}
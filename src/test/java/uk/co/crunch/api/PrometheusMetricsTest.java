@@ -4,31 +4,49 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.TestableTimeProvider;
+import io.prometheus.client.exporter.common.TextFormat;
 import io.prometheus.client.hotspot.StandardExports;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import uk.co.crunch.api.PrometheusMetrics.Context;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.within;
+import static org.assertj.core.api.Assertions.withinPercentage;
 import static uk.co.crunch.TestUtils.samplesString;
+import static uk.co.crunch.TestUtils.steppedClock;
 
 public class PrometheusMetricsTest {
     private PrometheusMetrics metrics;
     private CollectorRegistry registry;
 
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
     @Before
     public void setUp() throws IOException {
-        TestableTimeProvider.install();
-
         registry = new CollectorRegistry();
         metrics = new PrometheusMetrics(registry, "MyApp");
+        metrics.setTimerClock( steppedClock() );
 
         final Properties props = new Properties();
         try (Reader r = Files.newReader( new File("src/test/resources/app.properties"), Charsets.UTF_8)) {
@@ -100,6 +118,148 @@ public class PrometheusMetricsTest {
         assertThat(registry.getSampleValue("myapp_myname_sum") * 1E+9).isEqualByComparingTo(1979d);
     }
 
+    @Test
+    public void testHistogramBuckets() {
+        metrics.histogram("linear", HistogramBuckets.linear(10, 10, 3)).observe(15).observe(30);
+        assertThat(registry.getSampleValue("myapp_linear_bucket", new String[]{"le"}, new String[]{"10.0"})).isEqualTo(0d);
+        assertThat(registry.getSampleValue("myapp_linear_bucket", new String[]{"le"}, new String[]{"20.0"})).isEqualTo(1d);
+        assertThat(registry.getSampleValue("myapp_linear_bucket", new String[]{"le"}, new String[]{"30.0"})).isEqualTo(2d);
+        assertThat(registry.getSampleValue("myapp_linear_bucket", new String[]{"le"}, new String[]{"0.005"})).isNull();
+
+        metrics.histogram("exponential", "Doubling", HistogramBuckets.exponential(1, 2, 4)).observe(5);
+        assertThat(registry.getSampleValue("myapp_exponential_bucket", new String[]{"le"}, new String[]{"4.0"})).isEqualTo(0d);
+        assertThat(registry.getSampleValue("myapp_exponential_bucket", new String[]{"le"}, new String[]{"8.0"})).isEqualTo(1d);
+
+        metrics.labelledHistogram("explicit", HistogramBuckets.explicit(0.1, 1), "handler").labels("api").observe(0.5);
+        assertThat(registry.getSampleValue("myapp_explicit_bucket", new String[]{"handler", "le"}, new String[]{"api", "1.0"})).isEqualTo(1d);
+
+        // Only populated buckets
+        metrics.histogram("sparse", HistogramBuckets.sparse(2)).observe(0.3).observe(5).observe(5);
+        assertThat(samplesString(registry)).contains("Name: myapp_sparse Type: HISTOGRAM Help: myapp_sparse Samples: [Name: myapp_sparse_bucket LabelNames: [le] labelValues: [0.3125] Value: 1.0 TimestampMs: null, Name: myapp_sparse_bucket LabelNames: [le] labelValues: [5.0] Value: 3.0 TimestampMs: null, Name: myapp_sparse_bucket LabelNames: [le] labelValues: [+Inf] Value: 3.0 TimestampMs: null, Name: myapp_sparse_count LabelNames: [] labelValues: [] Value: 3.0 TimestampMs: null, Name: myapp_sparse_sum LabelNames: [] labelValues: [] Value: 10.3 TimestampMs: null]");
+
+        try {
+            HistogramBuckets.explicit(1, 1);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Bucket bounds must be in increasing order");
+        }
+    }
+
+    @Test
+    public void testBufferedRecording() {
+        metrics.setBufferedRecording( BufferedRecording.flushedAtScrape() );
+
+        final PrometheusMetrics.Counter counter = metrics.counter("messages");
+        final PrometheusMetrics.Histogram histogram = metrics.histogram("sizes", HistogramBuckets.linear(10, 10, 2));
+        for (int i = 0; i < 1000; i++) {
+            counter.inc();
+            histogram.observe(15);
+        }
+        metrics.labelledHistogram("lag", "partition").labels("0").observe(0.2);
+
+        assertThat(registry.getSampleValue("myapp_messages")).isEqualTo(1000d);
+        assertThat(registry.getSampleValue("myapp_sizes_bucket", new String[]{"le"}, new String[]{"20.0"})).isEqualTo(1000d);
+        assertThat(registry.getSampleValue("myapp_lag_count", new String[]{"partition"}, new String[]{"0"})).isEqualTo(1d);
+
+        // Metrics created before the switch back stay buffered
+        metrics.setBufferedRecording(BufferedRecording.OFF);
+        metrics.counter("messages").inc();
+        assertThat(registry.getSampleValue("myapp_messages")).isEqualTo(1001d);
+
+        try {
+            BufferedRecording.flushedEvery(0, TimeUnit.SECONDS);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Flush interval must be positive");
+        }
+    }
+
+    @Test
+    public void testTimingHelpers() throws Exception {
+        final PrometheusMetrics.Histogram histogram = metrics.histogram("calls");
+
+        final AtomicInteger runs = new AtomicInteger();
+        histogram.time(() -> { runs.incrementAndGet(); });
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat( histogram.time(() -> "Supplier") ).isEqualTo("Supplier");
+        assertThat( histogram.timeCallable(() -> "Callable") ).isEqualTo("Callable");
+        try {
+            histogram.timeCallable(() -> { throw new IOException("Failed"); });
+            fail("Should not pass");
+        }
+        catch (IOException e) {
+            assertThat(e.getMessage()).isEqualTo("Failed");
+        }
+
+        // Failures are timed too
+        assertThat(registry.getSampleValue("myapp_calls_count")).isEqualTo(4d);
+        assertThat(registry.getSampleValue("myapp_calls_sum")).isCloseTo(4 * 1.979E-6, within(1E-12));
+    }
+
+    @Test
+    public void testAsyncTiming() {
+        final PrometheusMetrics.Summary summary = metrics.summary("async");
+
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        assertThat( summary.timeAsync(() -> pending) ).isSameAs(pending);
+        assertThat(registry.getSampleValue("myapp_async_count")).isEqualTo(0d);
+        pending.complete("Done");
+        assertThat(registry.getSampleValue("myapp_async_count")).isEqualTo(1d);
+
+        final CompletableFuture<String> failing = new CompletableFuture<>();
+        final CompletableFuture<String> recovered = summary.timeAsync(() -> failing).exceptionally(Throwable::getMessage);
+        failing.completeExceptionally( new IllegalStateException("Failed") );
+        assertThat(recovered.join()).isEqualTo("Failed");
+        assertThat(registry.getSampleValue("myapp_async_count")).isEqualTo(2d);
+
+        try {
+            summary.timeAsync(() -> { throw new IllegalStateException("Never started"); });
+            fail("Should not pass");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("Never started");
+        }
+        assertThat(registry.getSampleValue("myapp_async_count")).isEqualTo(3d);
+
+        final CompletableFuture<Integer> callback = new CompletableFuture<>();
+        final BiConsumer<Object,Throwable> completion = summary.timeCompletion();
+        final CompletableFuture<Integer> timed = callback.whenComplete(completion);
+        callback.complete(42);
+        assertThat(timed.join()).isEqualTo(42);
+        assertThat(registry.getSampleValue("myapp_async_count")).isEqualTo(4d);
+        assertThat(registry.getSampleValue("myapp_async_sum")).isCloseTo(4 * 1.979E-6, within(1E-12));
+
+        // Single use: only the first completion is timed
+        completion.accept(null, null);
+        assertThat(registry.getSampleValue("myapp_async_count")).isEqualTo(4d);
+    }
+
+    @Test
+    public void testTimerClock() throws InterruptedException {
+        final PrometheusMetrics.Histogram stepped = metrics.histogram("stepped");
+
+        metrics.setTimerClock( TimerClock.coarse(1, TimeUnit.MILLISECONDS) );
+        final PrometheusMetrics.Summary coarse = metrics.summary("coarse");
+        try (Context ignored = coarse.time()) {
+            Thread.sleep(50);
+        }
+        assertThat(registry.getSampleValue("myapp_coarse_sum")).isCloseTo(0.05, within(0.04));
+
+        // Metrics keep the clock they were created with
+        stepped.time( () -> {} );
+        assertThat(registry.getSampleValue("myapp_stepped_sum")).isEqualTo(1.979E-6);
+
+        try {
+            TimerClock.coarse(100, TimeUnit.MICROSECONDS);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Resolution must be at least 1ms");
+        }
+    }
+
     @Test
     public void testSummaryTimers() {
         try (Context timer = metrics.summary("Test_calc1").time()) {
@@ -128,6 +288,55 @@ public class PrometheusMetricsTest {
         assertThat(samplesString(registry)).contains("Name: myapp_vals_count LabelNames: [] labelValues: [] Value: 3.0 TimestampMs: null, Name: myapp_vals_sum LabelNames: [] labelValues: [] Value: 4649.697344653588");
     }
 
+    @Test
+    public void testHdrSummaryTimers() {
+        metrics.setQuantileEngine( QuantileEngine.hdr() );
+
+        try (Context timer = metrics.summary("Test_calc1").time()) {
+            System.out.println("First");
+        }
+
+        try (Context timer = metrics.summary("Test_calc1").time()) {
+            System.out.println("Second");
+        }
+
+        assertThat(samplesString(registry)).startsWith("[Name: myapp_test_calc1 Type: SUMMARY Help: myapp_test_calc1 ")
+                .contains("Name: myapp_test_calc1_count LabelNames: [] labelValues: [] Value: 2.0")
+                .contains("Name: myapp_test_calc1_sum LabelNames: [] labelValues: [] Value: 3.958E-6");
+
+        // Quantiles are only accurate to two significant digits, the sum is exact
+        for (String quantile : new String[]{"0.5", "0.75", "0.9", "0.95", "0.99", "0.999"}) {
+            assertThat(registry.getSampleValue("myapp_test_calc1", new String[]{"quantile"}, new String[]{quantile})).isCloseTo(1.979E-6, withinPercentage(1));
+        }
+    }
+
+    @Test
+    public void testCustomQuantiles() {
+        metrics.setQuantileEngine( QuantileEngine.hdr(3, 0.5, 0.99) );
+
+        final PrometheusMetrics.Summary summary = metrics.summary("Vals");
+        for (int i = 1; i <= 1000; i++) {
+            summary.observe(i);
+        }
+
+        assertThat(registry.getSampleValue("myapp_vals", new String[]{"quantile"}, new String[]{"0.5"})).isCloseTo(500d, within(1d));
+        assertThat(registry.getSampleValue("myapp_vals", new String[]{"quantile"}, new String[]{"0.99"})).isCloseTo(990d, within(1d));
+        assertThat(registry.getSampleValue("myapp_vals", new String[]{"quantile"}, new String[]{"0.75"})).isNull();
+        assertThat(registry.getSampleValue("myapp_vals_count")).isEqualTo(1000d);
+
+        // Beyond the trackable range: counted, but left out of the quantiles
+        summary.observe(Double.POSITIVE_INFINITY);
+        summary.observe(Double.NaN);
+        summary.observe(1E30);
+        assertThat(registry.getSampleValue("myapp_vals", new String[]{"quantile"}, new String[]{"0.99"})).isCloseTo(990d, within(1d));
+        assertThat(registry.getSampleValue("myapp_vals_count")).isEqualTo(1003d);
+
+        metrics.setQuantileEngine( QuantileEngine.ckms(0.001, 0.9) );
+        metrics.summary("Others").observe(42);
+        assertThat(registry.getSampleValue("myapp_others", new String[]{"quantile"}, new String[]{"0.9"})).isEqualTo(42d);
+        assertThat(registry.getSampleValue("myapp_others", new String[]{"quantile"}, new String[]{"0.5"})).isNull();
+    }
+
     @Test
     public void testCounter() {
         final double expected = System.nanoTime();
@@ -156,6 +365,173 @@ public class PrometheusMetricsTest {
         assertThat(registry.getSampleValue("myapp_errors", new String[]{"error_type"}, new String[]{"unknown"})).isNull();
 
         assertThat( metrics.error("stripe_transaction", "with desc this time").count() ).isEqualTo(3.0d);
+
+        // Handles are cached per error type
+        assertThat( metrics.error("stripe_transaction") ).isSameAs(stErr);
+    }
+
+    @Test
+    public void testConcurrentErrors() throws InterruptedException {
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    metrics.error("storm");
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertThat(registry.getSampleValue("myapp_errors", new String[]{"error_type"}, new String[]{"storm"})).isEqualTo(8000.0d);
+    }
+
+    @Test
+    public void testLabelledCounters() {
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("http.requests", "method", "status");
+        requests.labels("GET", "200").inc();
+        requests.labels("GET", "200").inc();
+        requests.labels("POST", "500").inc(3);
+
+        assertThat(requests.labels("GET", "200")).isSameAs( requests.labels(new String[]{"GET", "200"}) );
+        assertThat(metrics.labelledCounter("http.requests", "method", "status")).isSameAs(requests);
+
+        assertThat(registry.getSampleValue("myapp_http_requests", new String[]{"method", "status"}, new String[]{"GET", "200"})).isEqualTo(2.0d);
+        assertThat(registry.getSampleValue("myapp_http_requests", new String[]{"method", "status"}, new String[]{"POST", "500"})).isEqualTo(3.0d);
+        assertThat(samplesString(registry)).startsWith("[Name: myapp_http_requests Type: COUNTER Help: myapp_http_requests Samples: [");
+    }
+
+    @Test
+    public void testLabelledGaugesAndDistributions() {
+        metrics.labelledGauge("queue_size", "queue").labels("inbound").inc(5);
+        assertThat(registry.getSampleValue("myapp_queue_size", new String[]{"queue"}, new String[]{"inbound"})).isEqualTo(5.0d);
+
+        metrics.labelledHistogram("payload", "a", "b", "c").labels("x", "y", "z").observe(0.3);
+        assertThat(registry.getSampleValue("myapp_payload_bucket", new String[]{"a", "b", "c", "le"}, new String[]{"x", "y", "z", "0.5"})).isEqualTo(1.0d);
+        assertThat(registry.getSampleValue("myapp_payload_sum", new String[]{"a", "b", "c"}, new String[]{"x", "y", "z"})).isEqualTo(0.3d);
+
+        try (Context timer = metrics.labelledSummary("calc", "kind").labels("fast").time()) {
+            // Something
+        }
+        assertThat(registry.getSampleValue("myapp_calc", new String[]{"kind", "quantile"}, new String[]{"fast", "0.99"})).isEqualTo(1.979E-6);
+
+        metrics.setQuantileEngine( QuantileEngine.hdr() );
+        metrics.labelledSummary("hdr_calc", "kind").labels("slow").observe(42);
+        assertThat(registry.getSampleValue("myapp_hdr_calc_count", new String[]{"kind"}, new String[]{"slow"})).isEqualTo(1.0d);
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testLabelledMisuse() {
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("http.requests", "method", "status");
+
+        try {
+            requests.labels("GET");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Incorrect number of labels.");
+        }
+
+        try {
+            metrics.labelledCounter("http.requests", "method");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("http.requests is already used with labels [method, status]");
+        }
+
+        try {
+            metrics.labelledGauge("http.requests", "method", "status");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("myapp_http_requests is already used for a different type of metric");
+        }
+
+        try {
+            metrics.labelledCounter("reqs", "bad-label");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Invalid metric label name: bad-label");
+        }
+
+        try {
+            metrics.labelledHistogram("sizes", "le");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Histogram cannot have a label named 'le'.");
+        }
+
+        try {
+            metrics.labelledSummary("times", "quantile");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Summary cannot have a label named 'quantile'.");
+        }
+
+        // Only reserved for those types
+        metrics.labelledCounter("others", "le", "quantile").labels("1", "2").inc();
+        assertThat(registry.getSampleValue("myapp_others", new String[]{"le", "quantile"}, new String[]{"1", "2"})).isEqualTo(1d);
+    }
+
+    @Test
+    public void testCardinalityLimitEvictsLeastRecentlyUsed() {
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> logins = metrics.labelledCounter("logins", "user");
+        logins.setCardinalityLimit( CardinalityLimit.evictLeastRecentlyUsed(10) );
+
+        for (int i = 0; i < 10; i++) {
+            logins.labels("user" + i).inc();
+        }
+
+        // All equally old, so the first eviction round drops the first one added. Then keep user1 busy so that it survives the next
+        logins.labels("user10").inc();
+        assertThat(registry.getSampleValue("myapp_logins", new String[]{"user"}, new String[]{"user0"})).isNull();
+
+        logins.labels("user1").inc();
+        logins.labels("user11").inc();
+        assertThat(registry.getSampleValue("myapp_logins", new String[]{"user"}, new String[]{"user1"})).isEqualTo(2.0d);
+        assertThat(registry.getSampleValue("myapp_logins", new String[]{"user"}, new String[]{"user2"})).isNull();
+        assertThat(registry.getSampleValue("myapp_logins", new String[]{"user"}, new String[]{"user11"})).isEqualTo(1.0d);
+
+        assertThat(registry.getSampleValue("myapp_label_series_dropped", new String[]{"metric"}, new String[]{"myapp_logins"})).isEqualTo(2.0d);
+    }
+
+    @Test
+    public void testCardinalityLimitFoldsIntoOther() {
+        metrics.setCardinalityLimit( CardinalityLimit.foldIntoOther(2) );
+
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> requests = metrics.labelledCounter("requests", "path", "status");
+        requests.labels("/a", "200").inc();
+        requests.labels("/b", "200").inc();
+        requests.labels("/c", "200").inc();
+        requests.labels("/d", "500").inc();
+        requests.labels("/a", "200").inc();
+
+        assertThat(registry.getSampleValue("myapp_requests", new String[]{"path", "status"}, new String[]{"/a", "200"})).isEqualTo(2.0d);
+        assertThat(registry.getSampleValue("myapp_requests", new String[]{"path", "status"}, new String[]{"other", "other"})).isEqualTo(2.0d);
+        assertThat(registry.getSampleValue("myapp_requests", new String[]{"path", "status"}, new String[]{"/c", "200"})).isNull();
+
+        // Errors honour the limit too
+        metrics.error("a");
+        metrics.error("b");
+        metrics.error("c");
+        assertThat(registry.getSampleValue("myapp_errors", new String[]{"error_type"}, new String[]{"other"})).isEqualTo(1.0d);
+
+        assertThat(registry.getSampleValue("myapp_label_series_dropped", new String[]{"metric"}, new String[]{"myapp_requests"})).isEqualTo(2.0d);
+        assertThat(registry.getSampleValue("myapp_label_series_dropped", new String[]{"metric"}, new String[]{"myapp_errors"})).isEqualTo(1.0d);
+
+        // Each folded tuple is only counted once, however often it is seen
+        requests.labels("/c", "200").inc();
+        requests.labels("/d", "500").inc();
+        assertThat(requests.labels("/c", "200")).isSameAs(requests.labels("/d", "500"));
+        assertThat(registry.getSampleValue("myapp_requests", new String[]{"path", "status"}, new String[]{"other", "other"})).isEqualTo(4.0d);
+        assertThat(registry.getSampleValue("myapp_label_series_dropped", new String[]{"metric"}, new String[]{"myapp_requests"})).isEqualTo(2.0d);
     }
 
     @Test
@@ -176,6 +552,25 @@ public class PrometheusMetricsTest {
         assertThat(registry.getSampleValue("myapp_g_1")).isEqualTo(expected - 1981);
     }
 
+    @Test
+    public void testHighContentionMode() {
+        metrics.setHighContentionMode(true);
+
+        metrics.counter("counter_1", "My first counter").inc(1701);
+        metrics.counter("counter_1").inc();
+        metrics.counter("counter_1").inc(0.5);
+        assertThat(registry.getSampleValue("myapp_counter_1")).isEqualTo(1702.5d);
+
+        metrics.gauge("g_1").inc(10);
+        metrics.gauge("g_1").dec();
+        metrics.gauge("g_1").dec(0.25);
+        assertThat(registry.getSampleValue("myapp_g_1")).isEqualTo(8.75d);
+
+        assertThat(samplesString(registry))
+                .contains("Name: myapp_counter_1 Type: COUNTER Help: My first counter Samples: [Name: myapp_counter_1 LabelNames: [] labelValues: [] Value: 1702.5 TimestampMs: null]")
+                .contains("Name: myapp_g_1 Type: GAUGE Help: myapp_g_1 Samples: [Name: myapp_g_1 LabelNames: [] labelValues: [] Value: 8.75 TimestampMs: null]");
+    }
+
     @Test
     public void testHotspotExports() {
         final Collector c = new StandardExports();
@@ -187,6 +582,237 @@ public class PrometheusMetricsTest {
                 .contains("Name: process_open_fds Type: GAUGE");
     }
 
+    @Test
+    public void testCollectorCostTracking() throws IOException {
+        metrics.registerCustomCollector( new StandardExports() );  // Before tracking, so not tracked
+
+        metrics.setCollectorCostTracking(true);
+        metrics.registerCustomCollector( new StandardExports() );
+
+        final io.prometheus.client.Gauge first = io.prometheus.client.Gauge.build().name("first").help("First").labelNames("l").create();
+        final io.prometheus.client.Gauge second = io.prometheus.client.Gauge.build().name("second").help("Second").create();
+        for (int i = 0; i < 100; i++) {
+            first.labels("value_" + i).set(i);
+        }
+        metrics.registerCustomCollector(first);
+        metrics.registerCustomCollector(second);
+        try {
+            metrics.registerCustomCollector(second);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected, and not tracked
+        }
+
+        // Registration alone isn't a scrape
+        assertThat(metrics.getCollectorCosts()).extracting(CollectorCost::getCollects).containsOnly(0L);
+
+        metrics.writeExposition( Channels.newChannel( new ByteArrayOutputStream() ) );
+        metrics.writeExposition( Channels.newChannel( new ByteArrayOutputStream() ) );
+
+        final List<CollectorCost> costs = metrics.getCollectorCosts();
+        assertThat(costs).extracting(CollectorCost::getName).containsOnly("StandardExports", "Gauge", "Gauge_2");
+        assertThat(costs.get(0).getTotalNanos()).isGreaterThanOrEqualTo( costs.get(1).getTotalNanos() );
+        for (CollectorCost each : costs) {
+            assertThat(each.getCollects()).isEqualTo(2);
+            assertThat(each.getFailures()).isEqualTo(0);
+            assertThat(each.getTotalNanos()).isGreaterThan(0).isGreaterThanOrEqualTo( each.getLastNanos() );
+        }
+
+        // Each getSampleValue() is a scrape too
+        assertThat(registry.getSampleValue("myapp_collector_collects", new String[]{"collector"}, new String[]{"Gauge"})).isBetween(2d, 3d);
+        assertThat(registry.getSampleValue("myapp_collector_last_samples", new String[]{"collector"}, new String[]{"Gauge"})).isEqualTo(100d);
+        assertThat(registry.getSampleValue("myapp_collector_last_samples", new String[]{"collector"}, new String[]{"Gauge_2"})).isEqualTo(1d);
+        assertThat(registry.getSampleValue("myapp_collector_seconds", new String[]{"collector"}, new String[]{"StandardExports"})).isGreaterThan(0d);
+
+        // A hundred samples, each with its own label list, can't be collected without allocating
+        assertThat(registry.getSampleValue("myapp_collector_last_allocated_bytes", new String[]{"collector"}, new String[]{"Gauge"})).isGreaterThan(100d);
+    }
+
+    @Test
+    public void testParallelCollection() throws IOException {
+        metrics.setParallelCollection( ParallelCollection.onThreads(3, 1, TimeUnit.SECONDS) );
+        try {
+            metrics.setParallelCollection( ParallelCollection.onThreads(1, 1, TimeUnit.SECONDS) );
+            fail("Should not pass");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("Parallel collection already set");
+        }
+
+        final SlowCollector[] slow = {new SlowCollector("slow_1", 300), new SlowCollector("slow_2", 300), new SlowCollector("slow_3", 300)};
+        for (SlowCollector each : slow) {
+            metrics.registerCustomCollector(each);
+        }
+        metrics.counter("fast").inc();
+
+        // The three run at once
+        final long start = System.nanoTime();
+        final String exposition = exposition();
+        assertThat(System.nanoTime() - start).isLessThan( TimeUnit.MILLISECONDS.toNanos(850) );
+        assertThat(exposition).contains("slow_1 1.0\n").contains("slow_2 1.0\n").contains("slow_3 1.0\n").contains("myapp_fast 1.0\n");
+
+        // Over budget: last good result, marked stale
+        for (SlowCollector each : slow) {
+            each.value = 2;
+        }
+        slow[1].delayMillis = 5000;
+        final String stale = exposition();
+        assertThat(stale).contains("slow_1 2.0\n").contains("slow_2 1.0\n").contains("slow_3 2.0\n");
+        assertThat(stale).contains("myapp_collector_stale{collector=\"SlowCollector_2\",} 1.0\n").contains("myapp_collector_stale{collector=\"SlowCollector\",} 0.0\n");
+
+        // Still only the one collect() in flight, which the next scrape waits on again
+        final int collects = slow[1].collects.get();
+        final String stillStale = exposition();
+        assertThat(stillStale).contains("slow_2 1.0\n").contains("myapp_collector_stale{collector=\"SlowCollector_2\",} 2.0\n");
+        assertThat(slow[1].collects.get()).isEqualTo(collects);
+    }
+
+    private String exposition() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metrics.writeExposition( Channels.newChannel(out) );
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+
+    private static class SlowCollector extends Collector {
+        final String name;
+        final AtomicInteger collects = new AtomicInteger();
+        volatile long delayMillis;
+        volatile double value = 1;
+
+        SlowCollector(final String name, final long delayMillis) {
+            this.name = name;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            collects.incrementAndGet();
+            try {
+                Thread.sleep(delayMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.singletonList( new MetricFamilySamples(name, Type.GAUGE, name, Collections.singletonList(
+                    new MetricFamilySamples.Sample(name, Collections.emptyList(), Collections.emptyList(), value) )) );
+        }
+    }
+
+    @Test
+    public void testStreamingExpositionMatchesTextFormat() throws IOException {
+        metrics.counter("counter_1", "My first counter").inc(1701);
+        metrics.gauge("sizes_with_desc", "Response Sizes なお知らせ (bytes)\nsecond \\ line").inc(-0.25);
+        metrics.histogram("calc").observe(0.3);
+        metrics.summary("ckms").observe(42);
+        metrics.histogram("sparse", HistogramBuckets.sparse()).observe(0.3).observe(1E9).observe(-1);
+        metrics.labelledHistogram("sparse_by_handler", HistogramBuckets.sparse(0), "handler").labels("api").observe(12);
+        metrics.labelledCounter("http.requests", "method", "path").labels("GET", "/quote\"back\\slash\nnewline").inc();
+        metrics.labelledSummary("latency", "handler").labels("api").observe(0.5);
+        metrics.error("Generic");
+
+        metrics.setQuantileEngine( QuantileEngine.hdr() );
+        metrics.summary("hdr").observe(7);
+
+        metrics.setHighContentionMode(true);
+        metrics.counter("striped").inc(12345678);
+
+        metrics.setBufferedRecording( BufferedRecording.flushedAtScrape() );
+        metrics.counter("buffered").inc(12);
+        metrics.labelledCounter("buffered_by_queue", "queue").labels("q1").inc(3);
+        metrics.histogram("buffered_calc").observe(0.3);
+        metrics.histogram("buffered_sparse", HistogramBuckets.sparse()).observe(0.3);
+
+        metrics.setSharedMemoryStore( SharedMemoryStore.open(temp.newFolder().toPath(), "worker", 4096) );
+        metrics.counter("shared").inc(5);
+        metrics.labelledGauge("shared_by_queue", "queue").labels("q1").inc(2);
+        metrics.histogram("shared_calc").observe(0.3);
+
+        final io.prometheus.client.Gauge custom = io.prometheus.client.Gauge.build().name("custom").help("Custom").labelNames("l").create();
+        custom.labels("x").set(1E-4);
+        metrics.registerCustomCollector(custom);
+
+        final StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, registry.metricFamilySamples());
+
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        metrics.writeExposition( Channels.newChannel(actual) );
+
+        // Families come out in registration order rather than the registry's, so compare line by line
+        assertThat( sortedLines( new String(actual.toByteArray(), Charsets.UTF_8) ) ).isEqualTo( sortedLines( expected.toString() ) );
+        assertThat( new String(actual.toByteArray(), Charsets.UTF_8) ).startsWith("# HELP myapp_counter_1 My first counter\n# TYPE myapp_counter_1 counter\nmyapp_counter_1 1701.0\n");
+
+        // Buffer is reused, not appended to
+        final ByteArrayOutputStream again = new ByteArrayOutputStream();
+        metrics.writeExposition( Channels.newChannel(again) );
+        assertThat( again.toByteArray() ).isEqualTo( actual.toByteArray() );
+    }
+
+    @Test
+    public void testScrapeCache() throws IOException {
+        metrics.counter("counter_1").inc();
+        metrics.setScrapeCacheWindow(1, TimeUnit.HOURS);
+
+        final String first = scrape();
+        assertThat(first).contains("myapp_counter_1 1.0\n").contains("myapp_scrape_cache_misses 1.0\n");
+
+        // Served the same snapshot, even though the counter's moved on
+        metrics.counter("counter_1").inc();
+        assertThat(scrape()).isEqualTo(first);
+        assertThat(registry.getSampleValue("myapp_scrape_cache_hits")).isEqualTo(1.0d);
+        assertThat(registry.getSampleValue("myapp_scrape_cache_misses")).isEqualTo(1.0d);
+
+        metrics.setScrapeCacheWindow(0, TimeUnit.SECONDS);
+        assertThat(scrape()).contains("myapp_counter_1 2.0\n").contains("myapp_scrape_cache_hits 1.0\n");
+    }
+
+    private String scrape() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metrics.writeExposition( Channels.newChannel(out) );
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+
+    private static List<String> sortedLines(final String text) {
+        final List<String> lines = new ArrayList<>( Arrays.asList( text.split("\n") ) );
+        lines.sort(null);
+        return lines;
+    }
+
+    @Test
+    public void testRepeatLookupsReuseMetric() {
+        final PrometheusMetrics.Counter first = metrics.counter("Sessions.total");
+        assertThat(metrics.counter("Sessions.total")).isSameAs(first);
+
+        // Different raw spelling, same normalised name
+        assertThat(metrics.counter("sessions-total")).isSameAs(first);
+
+        metrics.counter("Sessions.total").inc();
+        metrics.counter("sessions-total").inc();
+        assertThat(registry.getSampleValue("myapp_sessions_total")).isEqualTo(2.0d);
+
+        final PrometheusMetrics.Histogram histogram = metrics.histogram("Latency", HistogramBuckets.linear(0, 10, 5));
+        assertThat(metrics.histogram("Latency", HistogramBuckets.linear(0, 10, 5))).isSameAs(histogram);
+        assertThat(metrics.histogram("Latency", "Desc", HistogramBuckets.linear(0, 10, 5))).isSameAs(histogram);
+
+        final PrometheusMetrics.Labelled<PrometheusMetrics.Counter> labelled = metrics.labelledCounter("Requests", "method");
+        assertThat(metrics.labelledCounter("Requests", "method")).isSameAs(labelled);
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testCannotReuseCachedMetricName() {
+        metrics.counter("yyy");
+        metrics.counter("yyy");  // Now cached by raw name
+
+        try {
+            metrics.gauge("yyy");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("myapp_yyy is already used for a different type of metric");
+        }
+    }
+
     @SuppressWarnings("CheckReturnValue")
     @Test
     public void testCannotReuseMetricName() {
@@ -200,4 +826,45 @@ public class PrometheusMetricsTest {
             assertThat(e.getMessage()).isEqualTo("myapp_xxx is already used for a different type of metric");
         }
     }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testInvalidMetricNames() {
+        final PrometheusMetrics unprefixed = new PrometheusMetrics();
+
+        try {
+            unprefixed.counter("5xx");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Invalid metric name: 5xx");
+        }
+
+        try {
+            unprefixed.gauge("5xx");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Invalid metric name: 5xx");
+        }
+
+        for (HistogramBuckets each : new HistogramBuckets[]{HistogramBuckets.defaults(), HistogramBuckets.sparse(), HistogramBuckets.exponential(1, 2, 4)}) {
+            try {
+                unprefixed.histogram("5xx", each);
+                fail("Should not pass");
+            }
+            catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).isEqualTo("Invalid metric name: 5xx");
+            }
+        }
+
+        unprefixed.setQuantileEngine( QuantileEngine.hdr() );
+        try {
+            unprefixed.summary("5xx");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Invalid metric name: 5xx");
+        }
+    }
 }
@@ -0,0 +1,173 @@
+package uk.co.crunch.api;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.within;
+
+public class SharedMemoryStoreTest {
+
+    private static final int WORKERS = 3;
+    private static final int INCREMENTS_PER_THREAD = 1000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testForkedWorkers() throws Exception {
+        final Path directory = temp.newFolder("metrics").toPath();
+
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < WORKERS; i++) {
+            workers.add( new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Worker.class.getName(), directory.toString(), "worker-" + i)
+                    .inheritIO()
+                    .start() );
+        }
+        for (Process each : workers) {
+            assertThat( each.waitFor(60, TimeUnit.SECONDS) ).isTrue();
+            assertThat( each.exitValue() ).isEqualTo(0);
+        }
+
+        final CollectorRegistry registry = new CollectorRegistry();
+        registry.register( SharedMemoryStore.aggregate(directory) );
+
+        assertThat(registry.getSampleValue("myapp_requests")).isEqualTo(WORKERS * 2.0 * INCREMENTS_PER_THREAD);
+        assertThat(registry.getSampleValue("myapp_inflight")).isEqualTo(WORKERS);
+        assertThat(registry.getSampleValue("myapp_jobs", new String[]{"kind"}, new String[]{"common"})).isEqualTo(WORKERS);
+        assertThat(registry.getSampleValue("myapp_jobs", new String[]{"kind"}, new String[]{"worker-1"})).isEqualTo(2d);
+
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"0.005"})).isEqualTo(WORKERS);
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"5.0"})).isEqualTo(WORKERS);
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"10.0"})).isEqualTo(2.0 * WORKERS);
+        assertThat(registry.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"+Inf"})).isEqualTo(3.0 * WORKERS);
+        assertThat(registry.getSampleValue("myapp_latency_count")).isEqualTo(3.0 * WORKERS);
+        assertThat(registry.getSampleValue("myapp_latency_sum")).isCloseTo(WORKERS * 107.003, within(1E-9));
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testReadWhileRecording() throws Exception {
+        final Path directory = temp.newFolder("metrics").toPath();
+
+        final CollectorRegistry exporter = new CollectorRegistry();
+        exporter.register( SharedMemoryStore.aggregate(directory) );
+        assertThat(exporter.getSampleValue("myapp_requests")).isNull();
+
+        final CollectorRegistry registry = new CollectorRegistry();
+        final PrometheusMetrics metrics = new PrometheusMetrics(registry, "MyApp");
+        metrics.setSharedMemoryStore( SharedMemoryStore.open(directory, "worker", 4096) );
+
+        metrics.counter("requests").inc();
+        assertThat(exporter.getSampleValue("myapp_requests")).isEqualTo(1d);
+
+        metrics.counter("requests").inc(2.5);
+        metrics.labelledGauge("queue", "name").labels("in").inc(3);
+        metrics.histogram("latency").observe(0.2);
+
+        // Workers' own registries see the same values
+        for (CollectorRegistry each : new CollectorRegistry[]{exporter, registry}) {
+            assertThat(each.getSampleValue("myapp_requests")).isEqualTo(3.5);
+            assertThat(each.getSampleValue("myapp_queue", new String[]{"name"}, new String[]{"in"})).isEqualTo(3d);
+            assertThat(each.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"0.1"})).isEqualTo(0d);
+            assertThat(each.getSampleValue("myapp_latency_bucket", new String[]{"le"}, new String[]{"0.25"})).isEqualTo(1d);
+            assertThat(each.getSampleValue("myapp_latency_count")).isEqualTo(1d);
+        }
+
+        // A restart under the same worker id starts again from zero
+        final PrometheusMetrics restarted = new PrometheusMetrics(new CollectorRegistry(), "MyApp");
+        restarted.setSharedMemoryStore( SharedMemoryStore.open(directory, "worker", 4096) );
+        restarted.counter("requests").inc();
+        assertThat(exporter.getSampleValue("myapp_requests")).isEqualTo(1d);
+        assertThat(exporter.getSampleValue("myapp_latency_count")).isNull();
+
+        try {
+            for (int i = 0; i < 1000; i++) {
+                restarted.counter("counter_" + i);
+            }
+            fail("Should not pass");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage()).endsWith("worker.metrics is full: 4096 bytes");
+        }
+
+        try {
+            restarted.histogram("sparse", HistogramBuckets.sparse());
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Only histograms with fixed buckets can be kept in shared memory");
+        }
+    }
+
+    @SuppressWarnings("CheckReturnValue")
+    @Test
+    public void testInvalidNamesRejectedBeforeStoring() throws Exception {
+        final Path directory = temp.newFolder("metrics").toPath();
+        final CollectorRegistry exporter = new CollectorRegistry();
+        exporter.register( SharedMemoryStore.aggregate(directory) );
+
+        final PrometheusMetrics metrics = new PrometheusMetrics();
+        metrics.setSharedMemoryStore( SharedMemoryStore.open(directory, "worker", 4096) );
+
+        try {
+            metrics.counter("5xx");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Invalid metric name: 5xx");
+        }
+
+        try {
+            metrics.histogram("5xx");
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Invalid metric name: 5xx");
+        }
+
+        metrics.counter("ok").inc();
+        assertThat(exporter.getSampleValue("ok")).isEqualTo(1d);
+        assertThat(exporter.getSampleValue("5xx")).isNull();
+        assertThat(exporter.getSampleValue("5xx_count")).isNull();
+    }
+
+    // Run in its own JVM: two threads counting, plus a gauge, a labelled counter and a histogram
+    public static class Worker {
+        public static void main(final String[] args) throws Exception {
+            final PrometheusMetrics metrics = new PrometheusMetrics(new CollectorRegistry(), "MyApp");
+            metrics.setSharedMemoryStore( SharedMemoryStore.open(Paths.get(args[0]), args[1], 1 << 16) );
+
+            final Thread[] threads = new Thread[2];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    final PrometheusMetrics.Counter requests = metrics.counter("requests");
+                    for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
+                        requests.inc();
+                    }
+                });
+                threads[i].start();
+            }
+
+            metrics.gauge("inflight").inc();
+            metrics.labelledCounter("jobs", "kind").labels("common").inc();
+            metrics.labelledCounter("jobs", "kind").labels(args[1]).inc(2);
+            metrics.histogram("latency").observe(0.003).observe(7).observe(100);
+
+            for (Thread each : threads) {
+                each.join();
+            }
+        }
+    }
+}
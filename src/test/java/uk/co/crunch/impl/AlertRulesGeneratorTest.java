@@ -0,0 +1,63 @@
+package uk.co.crunch.impl;
+
+import org.junit.Test;
+import uk.co.crunch.api.AlertRule;
+
+import java.lang.reflect.Proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.crunch.impl.AlertRulesGenerator.replaceRulePlaceholders;
+
+public class AlertRulesGeneratorTest {
+
+    @AlertRule(name = "many", duration = "5m", summary = "", description = "", confluenceLink = "",
+            metricNames = {"m.1", "m.2", "m.3", "m.4", "m.5", "m.6", "m.7", "m.8", "m.9", "m.10", "m.11", "test_m_12"},
+            rule = "$1 + $2 + $9 + $10 + $11 + $12 > 0")
+    @Test
+    public void testTenOrMoreMetrics() throws NoSuchMethodException {
+        assertThat( replaceRulePlaceholders(rule("testTenOrMoreMetrics"), "test_") )
+                .isEqualTo("test_m_1 + test_m_2 + test_m_9 + test_m_10 + test_m_11 + test_m_12 > 0");  // Last one already prefixed
+    }
+
+    @AlertRule(name = "few", duration = "5m", summary = "", description = "", confluenceLink = "",
+            metricNames = {"Requests per second", "errors"},
+            rule = "sum($1) by ($labels) / $12 + $0 + $3 + $2$1 + $$2 $")
+    @Test
+    public void testOnlyPlaceholdersForExistingMetrics() throws NoSuchMethodException {
+        assertThat( replaceRulePlaceholders(rule("testOnlyPlaceholdersForExistingMetrics"), "test_") )
+                .isEqualTo("sum(test_requests_per_second) by ($labels) / test_requests_per_second2 + $0 + $3 + test_errorstest_requests_per_second + $test_errors $");
+    }
+
+    @AlertRule(name = "none", duration = "5m", summary = "", description = "", confluenceLink = "",
+            metricNames = {}, rule = "up == 0")
+    @Test
+    public void testNoPlaceholders() throws NoSuchMethodException {
+        assertThat( replaceRulePlaceholders(rule("testNoPlaceholders"), "test_") ).isEqualTo("up == 0");
+    }
+
+    @Test
+    public void testLargeMetricNames() {
+        final String[] names = new String[250];
+        final StringBuilder expr = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "metric." + i;
+            expr.append(i > 0 ? " + $" : "$").append(i + 1);
+            expected.append(i > 0 ? " + " : "").append("test_metric_").append(i);
+        }
+
+        // Too many for an annotation literal
+        final AlertRule rule = (AlertRule) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{AlertRule.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "metricNames": return names.clone();
+                case "rule": return expr.toString();
+                default: throw new UnsupportedOperationException( method.getName() );
+            }
+        });
+        assertThat( replaceRulePlaceholders(rule, "test_") ).isEqualTo( expected.toString() );
+    }
+
+    private AlertRule rule(final String method) throws NoSuchMethodException {
+        return getClass().getMethod(method).getAnnotation(AlertRule.class);
+    }
+}
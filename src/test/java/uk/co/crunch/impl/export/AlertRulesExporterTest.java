@@ -0,0 +1,102 @@
+package uk.co.crunch.impl.export;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.crunch.AlertRulesTest;
+import uk.co.crunch.api.AlertRule;
+import uk.co.crunch.api.AlertRules;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AlertRulesExporterTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final AlertRulesExporter exporter = new AlertRulesExporter("Test", "alerts");
+
+    @Test
+    public void testExportsClassDirectory() throws IOException {
+        final Path output = temp.getRoot().toPath();
+        final AlertRulesExporter.Result result = exporter.export( Collections.singletonList( Paths.get("target/test-classes") ), output);
+
+        // Only AlertRulesTest has any rules, in its own group and on a method
+        assertThat( result.getWritten() ).containsExactly(output.resolve("webapp.alerts.rules"), output.resolve("webapp.alerts.yml"),
+                output.resolve("alerts.rules"), output.resolve("alerts.yml"));
+        assertThat( result.getUnchanged() ).isEmpty();
+
+        assertThat( read(output, "webapp.alerts.rules").trim() ).isEqualTo( expected("generated_rules.rule").trim() );
+        assertThat( read(output, "webapp.alerts.yml").trim() ).isEqualTo( expected("generated_rules.yml").trim() );
+        assertThat( read(output, "alerts.yml") ).startsWith("groups:\n- name: alerts\n  rules:\n  - alert: TestRpsRule\n");
+    }
+
+    @Test
+    public void testSkipsUnchangedFiles() throws IOException {
+        final Path output = temp.getRoot().toPath();
+        exporter.export( Collections.singletonList( Paths.get("target/test-classes") ), output);
+
+        Files.asCharSink(output.resolve("alerts.yml").toFile(), Charsets.UTF_8).write("stale");
+
+        final AlertRulesExporter.Result result = exporter.export( Collections.singletonList( Paths.get("target/test-classes") ), output);
+        assertThat( result.getWritten() ).containsExactly( output.resolve("alerts.yml") );
+        assertThat( result.getUnchanged() ).hasSize(3);
+        assertThat( read(output, "alerts.yml") ).startsWith("groups:\n");
+    }
+
+    @Test
+    public void testExportsJar() throws IOException {
+        final File jar = temp.newFile("rules.jar");
+        final String entryName = AlertRulesTest.class.getName().replace('.', '/') + ".class";
+        try (JarOutputStream out = new JarOutputStream( new FileOutputStream(jar) )) {
+            out.putNextEntry( new JarEntry(entryName) );
+            Files.copy(new File("target/test-classes", entryName), (OutputStream) out);
+        }
+
+        final Path output = temp.newFolder("out").toPath();
+        exporter.export( Collections.singletonList( jar.toPath() ), output);
+
+        assertThat( read(output, "webapp.alerts.yml").trim() ).isEqualTo( expected("generated_rules.yml").trim() );
+    }
+
+    // Parsed rules behave like the real annotations in sets and maps
+    @Test
+    public void testParsedRulesEqualReflectiveOnes() throws IOException {
+        final File classFile = new File("target/test-classes", AlertRulesTest.class.getName().replace('.', '/') + ".class");
+        final List<AlertRule> parsed = new ArrayList<>();
+        for (ClassFileRules.GroupedRule each : ClassFileRules.read( Files.toByteArray(classFile) )) {
+            parsed.add(each.rule);
+        }
+
+        final List<AlertRule> reflective = Arrays.asList( AlertRulesTest.class.getAnnotation(AlertRules.class).value() );
+        assertThat(parsed).containsAll(reflective);
+        for (int i = 0; i < reflective.size(); i++) {
+            assertThat(reflective.get(i)).isEqualTo( parsed.get(i) );
+            assertThat(parsed.get(i).hashCode()).isEqualTo( reflective.get(i).hashCode() );
+        }
+        assertThat(parsed.get(0)).isNotEqualTo( parsed.get(1) );
+    }
+
+    private static String read(final Path directory, final String name) throws IOException {
+        return Files.asCharSource(directory.resolve(name).toFile(), Charsets.UTF_8).read();
+    }
+
+    private static String expected(final String name) throws IOException {
+        return Files.asCharSource(new File("src/test/resources/expectations/" + name), Charsets.UTF_8).read();
+    }
+}
@@ -0,0 +1,55 @@
+package uk.co.crunch.impl.exposition;
+
+import com.google.common.base.Charsets;
+import io.prometheus.client.Collector;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExpositionWriterTest {
+
+    @Test
+    public void testValuesMatchGoFormatting() {
+        final byte[] name = ExpositionWriter.encodeName("v");
+        final ExpositionWriter writer = new ExpositionWriter();
+
+        for (double each : new double[]{0, -0.0, 1, -42, 9999999, 1E7, 0.001, 1E-4, 3.5, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}) {
+            writer.clear();
+            writer.writeSample(name, ExpositionWriter.NO_LABELS, ExpositionWriter.NO_LABELS, each);
+            assertThat( contents(writer) ).isEqualTo("v " + Collector.doubleToGoString(each) + "\n");
+        }
+    }
+
+    @Test
+    public void testLabelsAndEscaping() {
+        final ExpositionWriter writer = new ExpositionWriter();
+        writer.writeSample(ExpositionWriter.encodeName("v"),
+                ExpositionWriter.encodeLabels( Arrays.asList("a", "b"), Arrays.asList("x\"y", "\\\nなお\uD83D\uDE00") ),
+                ExpositionWriter.encodeLabels( Arrays.asList("le"), Arrays.asList("+Inf") ), 1);
+
+        assertThat( contents(writer) ).isEqualTo("v{a=\"x\\\"y\",b=\"\\\\\\nなお\uD83D\uDE00\",le=\"+Inf\",} 1.0\n");
+
+        assertThat( new String( ExpositionWriter.encodeHeader("n", "Help \"quoted\" \\ \n", Collector.Type.UNTYPED), Charsets.UTF_8) )
+                .isEqualTo("# HELP n Help \"quoted\" \\\\ \\n\n# TYPE n untyped\n");
+    }
+
+    @Test
+    public void testBufferGrows() {
+        final ExpositionWriter writer = new ExpositionWriter(4);
+        final byte[] name = ExpositionWriter.encodeName("a_rather_long_metric_name");
+
+        for (int i = 0; i < 1000; i++) {
+            writer.writeSample(name, ExpositionWriter.NO_LABELS, ExpositionWriter.NO_LABELS, i);
+        }
+        assertThat( contents(writer) ).startsWith("a_rather_long_metric_name 0.0\na_rather_long_metric_name 1.0\n").endsWith("a_rather_long_metric_name 999.0\n");
+        assertThat( writer.contents().remaining() ).isEqualTo( writer.size() );
+    }
+
+    private static String contents(final ExpositionWriter writer) {
+        final byte[] bytes = new byte[ writer.size() ];
+        writer.contents().get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
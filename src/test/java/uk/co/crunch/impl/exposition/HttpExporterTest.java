@@ -0,0 +1,124 @@
+package uk.co.crunch.impl.exposition;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.crunch.impl.metrics.AdderMetric;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpExporterTest {
+    private final AdderMetric counter = AdderMetric.counter("requests", "Requests served");
+    private HttpExporter exporter;
+
+    @Before
+    public void setUp() throws IOException {
+        counter.add(42);
+        exporter = new HttpExporter(new InetSocketAddress("localhost", 0), writer -> writer.writeCollector(counter));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        exporter.close();
+    }
+
+    @Test
+    public void testPlainAndGzippedScrapes() throws IOException {
+        final String expected = "# HELP requests Requests served\n# TYPE requests counter\nrequests 42.0\n";
+
+        final HttpURLConnection plain = open("/metrics");
+        assertThat(plain.getResponseCode()).isEqualTo(200);
+        assertThat(plain.getContentType()).isEqualTo(ExpositionWriter.CONTENT_TYPE);
+        assertThat(plain.getHeaderField("Content-Encoding")).isNull();
+        assertThat(body(plain.getInputStream())).isEqualTo(expected);
+
+        counter.add(1);
+
+        final HttpURLConnection gzipped = open("/metrics?name[]=requests");
+        gzipped.setRequestProperty("Accept-Encoding", "gzip");
+        assertThat(gzipped.getResponseCode()).isEqualTo(200);
+        assertThat(gzipped.getHeaderField("Content-Encoding")).isEqualTo("gzip");
+        assertThat(body(new GZIPInputStream(gzipped.getInputStream()))).isEqualTo(expected.replace("42.0", "43.0"));
+    }
+
+    @Test
+    public void testLargeGzippedScrape() throws IOException {
+        final byte[] name = ExpositionWriter.encodeName("value");
+        try (HttpExporter large = new HttpExporter(new InetSocketAddress("localhost", 0), writer -> {
+            for (int i = 0; i < 50000; i++) {
+                writer.writeSample(name, ExpositionWriter.NO_LABELS, ExpositionWriter.NO_LABELS, (i * 7919L) % 100003);
+            }
+        })) {
+            final HttpURLConnection gzipped = (HttpURLConnection) new URL("http://localhost:" + large.getPort() + "/metrics").openConnection();
+            gzipped.setRequestProperty("Accept-Encoding", "gzip");
+
+            // Compressed output well past the initial gzip buffer, which has to grow
+            assertThat(gzipped.getContentLength()).isGreaterThan(64 * 1024);
+            assertThat(body(new GZIPInputStream(gzipped.getInputStream()))).startsWith("value 0.0\nvalue 7919.0\n").hasLineCount(50000);
+        }
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        assertThat(open("/other").getResponseCode()).isEqualTo(404);
+
+        final HttpURLConnection post = open("/metrics");
+        post.setRequestMethod("POST");
+        assertThat(post.getResponseCode()).isEqualTo(405);
+    }
+
+    @Test
+    public void testKeepAliveAndPipelining() throws IOException {
+        try (Socket socket = new Socket("localhost", exporter.getPort())) {
+            final OutputStream out = socket.getOutputStream();
+            out.write("GET /metrics HTTP/1.1\r\nHost: x\r\n\r\nHEAD / HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n".getBytes(Charsets.US_ASCII));
+            out.flush();
+
+            final String responses = body(socket.getInputStream());  // Read until the server closes
+            assertThat(responses).startsWith("HTTP/1.1 200 OK\r\n").contains("requests 42.0\nHTTP/1.1 200 OK\r\n").endsWith("Connection: close\r\n\r\n");
+        }
+    }
+
+    // The first response is too big to write in one go, and the second request has already been read by then
+    @Test
+    public void testPipeliningAfterPartialWrite() throws IOException {
+        final byte[] name = ExpositionWriter.encodeName("value");
+        try (HttpExporter large = new HttpExporter(new InetSocketAddress("localhost", 0), writer -> {
+                for (int i = 0; i < 200000; i++) {
+                    writer.writeSample(name, ExpositionWriter.NO_LABELS, ExpositionWriter.NO_LABELS, i);
+                }
+            });
+            Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);  // Before connecting, so the window stays small
+            socket.connect(new InetSocketAddress("localhost", large.getPort()));
+            socket.setSoTimeout(10_000);
+            final OutputStream out = socket.getOutputStream();
+            out.write("GET /metrics HTTP/1.1\r\nHost: x\r\n\r\nHEAD / HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n".getBytes(Charsets.US_ASCII));
+            out.flush();
+
+            final String responses = body(socket.getInputStream());
+            assertThat(responses).startsWith("HTTP/1.1 200 OK\r\n").contains("value 199999.0\nHTTP/1.1 200 OK\r\n").endsWith("Connection: close\r\n\r\n");
+        }
+    }
+
+    private HttpURLConnection open(final String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + exporter.getPort() + path).openConnection();
+    }
+
+    private static String body(final InputStream stream) throws IOException {
+        try (InputStream in = stream) {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        }
+    }
+}
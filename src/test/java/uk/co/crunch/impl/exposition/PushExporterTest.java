@@ -0,0 +1,256 @@
+package uk.co.crunch.impl.exposition;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.crunch.impl.metrics.AdderMetric;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class PushExporterTest {
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private final AdderMetric requests = AdderMetric.counter("requests", "Requests served");
+    private final AdderMetric jobs = AdderMetric.counter("jobs", "Jobs run");
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private StandInGateway gateway;
+
+    @Before
+    public void setUp() throws IOException {
+        gateway = new StandInGateway();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        gateway.close();
+    }
+
+    @Test
+    public void testChangedGroupingsPushedTogether() throws IOException {
+        requests.add(42);
+
+        final PushExporter exporter = newExporter(HOUR, 1 << 20)
+                .add("batch", ImmutableMap.of("instance", "a b"), writer -> writer.writeCollector(requests))
+                .add("batch", ImmutableMap.of("path", "/tmp/x", "empty", ""), writer -> writer.writeCollector(jobs));
+
+        exporter.push();
+        assertThat(gateway.requests).extracting(r -> r.method + " " + r.path).containsExactly(
+                "PUT /metrics/job/batch/instance/a%20b",
+                "PUT /metrics/job/batch/path@base64/L3RtcC94/empty@base64/=");
+        assertThat(gateway.requests.get(0).body).isEqualTo("# HELP requests Requests served\n# TYPE requests counter\nrequests 42.0\n");
+
+        // Nothing changed, nothing sent
+        exporter.push();
+        assertThat(gateway.requests).hasSize(2);
+
+        jobs.add(1);
+        exporter.close();
+        assertThat(gateway.requests).hasSize(3);
+        assertThat(gateway.requests.get(2).path).startsWith("/metrics/job/batch/path@base64/");
+        assertThat(gateway.requests.get(2).body).endsWith("jobs 1.0\n");
+
+        // All on the one keep-alive connection
+        assertThat(gateway.connections.get()).isEqualTo(1);
+        assertThat(failures.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRetriedWithBackoff() throws IOException, InterruptedException {
+        gateway.statuses.addAll(Collections.nCopies(3, 503));
+        requests.add(7);
+
+        try (PushExporter exporter = newExporter(TimeUnit.MILLISECONDS.toNanos(20), 1 << 20)
+                .add("batch", ImmutableMap.of(), writer -> writer.writeCollector(requests))) {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (gateway.accepted.get() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(gateway.accepted.get()).isGreaterThan(0);
+            assertThat(failures.get()).isEqualTo(3);
+        }
+        assertThat(gateway.requests.get(3).body).endsWith("requests 7.0\n");
+    }
+
+    @Test
+    public void testGatewayDown() throws IOException {
+        gateway.close();
+
+        final PushExporter exporter = newExporter(HOUR, 1 << 20).add("batch", ImmutableMap.of(), writer -> writer.writeCollector(requests));
+        try {
+            exporter.close();
+            fail("Should not pass");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRejected() throws IOException {
+        gateway.statuses.add(400);
+
+        final PushExporter exporter = newExporter(HOUR, 1 << 20).add("batch", ImmutableMap.of(), writer -> writer.writeCollector(requests));
+        try {
+            exporter.push();
+            fail("Should not pass");
+        }
+        catch (IOException e) {
+            assertThat(e.getMessage()).endsWith("answered 400 for 1 of 1 groupings");
+        }
+
+        // Sent again, unchanged, as it never got through
+        exporter.close();
+        assertThat(gateway.requests).hasSize(2);
+        assertThat(gateway.accepted.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMemoryCap() throws IOException {
+        final byte[] name = ExpositionWriter.encodeName("value");
+        final AtomicInteger written = new AtomicInteger();
+        final PushExporter exporter = newExporter(HOUR, 32 * 1024)
+                .add("small", ImmutableMap.of(), writer -> writer.writeCollector(requests))
+                .add("large", ImmutableMap.of(), writer -> {
+                    for (int i = 0; i < 5000; i++) {
+                        writer.writeSample(name, ExpositionWriter.NO_LABELS, ExpositionWriter.NO_LABELS, i);
+                        written.incrementAndGet();
+                    }
+                });
+
+        exporter.close();
+        assertThat(gateway.requests).extracting(r -> r.path).containsExactly("/metrics/job/small");
+        assertThat(dropped.get()).isEqualTo(1);
+
+        // Stopped as soon as it went over, not once it had all been encoded
+        assertThat(written.get()).isLessThan(5000);
+    }
+
+    private PushExporter newExporter(final long intervalNanos, final int maxBytes) {
+        return new PushExporter("localhost", gateway.getPort(), intervalNanos, TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(40),
+                                maxBytes, failures::incrementAndGet, dropped::incrementAndGet);
+    }
+
+    // Keep-alive HTTP/1.1 server that records every request, answering each with the next queued status, or 202
+    private static final class StandInGateway implements AutoCloseable {
+        final List<Request> requests = new CopyOnWriteArrayList<>();
+        final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger accepted = new AtomicInteger();
+        private final ServerSocket server;
+
+        StandInGateway() throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this::acceptAll, "stand-in-gateway");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+
+        private void acceptAll() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    final Thread thread = new Thread(() -> serve(socket), "stand-in-gateway-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+            catch (IOException e) {  // NOSONAR
+                // Closed
+            }
+        }
+
+        private void serve(final Socket socket) {
+            try (Socket s = socket) {
+                final InputStream in = new BufferedInputStream(s.getInputStream());
+                final OutputStream out = s.getOutputStream();
+                while (true) {
+                    final String requestLine = readLine(in);
+                    if (requestLine == null) {
+                        return;
+                    }
+                    int contentLength = 0;
+                    for (String header = readLine(in); header != null && !header.isEmpty(); header = readLine(in)) {
+                        if (header.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(header.substring(15).trim());
+                        }
+                    }
+                    final byte[] body = new byte[contentLength];
+                    for (int read = 0; read < contentLength; ) {
+                        read += in.read(body, read, contentLength - read);
+                    }
+
+                    final List<String> parts = Splitter.on(' ').splitToList(requestLine);
+                    requests.add( new Request(parts.get(0), parts.get(1), new String(body, StandardCharsets.UTF_8)) );
+
+                    final Integer queued = statuses.poll();
+                    final int status = queued != null ? queued : 202;
+                    if (status == 202) {
+                        accepted.incrementAndGet();
+                    }
+                    out.write(("HTTP/1.1 " + status + " Whatever\r\nContent-Length: 2\r\n\r\nok").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            }
+            catch (IOException e) {  // NOSONAR
+                // Client went away
+            }
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    return null;
+                }
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final class Request {
+        final String method;
+        final String path;
+        final String body;
+
+        Request(final String method, final String path, final String body) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+    }
+}
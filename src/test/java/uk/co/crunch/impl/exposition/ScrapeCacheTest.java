@@ -0,0 +1,89 @@
+package uk.co.crunch.impl.exposition;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ScrapeCacheTest {
+    private final AtomicInteger collections = new AtomicInteger();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    @Test
+    public void testConcurrentScrapesShareOneCollection() throws InterruptedException {
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final ScrapeCache cache = new ScrapeCache(writer -> {
+            collecting.countDown();
+            sleep(200);  // Slow enough for every other scraper to pile up behind us
+            write(writer);
+        }, TimeUnit.HOURS.toNanos(1), hits::incrementAndGet, misses::incrementAndGet);
+
+        final List<String> results = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                final String result = asString( cache.get() );
+                synchronized (results) {
+                    results.add(result);
+                }
+            }));
+        }
+
+        threads.get(0).start();
+        collecting.await();
+        for (Thread each : threads.subList(1, threads.size())) {
+            each.start();
+        }
+        for (Thread each : threads) {
+            each.join();
+        }
+
+        assertThat(collections.get()).isEqualTo(1);
+        assertThat(misses.get()).isEqualTo(1);
+        assertThat(hits.get()).isEqualTo(7);
+        assertThat(results).hasSize(8).containsOnly("collection 1\n");
+    }
+
+    @Test
+    public void testStaleSnapshotsAreRecollected() {
+        final ScrapeCache cache = new ScrapeCache(this::write, TimeUnit.MILLISECONDS.toNanos(20), hits::incrementAndGet, misses::incrementAndGet);
+
+        assertThat(asString( cache.get() )).isEqualTo("collection 1\n");
+        assertThat(asString( cache.get() )).isEqualTo("collection 1\n");
+
+        sleep(50);
+        final ExpositionWriter writer = new ExpositionWriter();
+        cache.writeTo(writer);
+        assertThat(asString( writer.contents() )).isEqualTo("collection 2\n");
+
+        assertThat(hits.get()).isEqualTo(1);
+        assertThat(misses.get()).isEqualTo(2);
+    }
+
+    private void write(final ExpositionWriter writer) {
+        writer.writeBytes( ("collection " + collections.incrementAndGet() + "\n").getBytes(Charsets.UTF_8) );
+    }
+
+    private static String asString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[ buffer.remaining() ];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package uk.co.crunch.impl.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class BufferedMetricsTest {
+
+    @Test
+    public void testCounterOnlyMergedOnFlush() {
+        final AdderMetric shared = AdderMetric.counter("c", "c");
+        final BufferedAccumulator counter = new BufferedAccumulator(shared, 0);
+
+        counter.add(1);
+        counter.add(2.5);
+        assertThat(shared.get()).isEqualTo(0d);
+
+        counter.flush();
+        assertThat(shared.get()).isEqualTo(3.5d);
+
+        counter.add(1);
+        assertThat(counter.get()).isEqualTo(4.5d);
+        counter.flush();
+        assertThat(shared.get()).isEqualTo(4.5d);
+    }
+
+    @Test
+    public void testCountersCannotDecrease() {
+        try {
+            new BufferedAccumulator(AdderMetric.counter("c", "c"), 0).add(-1);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Amount to increment must be non-negative.");
+        }
+    }
+
+    // Every thread has died by the time of the flush, so nothing is left to merge afterwards
+    @Test
+    public void testDeadThreadsFlushedOnce() throws InterruptedException {
+        final AdderMetric shared = AdderMetric.counter("c", "c");
+        final BufferedAccumulator counter = new BufferedAccumulator(shared, 0);
+
+        runThreads(8, () -> {
+            for (int j = 0; j < 10000; j++) {
+                counter.add(1);
+            }
+        });
+
+        counter.flush();
+        assertThat(shared.get()).isEqualTo(80000d);
+        counter.flush();
+        assertThat(shared.get()).isEqualTo(80000d);
+    }
+
+    @Test
+    public void testPeriodicFlush() throws InterruptedException {
+        final AdderMetric shared = AdderMetric.counter("c", "c");
+        final BufferedAccumulator counter = new BufferedAccumulator(shared, TimeUnit.MILLISECONDS.toNanos(10));
+
+        counter.add(42);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (shared.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(shared.get()).isEqualTo(42d);
+    }
+
+    @Test
+    public void testHistogramOnlyMergedOnFlush() {
+        final FixedHistogram shared = new FixedHistogram("h", "h", 1, 2);
+        final BufferedHistogram histogram = new BufferedHistogram(shared, 0);
+
+        histogram.observe(0.5);
+        histogram.observe(1.5);
+        histogram.observe(3);
+        assertThat(values(shared)).containsExactly(0d, 0d, 0d, 0d, 0d);
+
+        histogram.flush();
+        assertThat(values(shared)).containsExactly(1d, 2d, 3d, 3d, 5d);
+
+        histogram.observe(1.5);
+        histogram.flush();
+        histogram.flush();
+        assertThat(values(shared)).containsExactly(1d, 3d, 4d, 4d, 6.5d);
+    }
+
+    @Test
+    public void testHistogramFlushesRacingWriters() throws InterruptedException {
+        final SparseHistogram shared = new SparseHistogram("h", "h", 2);
+        final BufferedHistogram histogram = new BufferedHistogram(shared, 0);
+
+        final AtomicInteger inconsistentScrapes = new AtomicInteger();
+        final Thread flusher = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                histogram.flush();
+
+                // Never more in the buckets than in +Inf
+                final List<Double> values = values(shared);
+                final double inf = values.get(values.size() - 3);
+                for (int i = 0; i < values.size() - 3; i++) {
+                    if (values.get(i) > inf) {
+                        inconsistentScrapes.incrementAndGet();
+                    }
+                }
+            }
+        });
+        flusher.start();
+        runThreads(4, () -> {
+            for (int j = 1; j <= 100000; j++) {
+                histogram.observe(j % 1000);
+            }
+        });
+        flusher.interrupt();
+        flusher.join();
+        assertThat(inconsistentScrapes.get()).isZero();
+
+        histogram.flush();
+        final List<Double> values = values(shared);
+        assertThat(values.get(values.size() - 4)).isEqualTo(400000d);  // Last bucket, le=1024
+        assertThat(values.get(values.size() - 2)).isEqualTo(400000d);
+        assertThat(values.get(values.size() - 1)).isEqualTo(4.0 * 100 * (999 * 1000 / 2));
+    }
+
+    private static List<Double> values(final BucketedHistogram histogram) {
+        final List<Double> values = new ArrayList<>();
+        for (Sample each : histogram.collect().get(0).samples) {
+            values.add(each.value);
+        }
+        return values;
+    }
+
+    private static void runThreads(final int count, final Runnable task) throws InterruptedException {
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            threads.add( new Thread(task) );
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package uk.co.crunch.impl.metrics;
+
+import com.google.common.base.Splitter;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class SparseHistogramTest {
+
+    @Test
+    public void testBucketBounds() {
+        final SparseHistogram histogram = new SparseHistogram("h", "h", 2);
+        histogram.observe(1.0);    // Exactly on a bound: counted in that bucket, not the next
+        histogram.observe(1.01);
+        histogram.observe(1.25);
+        histogram.observe(1.26);
+        histogram.observe(1000);
+
+        assertThat(buckets(histogram)).containsExactly("1.0=1.0", "1.25=3.0", "1.5=4.0", "1024.0=5.0", "+Inf=5.0");
+    }
+
+    @Test
+    public void testRelativeError() {
+        final SparseHistogram histogram = new SparseHistogram("h", "h", 3);
+        for (double v = 1E-6; v < 1E6; v *= 1.37) {
+            final SparseHistogram single = new SparseHistogram("s", "s", 3);
+            single.observe(v);
+            final double upper = Double.parseDouble( Splitter.on('=').splitToList( buckets(single).get(0) ).get(0) );
+            assertThat(upper).isGreaterThanOrEqualTo(v).isLessThanOrEqualTo(v * 1.125);
+            histogram.observe(v);
+        }
+        assertThat(buckets(histogram)).hasSize(89).endsWith("+Inf=88.0");
+    }
+
+    @Test
+    public void testOutOfRangeValues() {
+        final SparseHistogram histogram = new SparseHistogram("h", "h", 0);
+        histogram.observe(0);
+        histogram.observe(-5);
+        histogram.observe(Double.NaN);
+        histogram.observe(1E30);
+        histogram.observe(3);
+
+        assertThat(buckets(histogram)).containsExactly("5.421010862427522E-20=2.0", "4.0=3.0", "+Inf=5.0");
+    }
+
+    @Test
+    public void testConcurrentObservations() throws InterruptedException {
+        final SparseHistogram histogram = new SparseHistogram("h", "h", 4);
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 1; j <= 10000; j++) {
+                    histogram.observe(j);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        final List<String> buckets = buckets(histogram);
+        assertThat(buckets.get(buckets.size() - 2)).isEqualTo("10240.0=80000.0");
+        assertThat(buckets.get(buckets.size() - 1)).isEqualTo("+Inf=80000.0");
+    }
+
+    @Test
+    public void testSubBucketBits() {
+        try {
+            new SparseHistogram("h", "h", 9);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Sub-bucket bits 9 invalid: Expected number between 0 and 8.");
+        }
+    }
+
+    private static List<String> buckets(final SparseHistogram histogram) {
+        final List<String> buckets = new ArrayList<>();
+        for (Sample each : histogram.collect().get(0).samples) {
+            if (each.name.endsWith("_bucket")) {
+                buckets.add(each.labelValues.get(0) + "=" + each.value);
+            }
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,58 @@
+package uk.co.crunch.impl.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class StripedMetricTest {
+
+    @Test
+    public void testStripeCounts() {
+        assertThat(new StripedLongAdder(1).stripes()).isEqualTo(2);
+        assertThat(new StripedLongAdder(4).stripes()).isEqualTo(4);
+        assertThat(new StripedLongAdder(6).stripes()).isEqualTo(8);
+        assertThat(new StripedLongAdder(1000).stripes()).isEqualTo(64);
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        final StripedMetric counter = StripedMetric.counter("c", "c");
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    counter.add(1);
+                }
+                counter.add(0.5);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertThat(counter.get()).isEqualTo(160008.0d);
+        assertThat(counter.collect().get(0).samples.get(0).value).isEqualTo(160008.0d);
+    }
+
+    @Test
+    public void testCountersCannotDecrease() {
+        try {
+            StripedMetric.counter("c", "c").add(-1);
+            fail("Should not pass");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).isEqualTo("Amount to increment must be non-negative.");
+        }
+
+        final StripedMetric gauge = StripedMetric.gauge("g", "g");
+        gauge.add(-1.5);
+        gauge.add(-1);
+        assertThat(gauge.get()).isEqualTo(-2.5d);
+    }
+}
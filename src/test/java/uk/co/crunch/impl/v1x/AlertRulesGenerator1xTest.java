@@ -0,0 +1,21 @@
+package uk.co.crunch.impl.v1x;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.crunch.impl.v1x.AlertRulesGenerator1x.title;
+
+public class AlertRulesGenerator1xTest {
+
+    // As Jtwig's title() filter rendered them
+    @Test
+    public void testTitle() {
+        assertThat(title("")).isEqualTo("");
+        assertThat(title("audit-service")).isEqualTo("Audit-service");
+        assertThat(title("rpsRule")).isEqualTo("RpsRule");
+        assertThat(title("foo bar")).isEqualTo("Foo Bar");
+        assertThat(title("MiXeD cAsE")).isEqualTo("MiXeD CAsE");
+        assertThat(title("nginx\tz")).isEqualTo("Nginx\tZ");
+        assertThat(title("élan vital")).isEqualTo("Élan Vital");
+    }
+}
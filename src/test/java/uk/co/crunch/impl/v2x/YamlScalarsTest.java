@@ -0,0 +1,47 @@
+package uk.co.crunch.impl.v2x;
+
+import org.junit.Test;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class YamlScalarsTest {
+
+    private static final String[] TRICKY = {"", " ", "plain text", "yes", "Off", "~", "null", "1", "-1.5e3", ".5", "0x1F", "0o17", "12:30",
+            "2001-12-14", "<<", "!", "&a", "*a", "- item", "-item", "key: value", "key:value", "#comment", "not #comment", "not#comment",
+            "---", "...x", "'quoted'", "\"quoted\"", "[a]", "{a}", "a, b", "?", "? a", "|", ">", "%", "@", "`", "trailing ",
+            " leading", "tab\there", "cr\rhere", "back\\slash", "élan", " nbsp", "smile 😀",
+            "line\nbreak", "line\nbreak\n", "line\nbreak\n\n", "\nleading break", " leading\nspace", "space \nbreak", "break\n space",
+            "{{ $labels.instance }} is down", "rate(x[5m]) > 0"};
+
+    @Test
+    public void testValuesMatchSnakeYaml() throws IOException {
+        for (String each : TRICKY) {
+            final StringBuilder sb = new StringBuilder("k: ");
+            YamlScalars.write(sb, each, 2);
+            assertThat( sb.toString() ).as(each).isEqualTo( snakeYaml("k", each) );
+        }
+    }
+
+    @Test
+    public void testKeysMatchSnakeYaml() throws IOException {
+        for (String each : TRICKY) {
+            if (each.isEmpty() || each.contains("\n")) {
+                continue;  // SnakeYAML writes these as explicit "? " keys, which we never need
+            }
+            final StringBuilder sb = new StringBuilder();
+            YamlScalars.writeKey(sb, each);
+            assertThat( sb.append(": x\n").toString() ).as(each).isEqualTo( snakeYaml(each, "x") );
+        }
+    }
+
+    private static String snakeYaml(final String key, final String value) {
+        final DumperOptions options = new DumperOptions();
+        options.setSplitLines(false);
+        return new Yaml(options).dumpAsMap( Collections.singletonMap(key, value) );
+    }
+}
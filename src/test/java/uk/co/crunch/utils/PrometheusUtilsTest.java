@@ -0,0 +1,57 @@
+package uk.co.crunch.utils;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static uk.co.crunch.utils.PrometheusUtils.normaliseName;
+
+public class PrometheusUtilsTest {
+
+    @Test
+    public void testNormalise() {
+        assertThat(normaliseName("")).isEqualTo("");
+        assertThat(normaliseName("Test.Metric-Name")).isEqualTo("test_metric_name");
+        assertThat(normaliseName("Requests per second")).isEqualTo("requests_per_second");
+        assertThat(normaliseName("errors#5XX")).isEqualTo("errors_5xx");
+        assertThat(normaliseName("ns:Sub.Name")).isEqualTo("ns:sub_name");
+    }
+
+    @Test
+    public void testNormalisedNamesReturnedAsIs() {
+        final String name = new String("already_normal:5xx");
+        assertThat(normaliseName(name)).isSameAs(name);
+    }
+
+    @Test
+    public void testRepeatsInterned() {
+        assertThat(normaliseName( new String("Interned.Name") )).isSameAs(normaliseName( new String("Interned.Name") ));
+    }
+
+    @Test
+    public void testNotLocaleSensitive() {
+        final Locale original = Locale.getDefault();
+        Locale.setDefault( new Locale("tr", "TR") );
+        try {
+            assertThat(normaliseName("TITLE")).isEqualTo("title");  // Not "tıtle"
+        }
+        finally {
+            Locale.setDefault(original);
+        }
+    }
+
+    @Test
+    public void testInvalidCharacters() {
+        for (String each : new String[]{"a/b", "a(b)", "naïve", "quote\"d", "tab\there"}) {
+            try {
+                normaliseName(each);
+                fail("Should have rejected " + each);
+            }
+            catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).contains(each);
+            }
+        }
+    }
+}